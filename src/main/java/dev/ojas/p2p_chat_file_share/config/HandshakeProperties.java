@@ -0,0 +1,20 @@
+package dev.ojas.p2p_chat_file_share.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "p2pcf.handshake")
+public class HandshakeProperties {
+    private long maxClockSkewSeconds = 60;       // handshakes with a timestamp further off are dropped
+    private double perIpRate = 5;                // handshakes per second refilled into each IP's bucket
+    private int perIpBurst = 20;                 // bucket size
+    private int maxTrackedIps = 65536;           // token buckets kept (least recently seen evicted)
+    private int maxTrackedNonces = 262144;       // nonces remembered for replay detection
+    private int cookieThresholdPerSecond = 50;   // above this many handshakes/s, require a cookie (0 = always, -1 = never)
+    private long cookieLifetimeSeconds = 30;
+}
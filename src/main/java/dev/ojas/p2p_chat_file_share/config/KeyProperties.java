@@ -0,0 +1,17 @@
+package dev.ojas.p2p_chat_file_share.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "p2pcf.keys")
+public class KeyProperties {
+    private long sessionIdleTimeoutSeconds = 0;   // unlocked seed is zeroed after this long unused (0 = never); re-unlock with NodeService.unlock
+    private String walletPassword;                // unlocks the key session when the wallet loads (e.g. env P2PCF_KEYS_WALLET_PASSWORD); unset = call NodeService.unlock
+    private int ephemeralPoolSize = 16;           // handshake key pairs kept ready by EphemeralKeyPool
+    private int ephemeralIndexBlock = 64;         // ephemeral indices reserved per wallet write
+}
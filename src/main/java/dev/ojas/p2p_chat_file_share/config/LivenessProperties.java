@@ -0,0 +1,18 @@
+package dev.ojas.p2p_chat_file_share.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "p2pcf.liveness")
+public class LivenessProperties {
+    private long tickMillis = 100;              // timing wheel resolution
+    private int wheelSize = 512;                // buckets per lap (one lap = tickMillis * wheelSize)
+    private long heartbeatIntervalSeconds = 15; // heartbeat sent when nothing else went out this long
+    private long idleTimeoutSeconds = 45;       // connection closed when nothing came in this long
+    private long handshakeTimeoutSeconds = 30;  // unanswered outgoing handshake state dropped after this
+}
@@ -12,4 +12,6 @@ import org.springframework.stereotype.Component;
 public class StorageProperties {
     private String dir;
     private String userDetailsFileName;
+    private long writeBehindMillis = 500; // wallet changes coalesced this long before one background write (0 = write immediately)
+    private long journalCompactBytes = 4 * 1024 * 1024; // node journal size that triggers a fresh wallet snapshot
 }
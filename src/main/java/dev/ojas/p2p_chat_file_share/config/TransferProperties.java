@@ -0,0 +1,20 @@
+package dev.ojas.p2p_chat_file_share.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "p2pcf.transfer")
+public class TransferProperties {
+    private int initialWindow = 8;
+    private int minWindow = 2;
+    private int maxWindow = 512;
+    private long initialRtoMillis = 1000;
+    private long maxRtoMillis = 30000;
+    private long swarmTickMillis = 500;
+    private int maxServedChunksPerSecond = 512;
+}
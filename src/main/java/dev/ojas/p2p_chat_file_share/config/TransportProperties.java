@@ -0,0 +1,17 @@
+package dev.ojas.p2p_chat_file_share.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "p2pcf.transport")
+public class TransportProperties {
+    private int ioThreads = 2;
+    private int maxFrameSize = 4 * 1024 * 1024;
+    private int readBufferSize = 64 * 1024;
+    private int writeBufferSize = 64 * 1024;
+}
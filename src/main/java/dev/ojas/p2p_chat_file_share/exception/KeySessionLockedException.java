@@ -0,0 +1,7 @@
+package dev.ojas.p2p_chat_file_share.exception;
+
+public class KeySessionLockedException extends RuntimeException {
+    public KeySessionLockedException(String message) {
+        super(message);
+    }
+}
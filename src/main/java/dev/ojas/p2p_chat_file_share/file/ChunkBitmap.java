@@ -0,0 +1,207 @@
+package dev.ojas.p2p_chat_file_share.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * ChunkBitmap: persistent "which chunks do I have" set, one bit per chunk, in a memory-mapped file.
+ * <pre>
+ * [int magic "P2CB"][int version][int totalChunks][int reserved]   16-byte header
+ * [ceil(totalChunks / 8) bytes]                                    bit i = byte i/8, bit i%8 (LSB first)
+ * </pre>
+ * Recording a chunk sets a bit in a heap BitSet; flush() copies those bits into the mapping and forces
+ * it, and the FlushPolicy decides when. The mapping never holds an unflushed bit, so the OS cannot write
+ * one back early: a caller that forces its data before flush() knows every bit on disk is backed by
+ * durable data. The bit layout matches BitSet.valueOf(ByteBuffer).
+ */
+public class ChunkBitmap implements AutoCloseable {
+    private static final int MAGIC = 0x50324342; // "P2CB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * When to force the mapping to disk: after `everyChunks` new bits or `maxDelayMillis` since the last
+     * flush, whichever comes first (0 disables that trigger). close() and flush() always force.
+     */
+    public static final class FlushPolicy {
+        public static final FlushPolicy EVERY_CHUNK = new FlushPolicy(1, 0);
+        public static final FlushPolicy DEFAULT = new FlushPolicy(64, 1000);
+        public static final FlushPolicy ON_CLOSE = new FlushPolicy(0, 0);
+
+        private final int everyChunks;
+        private final long maxDelayMillis;
+
+        public FlushPolicy(int everyChunks, long maxDelayMillis) {
+            this.everyChunks = everyChunks;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+    }
+
+    private final Path path;
+    private final int totalChunks;
+    private final FlushPolicy flushPolicy;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final BitSet pending = new BitSet(); // set since the last flush, not yet in the mapping
+    private int cardinality;
+    private int unflushed;
+    private long lastFlush = System.currentTimeMillis();
+
+    /**
+     * Open (or create) the bitmap file. An existing file must have been created for the same totalChunks.
+     */
+    public ChunkBitmap(Path path, int totalChunks, FlushPolicy flushPolicy) throws IOException {
+        this.path = path;
+        this.totalChunks = totalChunks;
+        this.flushPolicy = flushPolicy;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean fresh = channel.size() == 0;
+            long size = HEADER_SIZE + ((long) totalChunks + 7) / 8;
+            if (!fresh) checkHeader(size); // before mapping, which would extend a foreign file
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.BIG_ENDIAN);
+            if (fresh) {
+                map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, totalChunks).putInt(12, 0);
+                map.force();
+            } else {
+                for (int i = HEADER_SIZE; i < size; i++) cardinality += Integer.bitCount(map.get(i) & 0xFF);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void checkHeader(long size) throws IOException {
+        if (channel.size() < HEADER_SIZE) throw new IOException("not a chunk bitmap: " + path);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) throw new IOException("not a chunk bitmap: " + path);
+        }
+        if (header.getInt(0) != MAGIC) throw new IOException("not a chunk bitmap: " + path);
+        if (header.getInt(4) != VERSION) throw new IOException("unsupported chunk bitmap version " + header.getInt(4));
+        if (header.getInt(8) != totalChunks)
+            throw new IOException("chunk bitmap " + path + " is for " + header.getInt(8) + " chunks, not " + totalChunks);
+        if (channel.size() != size) throw new IOException("chunk bitmap " + path + " has the wrong size");
+    }
+
+    public int totalChunks() {
+        return totalChunks;
+    }
+
+    public synchronized int cardinality() {
+        return cardinality;
+    }
+
+    public synchronized boolean get(int idx) {
+        checkIndex(idx);
+        return mapped(idx) || pending.get(idx);
+    }
+
+    private boolean mapped(int idx) {
+        return (map.get(HEADER_SIZE + (idx >>> 3)) & (1 << (idx & 7))) != 0;
+    }
+
+    /**
+     * Set one bit. Returns true if it was newly set. It reaches the file with the next flush().
+     */
+    public synchronized boolean set(int idx) {
+        if (get(idx)) return false;
+        pending.set(idx);
+        cardinality++;
+        unflushed++;
+        return true;
+    }
+
+    /**
+     * True when the policy wants a flush now. Callers that must order other writes before the bitmap
+     * (e.g. forcing assembled data first) check this, do their work, then call flush().
+     */
+    public synchronized boolean flushDue() {
+        if (unflushed == 0) return false;
+        if (flushPolicy.everyChunks > 0 && unflushed >= flushPolicy.everyChunks) return true;
+        return flushPolicy.maxDelayMillis > 0 && System.currentTimeMillis() - lastFlush >= flushPolicy.maxDelayMillis;
+    }
+
+    /**
+     * Write the bits set since the last flush into the mapping and force it.
+     */
+    public synchronized void flush() {
+        if (unflushed == 0) return;
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+            int pos = HEADER_SIZE + (i >>> 3);
+            map.put(pos, (byte) (map.get(pos) | (1 << (i & 7))));
+        }
+        pending.clear();
+        map.force();
+        unflushed = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Index of the first set bit at or after from, or -1. Skips whole zero bytes.
+     */
+    public synchronized int nextSetBit(int from) {
+        int inMap = next(from, true);
+        int inPending = pending.nextSetBit(Math.max(from, 0));
+        if (inMap < 0) return inPending;
+        return inPending < 0 ? inMap : Math.min(inMap, inPending);
+    }
+
+    /**
+     * Index of the first clear bit at or after from, or totalChunks if there is none.
+     */
+    public synchronized int nextClearBit(int from) {
+        int i = next(from, false);
+        while (i >= 0 && pending.get(i)) i = next(i + 1, false); // pending holds few bits
+        return i < 0 ? totalChunks : i;
+    }
+
+    private int next(int from, boolean set) {
+        if (from < 0) from = 0;
+        int skip = set ? 0x00 : 0xFF;
+        int i = from;
+        while (i < totalChunks) {
+            int b = map.get(HEADER_SIZE + (i >>> 3)) & 0xFF;
+            if ((i & 7) == 0 && b == skip) {
+                i += 8;
+                continue;
+            }
+            if (((b >>> (i & 7)) & 1) == (set ? 1 : 0)) return i;
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Copy of the bits as a BitSet (same bit order, no per-index work).
+     */
+    public synchronized BitSet toBitSet() {
+        BitSet bits = BitSet.valueOf(map.duplicate().position(HEADER_SIZE).limit(map.capacity()));
+        bits.or(pending);
+        return bits;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) return;
+        unflushed = Math.max(unflushed, 1);
+        flush();
+        channel.close();
+    }
+
+    private void checkIndex(int idx) {
+        if (idx < 0 || idx >= totalChunks) throw new IndexOutOfBoundsException("chunk index " + idx + " of " + totalChunks);
+    }
+}
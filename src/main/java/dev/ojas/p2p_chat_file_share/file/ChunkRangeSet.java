@@ -0,0 +1,253 @@
+package dev.ojas.p2p_chat_file_share.file;
+
+import java.io.ByteArrayOutputStream;
+import java.util.BitSet;
+
+/**
+ * ChunkRangeSet: set of chunk indices in [0, totalChunks), stored as a BitSet (64 indices per word)
+ * and read/written as runs, so nothing here ever boxes an index.
+ * - compact string form: "0-3,5,7-9" (FileChunkAckMessage.received / FileChunkRequestMessage.missing)
+ * - binary form: varint runCount, then per run varint(gap from previous run end), varint(run length)
+ * - converts straight from/to a ChunkBitmap (same bit layout)
+ */
+public final class ChunkRangeSet {
+    /**
+     * Receives one run [from, toInclusive].
+     */
+    public interface RangeConsumer {
+        void accept(int from, int toInclusive);
+    }
+
+    private final int totalChunks;
+    private final BitSet bits;
+
+    public ChunkRangeSet(int totalChunks) {
+        this(totalChunks, new BitSet(totalChunks));
+    }
+
+    private ChunkRangeSet(int totalChunks, BitSet bits) {
+        this.totalChunks = totalChunks;
+        this.bits = bits;
+    }
+
+    public static ChunkRangeSet fromBitmap(ChunkBitmap bitmap) {
+        return new ChunkRangeSet(bitmap.totalChunks(), bitmap.toBitSet());
+    }
+
+    /**
+     * Wrap a copy of the given bits, dropping any index outside [0, totalChunks).
+     */
+    public static ChunkRangeSet fromBitSet(BitSet source, int totalChunks) {
+        BitSet copy = (BitSet) source.clone();
+        if (copy.length() > totalChunks) copy.clear(totalChunks, copy.length());
+        return new ChunkRangeSet(totalChunks, copy);
+    }
+
+    public int totalChunks() {
+        return totalChunks;
+    }
+
+    public boolean contains(int idx) {
+        return bits.get(idx);
+    }
+
+    public void add(int idx) {
+        checkIndex(idx);
+        bits.set(idx);
+    }
+
+    /**
+     * Add the run [from, toInclusive], clipped to [0, totalChunks).
+     */
+    public void addRange(int from, int toInclusive) {
+        from = Math.max(from, 0);
+        toInclusive = Math.min(toInclusive, totalChunks - 1);
+        if (from <= toInclusive) bits.set(from, toInclusive + 1);
+    }
+
+    public void remove(int idx) {
+        bits.clear(idx);
+    }
+
+    public int cardinality() {
+        return bits.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return bits.isEmpty();
+    }
+
+    public boolean isFull() {
+        return bits.cardinality() == totalChunks;
+    }
+
+    public int nextSetBit(int from) {
+        return bits.nextSetBit(from);
+    }
+
+    /**
+     * First index >= from that is not in the set, or totalChunks.
+     */
+    public int nextClearBit(int from) {
+        return Math.min(bits.nextClearBit(from), totalChunks);
+    }
+
+    /**
+     * Every index in [0, totalChunks) that is not in this set (e.g. received -> missing).
+     */
+    public ChunkRangeSet complement() {
+        BitSet inverse = (BitSet) bits.clone();
+        inverse.flip(0, totalChunks);
+        return new ChunkRangeSet(totalChunks, inverse);
+    }
+
+    public ChunkRangeSet andNot(ChunkRangeSet other) {
+        BitSet result = (BitSet) bits.clone();
+        result.andNot(other.bits);
+        return new ChunkRangeSet(totalChunks, result);
+    }
+
+    /**
+     * Copy of the underlying bits.
+     */
+    public BitSet toBitSet() {
+        return (BitSet) bits.clone();
+    }
+
+    /**
+     * Set every index of this set in the bitmap.
+     */
+    public void setInto(ChunkBitmap bitmap) {
+        for (int i = bits.nextSetBit(0); i >= 0 && i < bitmap.totalChunks(); i = bits.nextSetBit(i + 1)) bitmap.set(i);
+    }
+
+    public void forEachRange(RangeConsumer consumer) {
+        for (int from = bits.nextSetBit(0); from >= 0 && from < totalChunks; ) {
+            int end = Math.min(bits.nextClearBit(from), totalChunks);
+            consumer.accept(from, end - 1);
+            from = bits.nextSetBit(end);
+        }
+    }
+
+    // ---- compact string form ----
+
+    /**
+     * Parse "0-3,5,7-9" (whitespace tolerated). Indices outside [0, totalChunks) are dropped.
+     */
+    public static ChunkRangeSet parse(CharSequence s, int totalChunks) {
+        ChunkRangeSet set = new ChunkRangeSet(totalChunks);
+        if (s == null) return set;
+        int i = 0, n = s.length();
+        while (i < n) {
+            i = skipSpaces(s, i);
+            if (i >= n) break;
+            if (s.charAt(i) == ',') {
+                i++;
+                continue;
+            }
+            int start = i;
+            long from = 0;
+            while (i < n && isDigit(s.charAt(i))) from = Math.min(from * 10 + (s.charAt(i++) - '0'), Integer.MAX_VALUE);
+            if (i == start) throw new IllegalArgumentException("bad range list at " + start + ": " + s);
+            long to = from;
+            i = skipSpaces(s, i);
+            if (i < n && s.charAt(i) == '-') {
+                i = skipSpaces(s, i + 1);
+                start = i;
+                to = 0;
+                while (i < n && isDigit(s.charAt(i))) to = Math.min(to * 10 + (s.charAt(i++) - '0'), Integer.MAX_VALUE);
+                if (i == start) throw new IllegalArgumentException("bad range list at " + start + ": " + s);
+            }
+            i = skipSpaces(s, i);
+            if (i < n && s.charAt(i) != ',') throw new IllegalArgumentException("bad range list at " + i + ": " + s);
+            set.addRange((int) from, (int) to);
+        }
+        return set;
+    }
+
+    public String toCompactString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    public void appendTo(StringBuilder sb) {
+        int start = sb.length();
+        forEachRange((from, to) -> {
+            if (sb.length() > start) sb.append(',');
+            sb.append(from);
+            if (to > from) sb.append('-').append(to);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return toCompactString();
+    }
+
+    // ---- binary form ----
+
+    public byte[] toBytes() {
+        int[] runs = {0};
+        forEachRange((from, to) -> runs[0]++);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + runs[0] * 4);
+        writeVarint(out, runs[0]);
+        int[] prevEnd = {0};
+        forEachRange((from, to) -> {
+            writeVarint(out, from - prevEnd[0]);
+            writeVarint(out, to - from + 1);
+            prevEnd[0] = to + 1;
+        });
+        return out.toByteArray();
+    }
+
+    public static ChunkRangeSet fromBytes(byte[] data, int totalChunks) {
+        ChunkRangeSet set = new ChunkRangeSet(totalChunks);
+        int[] pos = {0};
+        int runs = readVarint(data, pos);
+        long cursor = 0;
+        for (int r = 0; r < runs; r++) {
+            cursor += readVarint(data, pos);
+            long length = readVarint(data, pos);
+            if (length <= 0 || cursor + length > totalChunks) throw new IllegalArgumentException("range out of bounds");
+            set.bits.set((int) cursor, (int) (cursor + length));
+            cursor += length;
+        }
+        return set;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] >= data.length) throw new IllegalArgumentException("truncated range set");
+            int b = data[pos[0]++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) throw new IllegalArgumentException("bad varint");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("bad varint");
+    }
+
+    private static int skipSpaces(CharSequence s, int i) {
+        while (i < s.length() && s.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void checkIndex(int idx) {
+        if (idx < 0 || idx >= totalChunks) throw new IndexOutOfBoundsException("chunk index " + idx + " of " + totalChunks);
+    }
+}
@@ -3,9 +3,12 @@ package dev.ojas.p2p_chat_file_share.file;
 import dev.ojas.p2p_chat_file_share.message.data.FileChunkMessage;
 import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
 
-import java.io.FileOutputStream;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.util.BitSet;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.HashSet;
 import java.util.Set;
@@ -13,46 +16,119 @@ import java.util.Set;
 /**
  * FileAssembler: store incoming encrypted chunk payloads on disk (as received), track missing chunks,
  * and reassemble when complete. Works with FileChunker persisted chunk files style (iv||ct).
+ * <p>
+ * Direct mode (the constructor taking an output file): each chunk is verified, decrypted and written
+ * straight to its offset (chunkIndex * chunkSize) in the output file. No per-chunk files and no final
+ * reassembly pass. The output file is only sized to fileSize, not preallocated: it stays sparse and
+ * takes disk space as chunks land, so running out of space shows up as a failed chunk write.
+ * <p>
+ * With a Merkle root set (from a verified FileMetadataMessage), every chunk must carry its audit path and
+ * is checked against the root before it is stored, so chunks from untrusted peers are safe to accept.
  */
 public class FileAssembler {
     private final Path workDir; // per-node working dir for chunks
     private final String fileId;
     private final int totalChunks;
-    private final BitSet received;
-    private final Path metaPath;
+    private final ChunkBitmap received; // <fileId>.bitmap, see ChunkBitmap
+    // direct mode only (null otherwise)
+    private final Path outputFile;
+    private final SecretKey fileKey;
+    private final int chunkSize;
+    private final long fileSize;
+    private FileChannel output;
+    private ByteBuffer plainBuffer; // reused decrypt target, one chunk
+    private byte[] merkleRoot; // null = only the per-chunk hash is checked
 
     public FileAssembler(Path workDir, String fileId, int totalChunks) throws Exception {
+        this(workDir, fileId, totalChunks, ChunkBitmap.FlushPolicy.DEFAULT);
+    }
+
+    public FileAssembler(Path workDir, String fileId, int totalChunks, ChunkBitmap.FlushPolicy flushPolicy) throws Exception {
+        this.workDir = workDir;
+        this.fileId = fileId;
+        this.totalChunks = totalChunks;
+        this.outputFile = null;
+        this.fileKey = null;
+        this.chunkSize = 0;
+        this.fileSize = 0;
+        this.received = openBitmap(flushPolicy);
+    }
+
+    /**
+     * Direct-to-destination assembler. chunkSize/fileSize come from the FileMetadataMessage.
+     * Reopening an existing output file resumes: chunks already recorded in the bitmap are kept.
+     */
+    public FileAssembler(Path workDir, String fileId, int totalChunks, int chunkSize, long fileSize,
+                         Path outputFile, byte[] fileKey) throws Exception {
+        this(workDir, fileId, totalChunks, chunkSize, fileSize, outputFile, fileKey, ChunkBitmap.FlushPolicy.DEFAULT);
+    }
+
+    public FileAssembler(Path workDir, String fileId, int totalChunks, int chunkSize, long fileSize,
+                         Path outputFile, byte[] fileKey, ChunkBitmap.FlushPolicy flushPolicy) throws Exception {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be positive");
+        if (fileSize > (long) chunkSize * totalChunks || fileSize <= (long) chunkSize * (totalChunks - 1))
+            throw new IllegalArgumentException("fileSize " + fileSize + " does not match " + totalChunks + " chunks of " + chunkSize);
         this.workDir = workDir;
         this.fileId = fileId;
         this.totalChunks = totalChunks;
-        this.received = new BitSet(totalChunks);
-        this.metaPath = workDir.resolve(fileId + ".meta");
-        loadMeta();
-    }
-
-    private void loadMeta() throws Exception {
-        if (!metaPath.toFile().exists()) return;
-        byte[] raw = java.nio.file.Files.readAllBytes(metaPath);
-        String s = new String(raw, java.nio.charset.StandardCharsets.UTF_8);
-        if (s.trim().isEmpty()) return;
-        String[] parts = s.split(",");
-        for (String p : parts) {
-            if (p.trim().isEmpty()) continue;
-            received.set(Integer.parseInt(p.trim()));
+        this.outputFile = outputFile;
+        this.fileKey = CryptoUtils.aesKey(fileKey);
+        this.chunkSize = chunkSize;
+        this.fileSize = fileSize;
+        this.received = openBitmap(flushPolicy);
+        this.output = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // set the final length up front so every chunk has its offset; this leaves a sparse file and reserves
+        // no disk space, so a full disk still shows up as a failed chunk write
+        if (output.size() != fileSize) {
+            if (output.size() > fileSize) output.truncate(fileSize);
+            else output.write(ByteBuffer.allocate(1), fileSize - 1);
         }
     }
 
-    private void persistMeta() throws Exception {
-        StringBuilder sb = new StringBuilder();
-        for (int i = received.nextSetBit(0); i >= 0 && i < totalChunks; i = received.nextSetBit(i + 1)) {
-            if (!sb.isEmpty()) sb.append(",");
-            sb.append(i);
+    /**
+     * Require every chunk from now on to verify against this root (see MerkleTree).
+     */
+    public synchronized void setMerkleRoot(byte[] merkleRoot) {
+        if (merkleRoot != null && merkleRoot.length != MerkleTree.HASH_SIZE) throw new IllegalArgumentException("Merkle root must be 32 bytes");
+        this.merkleRoot = merkleRoot == null ? null : merkleRoot.clone();
+    }
+
+    public boolean isDirect() {
+        return outputFile != null;
+    }
+
+    /**
+     * Open the chunk bitmap, importing a legacy comma-separated <fileId>.meta once if one is left over.
+     */
+    private ChunkBitmap openBitmap(ChunkBitmap.FlushPolicy flushPolicy) throws Exception {
+        java.nio.file.Files.createDirectories(workDir);
+        Path bitmapPath = workDir.resolve(fileId + ".bitmap");
+        Path legacyMeta = workDir.resolve(fileId + ".meta");
+        boolean migrate = !java.nio.file.Files.exists(bitmapPath) && java.nio.file.Files.exists(legacyMeta);
+        ChunkBitmap bitmap = new ChunkBitmap(bitmapPath, totalChunks, flushPolicy);
+        if (migrate) {
+            ChunkRangeSet.parse(java.nio.file.Files.readString(legacyMeta).trim(), totalChunks).setInto(bitmap);
+            bitmap.flush();
+            java.nio.file.Files.delete(legacyMeta);
         }
-        java.nio.file.Files.writeString(metaPath, sb.toString());
+        return bitmap;
     }
 
     /**
-     * Accept incoming FileChunkMessage (encryptedChunkData is Base64(iv||ct)).
+     * Mark a chunk as stored. The bit stays in memory until ChunkBitmap.flush(); in direct mode the
+     * written data is forced first, so a bit on disk never claims data that could still be lost in a crash.
+     */
+    private void recordReceived(int idx) throws Exception {
+        received.set(idx);
+        if (received.flushDue()) {
+            if (isDirect()) output.force(false);
+            received.flush();
+        }
+    }
+
+    /**
+     * Accept incoming FileChunkMessage. Either binary (chunkData = raw iv||ct, chunkHashBytes = raw SHA-256)
+     * or JSON (encryptedChunkData is Base64(iv||ct), chunkHash is hex).
      * Save chunk to disk and mark received.
      * Returns true if newly stored, false if duplicate/older.
      */
@@ -60,35 +136,100 @@ public class FileAssembler {
         int idx = m.getChunkIndex();
         if (idx < 0 || idx >= totalChunks) throw new IllegalArgumentException("invalid chunk index");
         if (received.get(idx)) return false; // duplicate
+
+        ByteBuffer data;
+        byte[] expectedHash = null;
+        byte[] proof;
+        if (m.getChunkData() != null) {
+            data = m.getChunkData().duplicate();
+            expectedHash = m.getChunkHashBytes();
+            proof = m.getMerkleProofBytes();
+        } else {
+            data = ByteBuffer.wrap(Base64.getDecoder().decode(m.getEncryptedChunkData()));
+            if (m.getChunkHash() != null && !m.getChunkHash().isEmpty()) expectedHash = CryptoUtils.fromHex(m.getChunkHash());
+            proof = m.getMerkleProof() == null ? null : Base64.getDecoder().decode(m.getMerkleProof());
+        }
+
+        // verify chunkHash and, with a root, the audit path (before anything touches the disk)
+        byte[] actualHash = CryptoUtils.sha256(data);
+        if (expectedHash != null && !MessageDigest.isEqual(expectedHash, actualHash)) {
+            throw new IllegalStateException("chunk hash mismatch for " + idx);
+        }
+        if (merkleRoot != null && !MerkleTree.verify(merkleRoot, idx, totalChunks, actualHash, proof == null ? new byte[0] : proof)) {
+            throw new IllegalStateException("Merkle proof failed for chunk " + idx);
+        }
+
+        if (isDirect()) {
+            writeDecrypted(idx, data);
+            recordReceived(idx);
+            return true;
+        }
+
         // save chunk file
-        byte[] merged = Base64.getDecoder().decode(m.getEncryptedChunkData());
         Path chunkPath = workDir.resolve(fileId + ".chunk." + idx);
-        java.nio.file.Files.write(chunkPath, merged);
-
-        // optional verify chunkHash
-        if (m.getChunkHash() != null && !m.getChunkHash().isEmpty()) {
-            String gotHex = CryptoUtils.toHex(CryptoUtils.sha256(merged));
-            if (!gotHex.equalsIgnoreCase(m.getChunkHash())) {
-                // chunk corrupted: delete and return false
-                java.nio.file.Files.deleteIfExists(chunkPath);
-                throw new IllegalStateException("chunk hash mismatch for " + idx);
-            }
+        try (FileChannel ch = FileChannel.open(chunkPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) ch.write(data);
         }
 
-        received.set(idx);
-        persistMeta();
+        recordReceived(idx);
         return true;
     }
 
+    /**
+     * Direct mode: decrypt iv||ct and write the plaintext at its final offset.
+     */
+    private void writeDecrypted(int idx, ByteBuffer data) throws Exception {
+        long offset = (long) idx * chunkSize;
+        long expected = Math.min(chunkSize, fileSize - offset);
+        int plainLength = data.remaining() - CryptoUtils.GCM_IV_LENGTH - CryptoUtils.GCM_TAG_LENGTH;
+        if (plainLength != expected)
+            throw new IllegalStateException("chunk " + idx + " holds " + plainLength + " bytes, expected " + expected);
+        ByteBuffer plain = plainBuffer(plainLength);
+        CryptoUtils.aesGcmOpen(fileKey, data.duplicate(), plain);
+        plain.flip();
+        while (plain.hasRemaining()) output.write(plain, offset + plain.position());
+    }
+
+    private ByteBuffer plainBuffer(int length) {
+        if (plainBuffer == null || plainBuffer.capacity() < length) plainBuffer = ByteBuffer.allocate(Math.max(length, chunkSize));
+        return plainBuffer.clear();
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public synchronized boolean isComplete() {
+        return received.cardinality() == totalChunks;
+    }
+
+    /**
+     * Received chunks as runs, read straight off the bitmap.
+     */
+    public synchronized ChunkRangeSet getReceivedRanges() {
+        return ChunkRangeSet.fromBitmap(received);
+    }
+
+    public synchronized ChunkRangeSet getMissingRanges() {
+        return ChunkRangeSet.fromBitmap(received).complement();
+    }
+
+    /**
+     * Boxed view of getMissingRanges(); prefer the range set for anything sized by totalChunks.
+     */
     public synchronized Set<Integer> getMissingChunks() {
         Set<Integer> missing = new HashSet<>();
-        for (int i = 0; i < totalChunks; i++) if (!received.get(i)) missing.add(i);
+        for (int i = received.nextClearBit(0); i < totalChunks; i = received.nextClearBit(i + 1)) missing.add(i);
         return missing;
     }
 
+    /**
+     * Boxed view of getReceivedRanges(); prefer the range set for anything sized by totalChunks.
+     */
     public synchronized Set<Integer> getReceivedSet() {
         Set<Integer> recvd = new HashSet<>();
-        for (int i = received.nextSetBit(0); i >= 0 && i < totalChunks; i = received.nextSetBit(i + 1)) recvd.add(i);
+        for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) recvd.add(i);
         return recvd;
     }
 
@@ -99,20 +240,46 @@ public class FileAssembler {
     public synchronized void assembleTo(Path outputFile, byte[] fileKey) throws Exception {
         if (received.cardinality() != totalChunks)
             throw new IllegalStateException("not all chunks received: have " + received.cardinality() + " of " + totalChunks);
+        if (isDirect()) {
+            // plaintext is already in place; close() forces it, then the bitmap, and it is moved if asked to
+            close();
+            if (!outputFile.equals(this.outputFile))
+                java.nio.file.Files.move(this.outputFile, outputFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
 
-        try (FileOutputStream out = new FileOutputStream(outputFile.toFile())) {
+        received.flush();
+        try (FileChannel out = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SecretKey key = CryptoUtils.aesKey(fileKey);
+            ByteBuffer sealed = ByteBuffer.allocate(0);
             for (int i = 0; i < totalChunks; i++) {
-                Path chunkPath = workDir.resolve(fileId + ".chunk." + i);
-                byte[] merged = java.nio.file.Files.readAllBytes(chunkPath);
-                // split iv (12 bytes) and ciphertext
-                byte[] iv = java.util.Arrays.copyOfRange(merged, 0, 12);
-                byte[] ct = java.util.Arrays.copyOfRange(merged, 12, merged.length);
-                // decrypt using CryptoUtils.aesGcmDecryptFromBase64, but it expects base64. So convert:
-                String ivB64 = CryptoUtils.toBase64(iv);
-                String ctB64 = CryptoUtils.toBase64(ct);
-                byte[] plain = CryptoUtils.aesGcmDecryptFromBase64(fileKey, ivB64, ctB64);
-                out.write(plain);
+                try (FileChannel in = FileChannel.open(workDir.resolve(fileId + ".chunk." + i), StandardOpenOption.READ)) {
+                    int size = (int) in.size();
+                    if (sealed.capacity() < size) sealed = ByteBuffer.allocate(size);
+                    sealed.clear().limit(size);
+                    while (sealed.hasRemaining()) {
+                        if (in.read(sealed) < 0) throw new IllegalStateException("chunk " + i + " truncated");
+                    }
+                }
+                sealed.flip();
+                // chunk files are iv||ct: decrypt straight into the reused plaintext buffer
+                ByteBuffer plain = plainBuffer(sealed.remaining());
+                CryptoUtils.aesGcmOpen(key, sealed, plain);
+                plain.flip();
+                while (plain.hasRemaining()) out.write(plain);
             }
         }
     }
+
+    /**
+     * Flush the output file (direct mode) and then the bitmap, and release both. Safe to call more than once.
+     */
+    public synchronized void close() throws Exception {
+        if (output != null && output.isOpen()) {
+            output.force(true);
+            output.close();
+        }
+        received.close();
+    }
 }
@@ -1,35 +1,58 @@
 package dev.ojas.p2p_chat_file_share.file;
 
 import dev.ojas.p2p_chat_file_share.message.data.FileChunkMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileMetadataMessage;
+import dev.ojas.p2p_chat_file_share.transport.FileChunkCodec;
+import dev.ojas.p2p_chat_file_share.transport.PeerConnection;
 import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
+import javax.crypto.SecretKey;
 import java.io.File;
-import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.util.Base64;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * FileChunker: read file, produce encrypted chunk messages using AES-GCM with provided fileKey.
  * - chunk storage: <workDir>/<fileId>.chunk.<index>
- * - encrypted format for chunk payload: BASE64(iv || ciphertext)
+ * - chunk hashes: <workDir>/<fileId>.hashes (SHA-256 of each chunk file, 32 bytes per index)
+ * - Merkle tree over those hashes (see MerkleTree): the root goes into the signed FileMetadataMessage,
+ *   every outgoing chunk carries its audit path
+ * - encrypted format for chunk payload: iv || ciphertext (CryptoUtils.aesGcmSeal); BASE64 of it in JSON messages
  */
 @Component
 public class FileChunker {
+    private static final int HASH_SIZE = FileChunkCodec.HASH_SIZE;
+
     @Autowired
     private Environment environment;
     private final int chunkSize;
-    private final byte[] fileKey; // 32 bytes AES key
+    private final SecretKey fileKey; // 32-byte AES key, one spec for every chunk
     private final Path workDir;
+    private final Map<String, MerkleTree> merkleTrees = new ConcurrentHashMap<>();
 
     public FileChunker(int chunkSize, byte[] fileKey, Path workDir) throws NullPointerException {
         int maxChunkSize = Integer.parseInt(Objects.requireNonNull(environment.getProperty("p2pcf.file.max-chunk-size")));
         this.chunkSize = Math.min(chunkSize, maxChunkSize);
-        this.fileKey = fileKey.clone();
+        this.fileKey = CryptoUtils.aesKey(fileKey);
         this.workDir = workDir;
         File d = workDir.toFile();
         if (!d.exists()) d.mkdirs();
@@ -38,7 +61,7 @@ public class FileChunker {
     public FileChunker(int chunkSize, byte[] fileKey, String workDirPathString) throws NullPointerException {
         int maxChunkSize = Integer.parseInt(Objects.requireNonNull(environment.getProperty("p2pcf.file.max-chunk-size")));
         this.chunkSize = Math.min(chunkSize, maxChunkSize);
-        this.fileKey = fileKey.clone();
+        this.fileKey = CryptoUtils.aesKey(fileKey);
         this.workDir = Paths.get(workDirPathString);
         File d = this.workDir.toFile();
         if (!d.exists()) d.mkdirs();
@@ -46,7 +69,7 @@ public class FileChunker {
 
     public FileChunker(byte[] fileKey, Path workDir) throws NullPointerException{
         this.chunkSize = Integer.parseInt(Objects.requireNonNull(environment.getProperty("p2pcf.file.default-chunk-size")));
-        this.fileKey = fileKey;
+        this.fileKey = CryptoUtils.aesKey(fileKey);
         this.workDir = workDir;
         File d = workDir.toFile();
         if(!d.exists()) d.mkdirs();
@@ -54,7 +77,7 @@ public class FileChunker {
 
     public FileChunker(byte[] fileKey, String workDirPathString) throws NullPointerException {
         this.chunkSize = Integer.parseInt(Objects.requireNonNull(environment.getProperty("p2pcf.file.default-chunk-size")));
-        this.fileKey = fileKey;
+        this.fileKey = CryptoUtils.aesKey(fileKey);
         this.workDir = Paths.get(workDirPathString);
         File d = this.workDir.toFile();
         if(!d.exists()) d.mkdirs();
@@ -67,32 +90,131 @@ public class FileChunker {
     public int chunkFile(Path filePath, String fileId) throws Exception {
         File f = filePath.toFile();
         if (!f.exists()) throw new IllegalArgumentException("file not found: " + filePath);
-        try (FileInputStream fis = new FileInputStream(f)) {
-            byte[] buf = new byte[chunkSize];
-            int read;
+        try (FileChannel in = FileChannel.open(filePath, StandardOpenOption.READ);
+             FileChannel hashes = FileChannel.open(hashesPath(fileId), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // both buffers are reused for every chunk: read -> seal (iv||ct) -> hash -> write
+            ByteBuffer plain = ByteBuffer.allocate(chunkSize);
+            ByteBuffer sealed = ByteBuffer.allocate(CryptoUtils.aesGcmSealedSize(chunkSize));
             int idx = 0;
-            while ((read = fis.read(buf)) != -1) {
-                byte[] plain = (read == buf.length) ? buf : java.util.Arrays.copyOf(buf, read);
-                // encrypt chunk
-                java.util.Map<String, String> enc = CryptoUtils.aesGcmEncryptToBase64(fileKey, plain);
-                // combine iv + ct into single Base64 payload for transport (iv bytes + ciphertext bytes)
-                byte[] iv = CryptoUtils.fromBase64(enc.get("iv"));
-                byte[] ct = CryptoUtils.fromBase64(enc.get("ct"));
-                byte[] merged = new byte[iv.length + ct.length];
-                System.arraycopy(iv, 0, merged, 0, iv.length);
-                System.arraycopy(ct, 0, merged, iv.length, ct.length);
-                String mergedB64 = Base64.getEncoder().encodeToString(merged);
+            long position = 0;
+            while (true) {
+                int read = readFully(in, plain.array(), position);
+                if (read <= 0) break;
+                position += read;
+                plain.clear().limit(read);
+                sealed.clear();
+                CryptoUtils.aesGcmSeal(fileKey, plain, sealed);
+                sealed.flip();
 
+                // hash first, so senders never have to read the chunk back just to hash it
+                hashes.write(ByteBuffer.wrap(CryptoUtils.sha256(sealed)), (long) idx * HASH_SIZE);
                 // persist chunk to disk for resume / resend
-                Path chunkPath = workDir.resolve(fileId + ".chunk." + idx);
-                java.nio.file.Files.write(chunkPath, merged);
+                writeChunk(fileId, idx, sealed);
 
                 idx++;
+                if (read < chunkSize) break; // short read only happens at EOF
             }
+            if (idx > 0) merkleTrees.put(fileId, MerkleTree.fromHashesFile(hashesPath(fileId), idx)); // empty file: no tree
             return idx; // total chunks
         }
     }
 
+    /**
+     * Parallel version of chunkFile using all available cores.
+     */
+    public int chunkFileParallel(Path filePath, String fileId) throws Exception {
+        return chunkFileParallel(filePath, fileId, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Parallel version of chunkFile: same chunk files, same iv||ct format, same hashes file, same count.
+     * - the caller's thread reads chunks in order
+     * - a pool of `parallelism` workers encrypts and hashes them
+     * - one writer thread persists the results (chunk files are independent, so order doesn't matter)
+     * At most 2 * parallelism chunks are in flight at once, which bounds memory to that many buffers.
+     */
+    public int chunkFileParallel(Path filePath, String fileId, int parallelism) throws Exception {
+        File f = filePath.toFile();
+        if (!f.exists()) throw new IllegalArgumentException("file not found: " + filePath);
+        int workers = Math.max(1, parallelism);
+        int inFlight = workers * 2;
+
+        Semaphore permits = new Semaphore(inFlight);
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(inFlight);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        ExecutorService encryptors = Executors.newFixedThreadPool(workers);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+
+        try (FileChannel in = FileChannel.open(filePath, StandardOpenOption.READ);
+             FileChannel hashes = FileChannel.open(hashesPath(fileId), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int idx = 0;
+            long position = 0;
+            while (failure.get() == null) {
+                permits.acquire();
+                byte[] buf = buffers.poll();
+                if (buf == null) buf = new byte[chunkSize];
+                int read = readFully(in, buf, position);
+                if (read <= 0) {
+                    buffers.offer(buf);
+                    permits.release();
+                    break;
+                }
+                position += read;
+
+                final int index = idx++;
+                final byte[] chunkBuf = buf;
+                encryptors.execute(() -> {
+                    try {
+                        byte[] merged = new byte[CryptoUtils.aesGcmSealedSize(read)];
+                        CryptoUtils.aesGcmSeal(fileKey, ByteBuffer.wrap(chunkBuf, 0, read), ByteBuffer.wrap(merged));
+                        byte[] hash = CryptoUtils.sha256(merged);
+                        buffers.offer(chunkBuf);
+                        writer.execute(() -> {
+                            try {
+                                java.nio.file.Files.write(workDir.resolve(fileId + ".chunk." + index), merged);
+                                hashes.write(ByteBuffer.wrap(hash), (long) index * HASH_SIZE);
+                            } catch (Exception e) {
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                permits.release();
+                            }
+                        });
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        permits.release();
+                    }
+                });
+                if (read < chunkBuf.length) break; // short read only happens at EOF
+            }
+            // every permit back means every chunk has been written (or failed)
+            permits.acquire(inFlight);
+            if (failure.get() != null) throw failure.get();
+            if (idx > 0) merkleTrees.put(fileId, MerkleTree.fromHashesFile(hashesPath(fileId), idx)); // empty file: no tree
+            return idx; // total chunks
+        } finally {
+            encryptors.shutdownNow();
+            writer.shutdownNow();
+        }
+    }
+
+    private static int readFully(FileChannel in, byte[] buf, long position) throws java.io.IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf);
+        while (dst.hasRemaining()) {
+            int n = in.read(dst, position + dst.position());
+            if (n < 0) break;
+        }
+        return dst.position();
+    }
+
+    private void writeChunk(String fileId, int idx, ByteBuffer sealed) throws java.io.IOException {
+        try (FileChannel out = FileChannel.open(workDir.resolve(fileId + ".chunk." + idx), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (sealed.hasRemaining()) out.write(sealed);
+        }
+    }
+
     /**
      * Build a FileChunkMessage for a chunk index by reading the persisted chunk file (so we don't re-encrypt).
      */
@@ -113,6 +235,128 @@ public class FileChunker {
         // chunkHash optionally compute SHA-256 of merged bytes
         fcm.setChunkHash(CryptoUtils.toHex(CryptoUtils.sha256(merged)));
         fcm.setEncryptedChunkData(mergedB64);
+        fcm.setMerkleProof(CryptoUtils.toBase64(merkleTree(fileId, totalChunks).proof(chunkIndex)));
+        return fcm;
+    }
+
+    /**
+     * Same as buildChunkMessage but in binary form: chunkData holds the raw iv||ct and chunkHashBytes
+     * the raw SHA-256, so the transport sends it as a FileChunkCodec frame with no Base64/hex step.
+     */
+    public FileChunkMessage buildRawChunkMessage(String fileId, int chunkIndex, int totalChunks, String fromNodeId, String toNodeId) throws Exception {
+        Path chunkPath = workDir.resolve(fileId + ".chunk." + chunkIndex);
+        if (!chunkPath.toFile().exists()) throw new IllegalArgumentException("missing chunk file: " + chunkPath);
+
+        byte[] merged = java.nio.file.Files.readAllBytes(chunkPath);
+
+        FileChunkMessage fcm = new FileChunkMessage();
+        fcm.setFrom(fromNodeId);
+        fcm.setTo(toNodeId);
+        fcm.setFileId(fileId);
+        fcm.setChunkIndex(chunkIndex);
+        fcm.setTotalChunks(totalChunks);
+        fcm.setChunkHashBytes(readChunkHash(fileId, chunkIndex));
+        fcm.setChunkData(ByteBuffer.wrap(merged));
+        fcm.setMerkleProofBytes(merkleTree(fileId, totalChunks).proof(chunkIndex));
         return fcm;
     }
+
+    /**
+     * Zero-copy send: queue a FileChunkCodec header and let the connection stream the persisted
+     * chunk file to the socket with FileChannel.transferTo. The iv||ct bytes never enter the heap,
+     * so serving the same file to many peers costs no per-send copies or garbage.
+     */
+    public void sendChunk(PeerConnection connection, String fileId, int chunkIndex, int totalChunks) throws Exception {
+        Path chunkPath = workDir.resolve(fileId + ".chunk." + chunkIndex);
+        FileChannel chunk = FileChannel.open(chunkPath, StandardOpenOption.READ);
+        try {
+            long size = chunk.size();
+            byte[] fileIdBytes = fileId.getBytes(StandardCharsets.UTF_8);
+            byte[] proof = merkleTree(fileId, totalChunks).proof(chunkIndex);
+            ByteBuffer header = ByteBuffer.allocate(FileChunkCodec.headerSize(fileIdBytes, proof));
+            FileChunkCodec.encodeHeader(header, fileIdBytes, chunkIndex, totalChunks, readChunkHash(fileId, chunkIndex),
+                    proof, (int) size);
+            connection.sendFileRegion(header.flip(), chunk, 0, size);
+        } catch (Exception e) {
+            chunk.close();
+            throw e;
+        }
+    }
+
+    /**
+     * SHA-256 of a persisted chunk, read from the hashes file written by chunkFile.
+     * Falls back to hashing the chunk file for chunks persisted before hashes were kept.
+     */
+    public byte[] readChunkHash(String fileId, int chunkIndex) throws Exception {
+        Path hashesPath = hashesPath(fileId);
+        if (java.nio.file.Files.exists(hashesPath)) {
+            try (FileChannel hashes = FileChannel.open(hashesPath, StandardOpenOption.READ)) {
+                ByteBuffer hash = ByteBuffer.allocate(HASH_SIZE);
+                long pos = (long) chunkIndex * HASH_SIZE;
+                while (hash.hasRemaining()) {
+                    if (hashes.read(hash, pos + hash.position()) < 0) break;
+                }
+                if (!hash.hasRemaining()) return hash.array();
+            }
+        }
+        return CryptoUtils.sha256(java.nio.file.Files.readAllBytes(workDir.resolve(fileId + ".chunk." + chunkIndex)));
+    }
+
+    /**
+     * Merkle tree of a chunked file. Built by chunkFile/chunkFileParallel; for files chunked earlier
+     * it is rebuilt once from the hashes file (or the chunk files when there is none).
+     */
+    public MerkleTree merkleTree(String fileId, int totalChunks) throws Exception {
+        MerkleTree tree = merkleTrees.get(fileId);
+        if (tree != null && tree.getLeafCount() == totalChunks) return tree;
+        if (!java.nio.file.Files.exists(hashesPath(fileId))) {
+            try (FileChannel hashes = FileChannel.open(hashesPath(fileId), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < totalChunks; i++) hashes.write(ByteBuffer.wrap(readChunkHash(fileId, i)), (long) i * HASH_SIZE);
+            }
+        }
+        tree = MerkleTree.fromHashesFile(hashesPath(fileId), totalChunks);
+        merkleTrees.put(fileId, tree);
+        return tree;
+    }
+
+    /**
+     * Metadata for a chunked file with the Merkle root, signed once by the sender.
+     * This signature is the only asymmetric operation per file; chunks are checked against the root.
+     */
+    public FileMetadataMessage buildMetadata(Path filePath, String fileId, int totalChunks, PrivateKey signer) throws Exception {
+        FileMetadataMessage m = new FileMetadataMessage();
+        m.setFileId(fileId);
+        m.setFileName(filePath.getFileName().toString());
+        m.setFileSize(java.nio.file.Files.size(filePath));
+        m.setChunkSize(chunkSize);
+        m.setTotalChunks(totalChunks);
+        byte[] root = totalChunks == 0 ? MerkleTree.emptyRoot() : merkleTree(fileId, totalChunks).getRoot();
+        m.setMerkleRoot(CryptoUtils.toHex(root));
+        m.setSignature(CryptoUtils.signToBase64(signer, createMetadataSignaturePayload(m)));
+        return m;
+    }
+
+    /**
+     * Verify a received FileMetadataMessage against the sender's public key.
+     */
+    public static boolean verifyMetadata(FileMetadataMessage m, PublicKey senderKey) throws Exception {
+        if (m.getSignature() == null || m.getMerkleRoot() == null) return false;
+        return CryptoUtils.verifyFromBase64(senderKey, createMetadataSignaturePayload(m), m.getSignature());
+    }
+
+    private static String createMetadataSignaturePayload(FileMetadataMessage m) {
+        StringBuilder payload = new StringBuilder();
+        payload.append("FILE_METADATA:");
+        payload.append(m.getFileId()).append(":");
+        payload.append(m.getFileName()).append(":");
+        payload.append(m.getFileSize()).append(":");
+        payload.append(m.getChunkSize()).append(":");
+        payload.append(m.getTotalChunks()).append(":");
+        payload.append(m.getMerkleRoot());
+        return payload.toString();
+    }
+
+    private Path hashesPath(String fileId) {
+        return workDir.resolve(fileId + ".hashes");
+    }
 }
@@ -0,0 +1,184 @@
+package dev.ojas.p2p_chat_file_share.file;
+
+import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.stream.IntStream;
+
+/**
+ * MerkleTree: binary SHA-256 tree over a file's chunk hashes (the SHA-256 of each iv||ct, as kept in
+ * <fileId>.hashes). The root is signed once in FileMetadataMessage; each chunk carries its audit path,
+ * so a chunk from any peer verifies on arrival with log2(totalChunks) hashes and no signature check.
+ * - leaf     = SHA-256(0x00 || chunkHash)
+ * - interior = SHA-256(0x01 || left || right)    (prefixes keep leaves and interior nodes apart)
+ * - a level with an odd count promotes its last node unchanged
+ * - audit path = sibling hashes bottom-up, 32 bytes each, levels without a sibling skipped
+ * - a file with no chunks has no tree; its root is EMPTY_ROOT = SHA-256 of nothing
+ */
+public final class MerkleTree {
+    public static final int HASH_SIZE = 32;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    private static final byte[] EMPTY_ROOT = CryptoUtils.sha256(new byte[0]);
+    private static final int PARALLEL_THRESHOLD = 4096; // nodes per level below which one thread is faster
+
+    private final int leafCount;
+    private final byte[][] levels; // levels[0] = leaves, last = root; each a flat array of 32-byte hashes
+
+    private MerkleTree(int leafCount, byte[][] levels) {
+        this.leafCount = leafCount;
+        this.levels = levels;
+    }
+
+    /**
+     * Build from chunk hashes laid out back to back (32 bytes per chunk). Levels with enough nodes
+     * are hashed in parallel on the common pool.
+     */
+    public static MerkleTree build(byte[] chunkHashes, int leafCount) {
+        if (leafCount <= 0) throw new IllegalArgumentException("empty tree");
+        if (chunkHashes.length < leafCount * HASH_SIZE) throw new IllegalArgumentException("not enough chunk hashes");
+        byte[][] levels = new byte[height(leafCount)][];
+        byte[] leaves = new byte[leafCount * HASH_SIZE];
+        range(leafCount).forEach(i -> {
+            MessageDigest md = CryptoUtils.sha256Digest();
+            md.update(LEAF_PREFIX);
+            md.update(chunkHashes, i * HASH_SIZE, HASH_SIZE);
+            digestInto(md, leaves, i);
+        });
+        levels[0] = leaves;
+        int count = leafCount;
+        for (int level = 1; level < levels.length; level++) {
+            byte[] below = levels[level - 1];
+            int belowCount = count;
+            count = (count + 1) / 2;
+            byte[] nodes = new byte[count * HASH_SIZE];
+            range(count).forEach(i -> {
+                int left = 2 * i;
+                if (left + 1 >= belowCount) {
+                    System.arraycopy(below, left * HASH_SIZE, nodes, i * HASH_SIZE, HASH_SIZE);
+                    return;
+                }
+                MessageDigest md = CryptoUtils.sha256Digest();
+                md.update(NODE_PREFIX);
+                md.update(below, left * HASH_SIZE, 2 * HASH_SIZE);
+                digestInto(md, nodes, i);
+            });
+            levels[level] = nodes;
+        }
+        return new MerkleTree(leafCount, levels);
+    }
+
+    /**
+     * Build from a <fileId>.hashes file written by FileChunker.
+     */
+    public static MerkleTree fromHashesFile(Path hashesPath, int leafCount) throws Exception {
+        byte[] hashes = new byte[leafCount * HASH_SIZE];
+        try (FileChannel in = FileChannel.open(hashesPath, StandardOpenOption.READ)) {
+            ByteBuffer dst = ByteBuffer.wrap(hashes);
+            while (dst.hasRemaining()) {
+                if (in.read(dst, dst.position()) < 0) throw new IllegalStateException("hashes file too short: " + hashesPath);
+            }
+        }
+        return build(hashes, leafCount);
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Root of a file with no chunks (a zero-byte file).
+     */
+    public static byte[] emptyRoot() {
+        return EMPTY_ROOT.clone();
+    }
+
+    public byte[] getRoot() {
+        return levels[levels.length - 1].clone();
+    }
+
+    /**
+     * Audit path for one chunk, sibling hashes bottom-up.
+     */
+    public byte[] proof(int chunkIndex) {
+        if (chunkIndex < 0 || chunkIndex >= leafCount) throw new IndexOutOfBoundsException("chunk index " + chunkIndex);
+        byte[] path = new byte[proofLength(chunkIndex, leafCount) * HASH_SIZE];
+        int idx = chunkIndex, count = leafCount, out = 0;
+        for (int level = 0; level < levels.length - 1; level++) {
+            int sibling = idx ^ 1;
+            if (sibling < count) {
+                System.arraycopy(levels[level], sibling * HASH_SIZE, path, out, HASH_SIZE);
+                out += HASH_SIZE;
+            }
+            idx >>= 1;
+            count = (count + 1) / 2;
+        }
+        return path;
+    }
+
+    /**
+     * Check a chunk hash against a trusted root with the chunk's audit path.
+     */
+    public static boolean verify(byte[] root, int chunkIndex, int leafCount, byte[] chunkHash, byte[] proof) {
+        if (root == null || chunkHash == null || proof == null) return false;
+        if (chunkIndex < 0 || chunkIndex >= leafCount || proof.length != proofLength(chunkIndex, leafCount) * HASH_SIZE)
+            return false;
+        MessageDigest md = CryptoUtils.sha256Digest();
+        md.update(LEAF_PREFIX);
+        md.update(chunkHash);
+        byte[] node = md.digest();
+        int idx = chunkIndex, count = leafCount, in = 0;
+        while (count > 1) {
+            int sibling = idx ^ 1;
+            if (sibling < count) {
+                md.update(NODE_PREFIX);
+                if ((idx & 1) == 0) {
+                    md.update(node);
+                    md.update(proof, in, HASH_SIZE);
+                } else {
+                    md.update(proof, in, HASH_SIZE);
+                    md.update(node);
+                }
+                node = md.digest();
+                in += HASH_SIZE;
+            }
+            idx >>= 1;
+            count = (count + 1) / 2;
+        }
+        return MessageDigest.isEqual(root, node);
+    }
+
+    /**
+     * Number of sibling hashes in the audit path of chunkIndex.
+     */
+    public static int proofLength(int chunkIndex, int leafCount) {
+        int length = 0;
+        for (int idx = chunkIndex, count = leafCount; count > 1; idx >>= 1, count = (count + 1) / 2) {
+            if ((idx ^ 1) < count) length++;
+        }
+        return length;
+    }
+
+    private static int height(int leafCount) {
+        int height = 1;
+        for (int count = leafCount; count > 1; count = (count + 1) / 2) height++;
+        return height;
+    }
+
+    private static IntStream range(int count) {
+        IntStream range = IntStream.range(0, count);
+        return count >= PARALLEL_THRESHOLD ? range.parallel() : range;
+    }
+
+    private static void digestInto(MessageDigest md, byte[] dst, int index) {
+        try {
+            md.digest(dst, index * HASH_SIZE, HASH_SIZE);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
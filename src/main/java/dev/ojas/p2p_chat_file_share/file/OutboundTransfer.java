@@ -0,0 +1,273 @@
+package dev.ojas.p2p_chat_file_share.file;
+
+import dev.ojas.p2p_chat_file_share.config.TransferProperties;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * OutboundTransfer: sender-side state of one file going to one peer.
+ * - keeps up to `window` chunks in flight; new chunks go out in index order, requested ones first
+ * - acks (cumulative or selective) free window slots; a missing-list marks chunks for resend
+ * - window: slow start, then delay-based (Vegas-style) growth/shrink from measured RTT;
+ *   halved on an explicit loss report, reset to minWindow on a retransmit timeout
+ * State is guarded by this: acks arrive on I/O threads, timeouts on the timer thread. Chunks are sent
+ * outside that lock (a send reads the file); a chunk whose send fails goes back to the resend set.
+ * onAck/onMissing/checkTimeouts only update the window; the caller then calls pump(), off the I/O
+ * thread (TransferEngine pumps on its transfer executor).
+ */
+public class OutboundTransfer {
+    /**
+     * Puts one chunk on the wire. FileChunker.sendChunk is the usual implementation.
+     */
+    public interface ChunkSender {
+        void send(int chunkIndex) throws Exception;
+    }
+
+    private static final double VEGAS_ALPHA = 2; // grow while fewer than this many chunks sit in queues
+    private static final double VEGAS_BETA = 4;  // shrink when more than this many do
+
+    @Getter
+    private final String fileId;
+    @Getter
+    private final String peerNodeId;
+    @Getter
+    private final int totalChunks;
+    private final ChunkSender sender;
+    private final TransferProperties properties;
+
+    private final BitSet acked;
+    private final BitSet resend;        // reported missing or timed out, waiting for a window slot
+    private final BitSet retransmitted; // sent more than once: no RTT samples from these (Karn)
+    private final Map<Integer, Long> inFlight = new HashMap<>(); // chunk -> send time (nanos); window-sized
+    private int nextNew;
+
+    private double window;
+    private double slowStartThreshold;
+    private long lastReductionNanos;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long srttNanos;
+    private long rttVarNanos;
+    private long rtoNanos;
+    private long lastRttSampleNanos; // newest raw sample not yet taken by takeRttSample()
+    private final AtomicBoolean pumpQueued = new AtomicBoolean();
+
+    public OutboundTransfer(String fileId, String peerNodeId, int totalChunks, ChunkSender sender,
+                            TransferProperties properties) {
+        this.fileId = fileId;
+        this.peerNodeId = peerNodeId;
+        this.totalChunks = totalChunks;
+        this.sender = sender;
+        this.properties = properties;
+        this.acked = new BitSet(totalChunks);
+        this.resend = new BitSet(totalChunks);
+        this.retransmitted = new BitSet(totalChunks);
+        this.window = properties.getInitialWindow();
+        this.slowStartThreshold = properties.getMaxWindow();
+        this.rtoNanos = properties.getInitialRtoMillis() * 1_000_000L;
+    }
+
+    public synchronized boolean isComplete() {
+        return acked.cardinality() == totalChunks;
+    }
+
+    public synchronized int getWindow() {
+        return (int) window;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized long getSmoothedRttMillis() {
+        return srttNanos / 1_000_000L;
+    }
+
+    /**
+     * The newest raw RTT sample since the last call, or 0 if there was none. For per-peer stats, which
+     * keep their own average: feeding them srtt would smooth the samples twice.
+     */
+    public synchronized long takeRttSample() {
+        long sample = lastRttSampleNanos;
+        lastRttSampleNanos = 0;
+        return sample;
+    }
+
+    /**
+     * Fill the window: resend requested chunks first, then new ones in order. If a send fails, that
+     * chunk and the rest of the batch go back to the resend set and the exception is rethrown.
+     */
+    public void pump() throws Exception {
+        int[] batch = reserve();
+        for (int i = 0; i < batch.length; i++) {
+            try {
+                sender.send(batch[i]);
+            } catch (Exception e) {
+                unreserve(batch, i);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Claim the one queued pump: true if the caller should queue pump() now, false if one is already
+     * queued and will see the latest window.
+     */
+    boolean claimPump() {
+        return pumpQueued.compareAndSet(false, true);
+    }
+
+    /**
+     * The queued pump is starting; later changes need a new one.
+     */
+    void pumpStarted() {
+        pumpQueued.set(false);
+    }
+
+    /**
+     * Take the chunks that fit in the window and count them in flight from now.
+     */
+    private synchronized int[] reserve() {
+        long now = System.nanoTime();
+        int[] batch = new int[Math.max(0, (int) window - inFlight.size())];
+        int count = 0;
+        while (count < batch.length) {
+            int idx = resend.nextSetBit(0);
+            if (idx >= 0) {
+                resend.clear(idx);
+                if (acked.get(idx) || inFlight.containsKey(idx)) continue;
+                retransmitted.set(idx);
+            } else {
+                while (nextNew < totalChunks && (acked.get(nextNew) || inFlight.containsKey(nextNew))) nextNew++;
+                if (nextNew >= totalChunks) break;
+                idx = nextNew++;
+            }
+            inFlight.put(idx, now);
+            batch[count++] = idx;
+        }
+        return count == batch.length ? batch : Arrays.copyOf(batch, count);
+    }
+
+    private synchronized void unreserve(int[] batch, int from) {
+        for (int i = from; i < batch.length; i++) {
+            if (inFlight.remove(batch[i]) != null && !acked.get(batch[i])) resend.set(batch[i]);
+        }
+    }
+
+    /**
+     * Apply an ack: every index in `received` is delivered. Returns how many were newly acked.
+     * Sends nothing; call pump() afterwards.
+     */
+    public int onAck(ChunkRangeSet received) {
+        int newlyAcked = 0;
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (int i = received.nextSetBit(0); i >= 0 && i < totalChunks; i = received.nextSetBit(i + 1)) {
+                if (acked.get(i)) continue;
+                acked.set(i);
+                resend.clear(i);
+                newlyAcked++;
+                Long sentAt = inFlight.remove(i);
+                if (sentAt != null && !retransmitted.get(i)) sampleRtt(now - sentAt);
+            }
+            if (newlyAcked > 0) grow(newlyAcked);
+        }
+        return newlyAcked;
+    }
+
+    /**
+     * Apply a missing-list: only those chunks are resent (ones already acked are ignored).
+     * Sends nothing; call pump() afterwards.
+     */
+    public void onMissing(ChunkRangeSet missing) {
+        synchronized (this) {
+            boolean lost = false;
+            for (int i = missing.nextSetBit(0); i >= 0 && i < totalChunks; i = missing.nextSetBit(i + 1)) {
+                if (acked.get(i)) continue;
+                // only chunks we actually sent count as losses; others are just not sent yet
+                if (inFlight.remove(i) != null || retransmitted.get(i) || i < nextNew) lost = true;
+                resend.set(i);
+            }
+            if (lost) reduce(System.nanoTime());
+        }
+    }
+
+    /**
+     * Mark every chunk that has been in flight longer than the RTO for resend. Returns how many timed
+     * out. Sends nothing; call pump() afterwards.
+     */
+    public int checkTimeouts() {
+        int expired = 0;
+        synchronized (this) {
+            long now = System.nanoTime();
+            Iterator<Map.Entry<Integer, Long>> it = inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Long> e = it.next();
+                if (now - e.getValue() < rtoNanos) continue;
+                resend.set(e.getKey());
+                it.remove();
+                expired++;
+            }
+            if (expired > 0) {
+                slowStartThreshold = Math.max(properties.getMinWindow(), window / 2);
+                window = properties.getMinWindow();
+                rtoNanos = Math.min(rtoNanos * 2, properties.getMaxRtoMillis() * 1_000_000L); // back off
+                lastReductionNanos = now;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Current retransmit timeout, for scheduling the next checkTimeouts().
+     */
+    public synchronized long getRtoMillis() {
+        return rtoNanos / 1_000_000L;
+    }
+
+    private void sampleRtt(long rtt) {
+        if (rtt <= 0) return;
+        lastRttSampleNanos = rtt;
+        minRttNanos = Math.min(minRttNanos, rtt);
+        if (srttNanos == 0) {
+            srttNanos = rtt;
+            rttVarNanos = rtt / 2;
+        } else {
+            // RFC 6298 smoothing
+            rttVarNanos = (3 * rttVarNanos + Math.abs(srttNanos - rtt)) / 4;
+            srttNanos = (7 * srttNanos + rtt) / 8;
+        }
+        long rto = srttNanos + Math.max(4 * rttVarNanos, 1_000_000L);
+        rtoNanos = Math.min(Math.max(rto, 200_000_000L), properties.getMaxRtoMillis() * 1_000_000L);
+    }
+
+    private void grow(int newlyAcked) {
+        if (window < slowStartThreshold) {
+            window += newlyAcked; // slow start: double per RTT
+        } else if (srttNanos > 0 && minRttNanos != Long.MAX_VALUE) {
+            // Vegas: chunks sitting in queues = window * (1 - baseRtt / rtt)
+            double queued = window * (1.0 - (double) minRttNanos / srttNanos);
+            if (queued < VEGAS_ALPHA) window += (double) newlyAcked / window;
+            else if (queued > VEGAS_BETA) window -= (double) newlyAcked / window;
+        } else {
+            window += (double) newlyAcked / window;
+        }
+        if (window < slowStartThreshold && srttNanos > 0 && srttNanos > minRttNanos * 3 / 2) {
+            slowStartThreshold = window; // RTT inflating: leave slow start before we cause loss
+        }
+        window = Math.max(properties.getMinWindow(), Math.min(window, properties.getMaxWindow()));
+    }
+
+    private void reduce(long now) {
+        // at most one reduction per RTT for a burst of losses
+        if (now - lastReductionNanos < Math.max(srttNanos, 1)) return;
+        slowStartThreshold = Math.max(properties.getMinWindow(), window / 2);
+        window = slowStartThreshold;
+        lastReductionNanos = now;
+    }
+}
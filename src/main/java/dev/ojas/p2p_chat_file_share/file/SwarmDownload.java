@@ -0,0 +1,368 @@
+package dev.ojas.p2p_chat_file_share.file;
+
+import dev.ojas.p2p_chat_file_share.config.TransferProperties;
+import dev.ojas.p2p_chat_file_share.message.data.FileChunkMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileChunkRequestMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileHaveMessage;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SwarmDownload: receiver-side download of one file from several peers at once, into one FileAssembler.
+ * - asks every candidate peer for its have-set (FileHaveMessage query), keeps one BitSet per peer
+ * - pulls chunks with FileChunkRequestMessage; each peer has its own request window, so a slow
+ *   uploader only holds back its own share
+ * - rarest-first: a peer is asked for the chunks the fewest peers hold, lowest index first among equals
+ * - faster peers (more chunks per RTT) pick first and their windows grow faster
+ * - endgame: once every missing chunk is requested, idle peers may duplicate overdue requests
+ * State is guarded by this: chunks and have-sets arrive on I/O threads, tick() on the timer thread.
+ * Chunks are written by the assembler outside that lock.
+ */
+public class SwarmDownload {
+    private static final long MIN_REQUEST_TIMEOUT_NANOS = 2_000_000_000L;
+    private static final int MAX_FAILURES = 8; // consecutive timeouts/bad chunks before a peer is dropped
+
+    private final String fileId;
+    private final int totalChunks;
+    private final FileAssembler assembler;
+    private final TransferEngine.PeerSender sender;
+    private final TransferProperties properties;
+    private final TransferEngine.PeerStats stats;
+
+    private final Map<String, PeerState> peers = new LinkedHashMap<>();
+    private final int[] availability;   // chunk -> number of peers holding it
+    private final long[] requestedAt;   // chunk -> last request time (nanos), valid while requested
+    private final BitSet received;
+    private final BitSet requested;     // outstanding with at least one peer
+    private final BitSet duplicated;    // requested a second time in endgame
+    private final BitSet scratch;
+
+    private static final class PeerState {
+        final String nodeId;
+        final BitSet have;
+        final BitSet pending;
+        int pendingCount;
+        double window;
+        double slowStartThreshold;
+        long srttNanos;
+        long lastDeliveryNanos;
+        int failures;
+
+        PeerState(String nodeId, int totalChunks, double window, double slowStartThreshold) {
+            this.nodeId = nodeId;
+            this.have = new BitSet(totalChunks);
+            this.pending = new BitSet(totalChunks);
+            this.window = window;
+            this.slowStartThreshold = slowStartThreshold;
+        }
+
+        /** Chunks per second this peer is expected to deliver; unknown peers rank after measured ones. */
+        double rate() {
+            return srttNanos == 0 ? 0 : window * 1e9 / srttNanos;
+        }
+    }
+
+    public SwarmDownload(String fileId, FileAssembler assembler, TransferEngine.PeerSender sender,
+                         TransferProperties properties) {
+        this(fileId, assembler, sender, properties, TransferEngine.PeerStats.NONE);
+    }
+
+    /**
+     * With stats, a new source starts from its known RTT (so known-fast peers pick first) and every
+     * RTT, throughput and failure seen here is reported back.
+     */
+    public SwarmDownload(String fileId, FileAssembler assembler, TransferEngine.PeerSender sender,
+                         TransferProperties properties, TransferEngine.PeerStats stats) {
+        this.stats = stats;
+        this.fileId = fileId;
+        this.totalChunks = assembler.getTotalChunks();
+        this.assembler = assembler;
+        this.sender = sender;
+        this.properties = properties;
+        this.availability = new int[totalChunks];
+        this.requestedAt = new long[totalChunks];
+        this.received = assembler.getReceivedRanges().toBitSet();
+        this.requested = new BitSet(totalChunks);
+        this.duplicated = new BitSet(totalChunks);
+        this.scratch = new BitSet(totalChunks);
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public FileAssembler getAssembler() {
+        return assembler;
+    }
+
+    public synchronized boolean isComplete() {
+        return received.cardinality() == totalChunks;
+    }
+
+    public synchronized int getPeerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Ask each candidate peer which chunks it holds. Sources are added as their answers arrive (onHave).
+     */
+    public void query(Collection<String> peerNodeIds) {
+        FileHaveMessage query = new FileHaveMessage();
+        query.setFileId(fileId);
+        query.setTotalChunks(totalChunks);
+        query.setHave(assembler.getReceivedRanges().toCompactString());
+        query.setQuery(true);
+        for (String nodeId : peerNodeIds) {
+            try {
+                query.setTo(nodeId);
+                sender.send(nodeId, query);
+            } catch (Exception e) {
+                System.err.println("Have query for " + fileId + " to " + nodeId + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A peer reported (or updated) the chunks it holds.
+     */
+    public synchronized void onHave(String peerNodeId, ChunkRangeSet have) {
+        PeerState peer = peers.get(peerNodeId);
+        if (peer == null) {
+            if (have.isEmpty()) return;
+            peer = new PeerState(peerNodeId, totalChunks, properties.getInitialWindow(), properties.getMaxWindow());
+            peer.srttNanos = Math.max(0, stats.expectedRttNanos(peerNodeId));
+            peers.put(peerNodeId, peer);
+        } else {
+            adjustAvailability(peer.have, -1);
+            peer.have.clear();
+        }
+        BitSet bits = have.toBitSet();
+        if (bits.length() > totalChunks) bits.clear(totalChunks, bits.length());
+        peer.have.or(bits);
+        adjustAvailability(peer.have, 1);
+        schedule();
+    }
+
+    /**
+     * A peer went away: its outstanding requests go back to the pool.
+     */
+    public synchronized void removePeer(String peerNodeId) {
+        PeerState peer = peers.remove(peerNodeId);
+        if (peer == null) return;
+        adjustAvailability(peer.have, -1);
+        for (int i = peer.pending.nextSetBit(0); i >= 0; i = peer.pending.nextSetBit(i + 1)) release(peer, i);
+        schedule();
+    }
+
+    /**
+     * Store an arriving chunk. Returns true if it was new.
+     */
+    public boolean onChunk(FileChunkMessage m) throws Exception {
+        long bytes = chunkBytes(m); // before the assembler consumes chunkData
+        boolean stored;
+        try {
+            stored = assembler.acceptChunk(m); // verifies the hash; assembler does its own locking
+        } catch (Exception e) {
+            synchronized (this) {
+                PeerState peer = peers.get(m.getFrom());
+                if (peer != null && m.getChunkIndex() >= 0 && m.getChunkIndex() < totalChunks) {
+                    release(peer, m.getChunkIndex());
+                    penalize(peer);
+                }
+                schedule();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            int idx = m.getChunkIndex();
+            long now = System.nanoTime();
+            received.set(idx);
+            PeerState from = peers.get(m.getFrom());
+            if (from != null && from.pending.get(idx)) {
+                if (!duplicated.get(idx)) {
+                    sampleRtt(from, now - requestedAt[idx]);
+                    stats.rtt(from.nodeId, now - requestedAt[idx]);
+                }
+                // delivery rate: this chunk over the time since the previous one (or since it was asked for)
+                stats.throughput(from.nodeId, bytes, now - Math.max(from.lastDeliveryNanos, requestedAt[idx]));
+                from.lastDeliveryNanos = now;
+                from.failures = 0;
+                grow(from);
+            }
+            // whoever else was asked for it (endgame) no longer needs to send it
+            for (PeerState peer : peers.values()) release(peer, idx);
+            schedule();
+        }
+        return stored;
+    }
+
+    /**
+     * Requests older than the peer's timeout go back to the pool; that peer's window is halved.
+     * Meant to be called periodically.
+     */
+    public synchronized void tick() {
+        long now = System.nanoTime();
+        List<PeerState> dropped = new ArrayList<>();
+        for (PeerState peer : peers.values()) {
+            long timeout = requestTimeout(peer);
+            boolean expired = false;
+            for (int i = peer.pending.nextSetBit(0); i >= 0; i = peer.pending.nextSetBit(i + 1)) {
+                if (now - requestedAt[i] < timeout) continue;
+                release(peer, i);
+                expired = true;
+            }
+            if (expired && penalize(peer)) dropped.add(peer);
+        }
+        for (PeerState peer : dropped) {
+            System.err.println("Dropping " + peer.nodeId + " from swarm for " + fileId + " after repeated timeouts");
+            removePeer(peer.nodeId);
+        }
+        schedule();
+    }
+
+    /**
+     * Hand out free window slots, fastest peer first.
+     */
+    private void schedule() {
+        if (peers.isEmpty() || received.cardinality() == totalChunks) return;
+        List<PeerState> order = new ArrayList<>(peers.values());
+        order.sort((a, b) -> Double.compare(b.rate(), a.rate()));
+        long now = System.nanoTime();
+        for (PeerState peer : order) {
+            int free = (int) peer.window - peer.pendingCount;
+            if (free <= 0) continue;
+            ChunkRangeSet picks = new ChunkRangeSet(totalChunks);
+            int picked = pickRarest(peer, free, picks, false, now);
+            if (picked == 0 && peer.srttNanos > 0 && allMissingRequested()) picked = pickRarest(peer, free, picks, true, now);
+            if (picked == 0) continue;
+            for (int i = picks.nextSetBit(0); i >= 0; i = picks.nextSetBit(i + 1)) {
+                if (requested.get(i)) duplicated.set(i);
+                requested.set(i);
+                peer.pending.set(i);
+                peer.pendingCount++;
+                requestedAt[i] = now;
+            }
+            sendRequest(peer, picks);
+        }
+    }
+
+    /**
+     * Pick up to `limit` chunks this peer holds and we still need, rarest first.
+     * Normal mode only considers unrequested chunks; endgame mode only ones overdue elsewhere.
+     */
+    private int pickRarest(PeerState peer, int limit, ChunkRangeSet out, boolean endgame, long now) {
+        scratch.clear();
+        scratch.or(peer.have);
+        scratch.andNot(received);
+        if (endgame) {
+            scratch.and(requested);
+            scratch.andNot(peer.pending);
+            scratch.andNot(duplicated);
+        } else {
+            scratch.andNot(requested);
+        }
+        int levels = peers.size();
+        int[][] buckets = new int[levels + 1][];
+        int[] counts = new int[levels + 1];
+        for (int i = scratch.nextSetBit(0); i >= 0; i = scratch.nextSetBit(i + 1)) {
+            if (endgame && !overdue(i, peer, now)) continue;
+            int level = Math.max(1, Math.min(availability[i], levels));
+            if (counts[level] == limit) continue;
+            if (buckets[level] == null) buckets[level] = new int[limit];
+            buckets[level][counts[level]++] = i;
+            if (level == 1 && counts[1] == limit) break; // cannot do better than chunks only this peer has
+        }
+        int picked = 0;
+        for (int level = 1; level <= levels && picked < limit; level++) {
+            for (int k = 0; k < counts[level] && picked < limit; k++, picked++) out.add(buckets[level][k]);
+        }
+        return picked;
+    }
+
+    /**
+     * An outstanding chunk is worth asking `asker` for when it has waited twice its current peer's RTT
+     * and longer than the asker would take.
+     */
+    private boolean overdue(int idx, PeerState asker, long now) {
+        long waited = now - requestedAt[idx];
+        if (waited < asker.srttNanos) return false;
+        for (PeerState owner : peers.values()) {
+            if (owner.pending.get(idx)) return waited > 2 * owner.srttNanos;
+        }
+        return true;
+    }
+
+    private boolean allMissingRequested() {
+        scratch.clear();
+        scratch.set(0, totalChunks);
+        scratch.andNot(received);
+        scratch.andNot(requested);
+        return scratch.isEmpty();
+    }
+
+    private void sendRequest(PeerState peer, ChunkRangeSet chunks) {
+        FileChunkRequestMessage request = new FileChunkRequestMessage();
+        request.setTo(peer.nodeId);
+        request.setFileId(fileId);
+        request.setTotalChunks(totalChunks);
+        request.setMissing(chunks.toCompactString());
+        try {
+            sender.send(peer.nodeId, request);
+        } catch (Exception e) {
+            System.err.println("Chunk request for " + fileId + " to " + peer.nodeId + " failed: " + e.getMessage());
+            for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) release(peer, i);
+        }
+    }
+
+    private void release(PeerState peer, int idx) {
+        if (!peer.pending.get(idx)) return;
+        peer.pending.clear(idx);
+        peer.pendingCount--;
+        for (PeerState other : peers.values()) {
+            if (other.pending.get(idx)) return;
+        }
+        requested.clear(idx);
+        duplicated.clear(idx);
+    }
+
+    private void adjustAvailability(BitSet have, int delta) {
+        for (int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)) availability[i] += delta;
+    }
+
+    private long requestTimeout(PeerState peer) {
+        // a request waits behind up to a window of chunks at that peer
+        return Math.max(MIN_REQUEST_TIMEOUT_NANOS, peer.srttNanos * 4);
+    }
+
+    private void sampleRtt(PeerState peer, long rtt) {
+        if (rtt <= 0) return;
+        peer.srttNanos = peer.srttNanos == 0 ? rtt : (7 * peer.srttNanos + rtt) / 8;
+    }
+
+    private static long chunkBytes(FileChunkMessage m) {
+        if (m.getChunkData() != null) return m.getChunkData().remaining();
+        String encoded = m.getEncryptedChunkData();
+        return encoded == null ? 0 : encoded.length() * 3L / 4; // Base64
+    }
+
+    private void grow(PeerState peer) {
+        if (peer.window < peer.slowStartThreshold) peer.window += 1;
+        else peer.window += 1.0 / peer.window;
+        peer.window = Math.min(peer.window, properties.getMaxWindow());
+    }
+
+    /**
+     * Halve the peer's window. Returns true once the peer has failed too often to keep.
+     */
+    private boolean penalize(PeerState peer) {
+        stats.failure(peer.nodeId);
+        peer.slowStartThreshold = Math.max(properties.getMinWindow(), peer.window / 2);
+        peer.window = peer.slowStartThreshold;
+        return ++peer.failures >= MAX_FAILURES;
+    }
+}
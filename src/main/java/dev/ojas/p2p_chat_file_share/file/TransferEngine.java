@@ -0,0 +1,454 @@
+package dev.ojas.p2p_chat_file_share.file;
+
+import dev.ojas.p2p_chat_file_share.config.TransferProperties;
+import dev.ojas.p2p_chat_file_share.message.data.BaseMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileChunkAckMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileChunkMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileChunkRequestMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileHaveMessage;
+import dev.ojas.p2p_chat_file_share.transport.PeerConnection;
+import dev.ojas.p2p_chat_file_share.utils.timer.HashedTimingWheel;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * TransferEngine: drives every outbound file transfer with a sliding window (see OutboundTransfer).
+ * MessageHandler feeds it FileChunkAckMessage / FileChunkRequestMessage; it answers by sending more
+ * chunks. Transfers are keyed by fileId + receiving peer, so one file can go to many peers at once.
+ * Acks and requests arrive on I/O threads and only update the window there; the sends (which open
+ * chunk files and read hashes) run on the transfer executor, at most one queued pump per transfer.
+ * <p>
+ * Swarm mode: files registered with share() are served to any peer that asks (FileHaveMessage query,
+ * then FileChunkRequestMessage), and startSwarm() downloads one file from several peers (see SwarmDownload).
+ * Serving is bounded: one request gets at most maxWindow chunks, each peer at most
+ * maxServedChunksPerSecond (token bucket, burst maxWindow), and the sends run on the transfer executor.
+ * Chunks over the limit are simply not sent; the requester asks again when they time out.
+ * <p>
+ * Timeouts: with a HashedTimingWheel set, every transfer re-arms its own retransmit check at half its
+ * RTO and every swarm ticks every swarmTickMillis; a timer whose transfer or swarm is gone just stops.
+ * The wheel thread only hands each check to the transfer executor: checks read chunk files and send,
+ * which would stall every other timer on the wheel. Without a wheel, call checkTimeouts() periodically.
+ * <p>
+ * Peer stats: RTTs from acks and swarm chunks, swarm throughput, retransmit timeouts and failed transfers
+ * are reported to the PeerStats set here (NodeService.peerStats() feeds the PeerScores).
+ */
+public class TransferEngine {
+    /**
+     * Sends a message to a peer by nodeId (connection lookup lives with the caller).
+     */
+    public interface PeerSender {
+        void send(String peerNodeId, BaseMessage message) throws Exception;
+    }
+
+    /**
+     * Observations per peer, and the RTT already known for one. Calls come from I/O and timer threads
+     * and must be cheap.
+     */
+    public interface PeerStats {
+        PeerStats NONE = new PeerStats() {
+            public void rtt(String peerNodeId, long rttNanos) {}
+            public void throughput(String peerNodeId, long bytes, long nanos) {}
+            public void failure(String peerNodeId) {}
+        };
+
+        void rtt(String peerNodeId, long rttNanos);
+
+        void throughput(String peerNodeId, long bytes, long nanos);
+
+        void failure(String peerNodeId);
+
+        /**
+         * Smoothed RTT from earlier sessions; 0 when unknown.
+         */
+        default long expectedRttNanos(String peerNodeId) {
+            return 0;
+        }
+    }
+
+    /**
+     * Sends one chunk of a shared file to a peer. FileChunker.sendChunk is the usual implementation.
+     */
+    public interface ChunkSource {
+        void send(String peerNodeId, int chunkIndex) throws Exception;
+    }
+
+    private static final class SharedFile {
+        final int totalChunks;
+        final Supplier<ChunkRangeSet> have;
+        final ChunkSource source;
+
+        SharedFile(int totalChunks, Supplier<ChunkRangeSet> have, ChunkSource source) {
+            this.totalChunks = totalChunks;
+            this.have = have;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Token bucket for the shared-file chunks served to one peer.
+     */
+    private static final class ServeBudget {
+        private double tokens;
+        private long refilledAt;
+
+        ServeBudget(int burst) {
+            this.tokens = burst;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /**
+         * Take up to `wanted` tokens; returns how many were granted.
+         */
+        synchronized int take(int wanted, int perSecond, int burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) * perSecond / 1e9);
+            refilledAt = now;
+            int granted = (int) Math.min(wanted, Math.floor(tokens));
+            tokens -= granted;
+            return granted;
+        }
+    }
+
+    private final TransferProperties properties;
+    private final Map<String, OutboundTransfer> transfers = new ConcurrentHashMap<>();
+    private final Map<String, SharedFile> shared = new ConcurrentHashMap<>();
+    private final Map<String, SwarmDownload> swarms = new ConcurrentHashMap<>();
+    private final Map<String, ServeBudget> serveBudgets = new ConcurrentHashMap<>();
+    private volatile PeerSender peerSender;
+    private volatile HashedTimingWheel timer;
+    private volatile Executor executor; // transfer executor, see executor()
+    private volatile PeerStats peerStats = PeerStats.NONE;
+
+    public TransferEngine(TransferProperties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Start sending a chunked file (see FileChunker.chunkFile) to the peer on this connection.
+     * Chunks go out zero-copy via FileChunker.sendChunk.
+     */
+    public OutboundTransfer start(PeerConnection connection, FileChunker chunker, String fileId, int totalChunks) throws Exception {
+        String peerNodeId = connection.getPeer().getNodeId();
+        return start(fileId, peerNodeId, totalChunks, idx -> chunker.sendChunk(connection, fileId, idx, totalChunks));
+    }
+
+    public OutboundTransfer start(String fileId, String peerNodeId, int totalChunks, OutboundTransfer.ChunkSender sender) throws Exception {
+        OutboundTransfer transfer = new OutboundTransfer(fileId, peerNodeId, totalChunks, sender, properties);
+        OutboundTransfer previous = transfers.putIfAbsent(key(fileId, peerNodeId), transfer);
+        if (previous != null) return previous;
+        try {
+            transfer.pump();
+        } catch (Exception e) {
+            transfers.remove(key(fileId, peerNodeId), transfer); // don't hand a dead transfer to later callers
+            throw e;
+        }
+        scheduleRetransmit(transfer);
+        return transfer;
+    }
+
+    public void setPeerSender(PeerSender peerSender) {
+        this.peerSender = peerSender;
+    }
+
+    public void setPeerStats(PeerStats peerStats) {
+        this.peerStats = peerStats == null ? PeerStats.NONE : peerStats;
+    }
+
+    /**
+     * Drive retransmits and swarm ticks from this wheel for transfers and swarms started from now on.
+     * They run on the transfer executor.
+     */
+    public void setTimer(HashedTimingWheel timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Same as setTimer(timer), with the given executor as the transfer executor (sends and checks).
+     */
+    public void setTimer(HashedTimingWheel timer, Executor executor) {
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    /**
+     * Serve every chunk of a file to peers that request it.
+     */
+    public void share(String fileId, int totalChunks, ChunkSource source) {
+        ChunkRangeSet all = new ChunkRangeSet(totalChunks);
+        all.addRange(0, totalChunks - 1);
+        share(fileId, totalChunks, () -> all, source);
+    }
+
+    /**
+     * Serve the chunks `have` reports (e.g. a partially downloaded file) to peers that request them.
+     */
+    public void share(String fileId, int totalChunks, Supplier<ChunkRangeSet> have, ChunkSource source) {
+        shared.put(fileId, new SharedFile(totalChunks, have, source));
+    }
+
+    public void unshare(String fileId) {
+        shared.remove(fileId);
+    }
+
+    /**
+     * Download a file from several peers at once into one assembler. The peers are asked for their
+     * have-sets; chunks are requested as the answers come in.
+     */
+    public SwarmDownload startSwarm(String fileId, FileAssembler assembler, Collection<String> peerNodeIds) {
+        PeerSender sender = requirePeerSender();
+        SwarmDownload swarm = new SwarmDownload(fileId, assembler, sender, properties, peerStats);
+        SwarmDownload previous = swarms.putIfAbsent(fileId, swarm);
+        if (previous != null) swarm = previous;
+        else scheduleSwarmTick(swarm);
+        swarm.query(peerNodeIds);
+        return swarm;
+    }
+
+    public SwarmDownload getSwarm(String fileId) {
+        return swarms.get(fileId);
+    }
+
+    public void cancelSwarm(String fileId) {
+        swarms.remove(fileId);
+    }
+
+    /**
+     * Have-set query or answer. Queries are answered for shared files; answers feed the swarm download.
+     */
+    public void onHave(FileHaveMessage msg) throws Exception {
+        if (msg.isQuery()) {
+            SharedFile file = shared.get(msg.getFileId());
+            if (file == null) return;
+            FileHaveMessage reply = new FileHaveMessage();
+            reply.setTo(msg.getFrom());
+            reply.setFileId(msg.getFileId());
+            reply.setTotalChunks(file.totalChunks);
+            reply.setHave(file.have.get().toCompactString());
+            requirePeerSender().send(msg.getFrom(), reply);
+            return;
+        }
+        SwarmDownload swarm = swarms.get(msg.getFileId());
+        if (swarm == null || msg.getHave() == null) return;
+        swarm.onHave(msg.getFrom(), ChunkRangeSet.parse(msg.getHave(), swarm.getAssembler().getTotalChunks()));
+    }
+
+    /**
+     * Incoming chunk. Returns false if no swarm download is waiting for this file.
+     */
+    public boolean onChunk(FileChunkMessage msg) throws Exception {
+        SwarmDownload swarm = swarms.get(msg.getFileId());
+        if (swarm == null) return false;
+        swarm.onChunk(msg);
+        if (swarm.isComplete() && swarms.remove(msg.getFileId(), swarm)) {
+            System.out.println("Swarm download of " + msg.getFileId() + " complete");
+        }
+        return true;
+    }
+
+    /**
+     * A peer disconnected: its swarm requests go back to the pool and its outbound transfers stop.
+     */
+    public void onPeerGone(String peerNodeId) {
+        for (SwarmDownload swarm : swarms.values()) swarm.removePeer(peerNodeId);
+        transfers.values().removeIf(transfer -> transfer.getPeerNodeId().equals(peerNodeId));
+        serveBudgets.remove(peerNodeId);
+    }
+
+    public OutboundTransfer get(String fileId, String peerNodeId) {
+        return transfers.get(key(fileId, peerNodeId));
+    }
+
+    public Collection<OutboundTransfer> getActive() {
+        return transfers.values();
+    }
+
+    public void cancel(String fileId, String peerNodeId) {
+        transfers.remove(key(fileId, peerNodeId));
+    }
+
+    /**
+     * Receiver acknowledged chunks (cumulative and/or selective ranges).
+     */
+    public void onAck(FileChunkAckMessage msg) throws Exception {
+        OutboundTransfer transfer = transfers.get(key(msg.getFileId(), msg.getFrom()));
+        if (transfer == null || msg.getReceived() == null) return;
+        int newlyAcked = transfer.onAck(ChunkRangeSet.parse(msg.getReceived(), transfer.getTotalChunks()));
+        if (newlyAcked > 0) pumpLater(transfer);
+        long rttSample = transfer.takeRttSample(); // one raw sample per ack, like TCP's one per round trip
+        if (newlyAcked > 0 && rttSample > 0) peerStats.rtt(msg.getFrom(), rttSample);
+        if (transfer.isComplete()) {
+            transfers.remove(key(msg.getFileId(), msg.getFrom()));
+            System.out.println("Transfer of " + msg.getFileId() + " to " + msg.getFrom() + " complete");
+        }
+    }
+
+    /**
+     * Receiver asked for specific chunks: resent by the running transfer if there is one,
+     * otherwise served from a shared file (swarm pull) within the serving limits.
+     */
+    public void onRequest(FileChunkRequestMessage msg) throws Exception {
+        if (msg.getMissing() == null) return;
+        OutboundTransfer transfer = transfers.get(key(msg.getFileId(), msg.getFrom()));
+        if (transfer != null) {
+            transfer.onMissing(ChunkRangeSet.parse(msg.getMissing(), transfer.getTotalChunks()));
+            pumpLater(transfer);
+            return;
+        }
+        SharedFile file = shared.get(msg.getFileId());
+        if (file == null) return;
+        ChunkRangeSet wanted = ChunkRangeSet.parse(msg.getMissing(), file.totalChunks);
+        ChunkRangeSet have = file.have.get();
+        int burst = properties.getMaxWindow();
+        int[] chunks = new int[Math.min(burst, file.totalChunks)];
+        int count = 0;
+        for (int i = wanted.nextSetBit(0); i >= 0 && count < chunks.length; i = wanted.nextSetBit(i + 1)) {
+            if (have.contains(i)) chunks[count++] = i;
+        }
+        if (count == 0) return;
+        String peerNodeId = msg.getFrom();
+        int granted = serveBudgets.computeIfAbsent(peerNodeId, id -> new ServeBudget(burst))
+                .take(count, properties.getMaxServedChunksPerSecond(), burst);
+        if (granted == 0) return;
+        int served = granted;
+        offload(() -> {
+            try {
+                for (int n = 0; n < served; n++) file.source.send(peerNodeId, chunks[n]);
+            } catch (Exception e) {
+                System.err.println("Serving " + msg.getFileId() + " to " + peerNodeId + " failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Resend timed-out chunks on every transfer and re-request timed-out swarm chunks.
+     * Meant to be called periodically.
+     */
+    public void checkTimeouts() {
+        for (OutboundTransfer transfer : transfers.values()) {
+            if (transfer.checkTimeouts() > 0) {
+                peerStats.failure(transfer.getPeerNodeId());
+                pumpLater(transfer);
+            }
+        }
+        for (SwarmDownload swarm : swarms.values()) swarm.tick();
+    }
+
+    private void scheduleRetransmit(OutboundTransfer transfer) {
+        HashedTimingWheel wheel = timer;
+        if (wheel == null) return;
+        long delay = Math.max(transfer.getRtoMillis() / 2, 1);
+        wheel.newTimeout(() -> offload(() -> retransmit(transfer)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void retransmit(OutboundTransfer transfer) {
+        String key = key(transfer.getFileId(), transfer.getPeerNodeId());
+        if (transfers.get(key) != transfer) return; // completed, cancelled or peer gone
+        if (transfer.checkTimeouts() > 0) {
+            peerStats.failure(transfer.getPeerNodeId());
+            if (!pump(transfer)) return;
+        }
+        scheduleRetransmit(transfer);
+    }
+
+    private void scheduleSwarmTick(SwarmDownload swarm) {
+        HashedTimingWheel wheel = timer;
+        if (wheel == null) return;
+        wheel.newTimeout(() -> offload(() -> {
+            if (swarms.get(swarm.getFileId()) != swarm) return;
+            swarm.tick();
+            scheduleSwarmTick(swarm);
+        }), properties.getSwarmTickMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a pump of the transfer on the transfer executor, unless one is queued already.
+     */
+    private void pumpLater(OutboundTransfer transfer) {
+        if (!transfer.claimPump()) return;
+        offload(() -> {
+            transfer.pumpStarted();
+            if (transfers.get(key(transfer.getFileId(), transfer.getPeerNodeId())) == transfer) pump(transfer);
+        });
+    }
+
+    /**
+     * Send what fits in the window. A failed send ends the transfer and counts against the peer.
+     * Returns false if the transfer failed.
+     */
+    private boolean pump(OutboundTransfer transfer) {
+        try {
+            transfer.pump();
+            return true;
+        } catch (Exception e) {
+            System.err.println("Transfer " + transfer.getFileId() + " to " + transfer.getPeerNodeId() + " failed: " + e.getMessage());
+            transfers.remove(key(transfer.getFileId(), transfer.getPeerNodeId()), transfer);
+            peerStats.failure(transfer.getPeerNodeId());
+            return false;
+        }
+    }
+
+    /**
+     * Pass work on to the transfer executor. Timer checks re-arm themselves when they are done, so one
+     * transfer or swarm never has two running at once. Rejected work (executor shut down) is dropped.
+     */
+    private void offload(Runnable work) {
+        try {
+            executor().execute(work);
+        } catch (RejectedExecutionException e) {
+            System.err.println("Transfer executor rejected a task: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The transfer executor: the one given to setTimer, else a pool of daemon "transfer" threads
+     * created on first use.
+     */
+    private Executor executor() {
+        Executor current = executor;
+        if (current != null) return current;
+        synchronized (this) {
+            if (executor == null) {
+                int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+                AtomicInteger count = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread(r, "transfer-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Receiver side: build the ack a FileAssembler should send back to the sender.
+     */
+    public static FileChunkAckMessage buildAck(FileAssembler assembler, String fileId, String fromNodeId, String toNodeId) {
+        FileChunkAckMessage ack = new FileChunkAckMessage();
+        ack.setFrom(fromNodeId);
+        ack.setTo(toNodeId);
+        ack.setFileId(fileId);
+        ack.setTotalChunks(assembler.getTotalChunks());
+        ack.setReceived(assembler.getReceivedRanges().toCompactString());
+        return ack;
+    }
+
+    private PeerSender requirePeerSender() {
+        PeerSender sender = peerSender;
+        if (sender == null) throw new IllegalStateException("no PeerSender set on TransferEngine");
+        return sender;
+    }
+
+    private static String key(String fileId, String peerNodeId) {
+        return fileId + "/" + peerNodeId;
+    }
+
+}
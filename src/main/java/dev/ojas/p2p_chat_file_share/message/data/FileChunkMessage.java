@@ -1,8 +1,11 @@
 package dev.ojas.p2p_chat_file_share.message.data;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.nio.ByteBuffer;
+
 @Setter
 @Getter
 public class FileChunkMessage extends BaseMessage {
@@ -12,6 +15,15 @@ public class FileChunkMessage extends BaseMessage {
     private String chunkHash;
     private String encryptedChunkData;
     private String signature;
+    private String merkleProof; // Base64 audit path to FileMetadataMessage.merkleRoot (see file.MerkleTree)
+    // Binary form (see transport.FileChunkCodec): raw iv||ct and raw SHA-256, no Base64/hex.
+    // When set, the transport sends the chunk as a binary frame instead of JSON.
+    @JsonIgnore
+    private ByteBuffer chunkData;
+    @JsonIgnore
+    private byte[] chunkHashBytes;
+    @JsonIgnore
+    private byte[] merkleProofBytes;
 
     public FileChunkMessage() {
         super(MessageType.FILE_CHUNK_MESSAGE);
@@ -0,0 +1,27 @@
+package dev.ojas.p2p_chat_file_share.message.data;
+
+/**
+ * Swarm download: which chunks of a file a peer holds.
+ * A receiver sends it with query=true (and its own 'have') to ask; holders answer with query=false.
+ * 'have' uses the same compact list as FileChunkAckMessage: "0-3,5,7-9".
+ */
+public class FileHaveMessage extends BaseMessage {
+    private String fileId;
+    private String have; // e.g. "0-99"
+    private int totalChunks;
+    private boolean query;
+
+    public FileHaveMessage() { super(MessageType.FILE_HAVE_MESSAGE); }
+
+    public String getFileId() { return fileId; }
+    public void setFileId(String fileId) { this.fileId = fileId; }
+
+    public String getHave() { return have; }
+    public void setHave(String have) { this.have = have; }
+
+    public int getTotalChunks() { return totalChunks; }
+    public void setTotalChunks(int totalChunks) { this.totalChunks = totalChunks; }
+
+    public boolean isQuery() { return query; }
+    public void setQuery(boolean query) { this.query = query; }
+}
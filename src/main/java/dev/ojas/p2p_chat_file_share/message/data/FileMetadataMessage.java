@@ -7,6 +7,7 @@ public class FileMetadataMessage extends BaseMessage {
     private int chunkSize;
     private int totalChunks;
     private String fileHash;
+    private String merkleRoot; // hex root over the chunk hashes; covered by the signature
     private String lockedFileKey;
     private String signature;
 
@@ -32,6 +33,9 @@ public class FileMetadataMessage extends BaseMessage {
     public String getFileHash() { return fileHash; }
     public void setFileHash(String fileHash) { this.fileHash = fileHash; }
 
+    public String getMerkleRoot() { return merkleRoot; }
+    public void setMerkleRoot(String merkleRoot) { this.merkleRoot = merkleRoot; }
+
     public String getLockedFileKey() { return lockedFileKey; }
     public void setLockedFileKey(String lockedFileKey) { this.lockedFileKey = lockedFileKey; }
 
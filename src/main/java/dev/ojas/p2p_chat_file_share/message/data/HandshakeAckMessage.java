@@ -6,7 +6,12 @@ import lombok.Getter;
 public class HandshakeAckMessage extends BaseMessage {
     // Getters and setters
     private String ephemeralPubKey;
-    private String signature;
+    private String identityPubKey;   // Base64 X.509 identity public key; SHA-256 of it must equal `from`
+    private String signature;        // by the identity key, over the ack and the initiator's ephemeral key and nonce
+    private String ticket;           // resumption ticket for the next handshake to this peer
+    private Long ticketLifetime;     // seconds the ticket stays valid
+    private String nonce;            // resumed session: responder's nonce
+    private String binder;           // resumed session: Base64 HMAC under the ticket's secret, replaces the signature
 
     public HandshakeAckMessage() {
         super(MessageType.HANDSHAKE_ACK);
@@ -14,6 +19,16 @@ public class HandshakeAckMessage extends BaseMessage {
 
     public void setEphemeralPubKey(String ephemeralPubKey) { this.ephemeralPubKey = ephemeralPubKey; }
 
+    public void setIdentityPubKey(String identityPubKey) { this.identityPubKey = identityPubKey; }
+
     public void setSignature(String signature) { this.signature = signature; }
+
+    public void setTicket(String ticket) { this.ticket = ticket; }
+
+    public void setTicketLifetime(Long ticketLifetime) { this.ticketLifetime = ticketLifetime; }
+
+    public void setNonce(String nonce) { this.nonce = nonce; }
+
+    public void setBinder(String binder) { this.binder = binder; }
 }
 
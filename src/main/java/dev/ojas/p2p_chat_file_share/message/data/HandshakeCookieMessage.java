@@ -0,0 +1,14 @@
+package dev.ojas.p2p_chat_file_share.message.data;
+
+/**
+ * Responder under load: "send your handshake again with this cookie". The cookie is stateless
+ * (HMAC over the sender's address and time, see HandshakeAdmission), so issuing one costs no memory.
+ */
+public class HandshakeCookieMessage extends BaseMessage {
+    private String cookie;
+
+    public HandshakeCookieMessage() { super(MessageType.HANDSHAKE_COOKIE); }
+
+    public String getCookie() { return cookie; }
+    public void setCookie(String cookie) { this.cookie = cookie; }
+}
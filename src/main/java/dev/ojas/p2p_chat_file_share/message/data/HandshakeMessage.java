@@ -8,9 +8,13 @@ import lombok.Setter;
 public class HandshakeMessage extends BaseMessage {
     // base fields: type, from, to, timestamp
     private String ephemeralPubKey;  // Base64-encoded X.509 PUBLIC KEY (subjectPublicKeyInfo)
-    private String signature;        // Base64(signature)
+    private String identityPubKey;   // Base64 X.509 identity public key; SHA-256 of it must equal `from`
+    private String signature;        // Base64(signature) by the identity key, see IdentityKey
     private String nonce;
     // optional: you can include a nonce if you want replay protection
+    private String ticket;           // resumption: ticket from an earlier HandshakeAckMessage (no ephemeral key, no signature)
+    private String binder;           // resumption: Base64 HMAC over the handshake under the ticket's secret
+    private String cookie;           // echoed from a HandshakeCookieMessage when the responder asked for one
     public HandshakeMessage() {
         super(MessageType.HANDSHAKE_MESSAGE);
     }
@@ -0,0 +1,9 @@
+package dev.ojas.p2p_chat_file_share.message.data;
+
+/**
+ * Keepalive sent on an otherwise quiet session (see ConnectionMonitor). Carries nothing; receiving it
+ * (or any other frame) shows the peer is alive.
+ */
+public class HeartbeatMessage extends BaseMessage {
+    public HeartbeatMessage() { super(MessageType.HEARTBEAT); }
+}
@@ -6,7 +6,10 @@ public enum MessageType {
     FILE_CHUNK_REQUEST_MESSAGE,
     FILE_METADATA_MESSAGE,
     HANDSHAKE_MESSAGE,
-    FILE_CHUNK_MESSAGE, HANDSHAKE_ACK, ROOM_MESSAGE
+    FILE_CHUNK_MESSAGE, HANDSHAKE_ACK, ROOM_MESSAGE,
+    FILE_HAVE_MESSAGE,
+    HANDSHAKE_COOKIE,
+    HEARTBEAT
 
 
 }
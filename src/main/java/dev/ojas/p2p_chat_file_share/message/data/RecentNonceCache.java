@@ -0,0 +1,80 @@
+package dev.ojas.p2p_chat_file_share.message.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Synchronized set of recently seen nonces, bucketed by time so old entries expire in bulk.
+ * Three buckets of `windowMillis` each cover at least twice the window: anything older is refused by
+ * the caller's timestamp check before it gets here. When a bucket is full new nonces are refused
+ * (fail closed) rather than evicting ones that could then be replayed.
+ * Callers check with isSeen() before authenticating and recordIfNew() only after, so forged
+ * messages cannot fill the buckets.
+ */
+public class RecentNonceCache {
+    private static final int BUCKETS = 3;
+
+    private final long windowMillis;
+    private final int bucketCapacity;
+    private final List<Set<String>> buckets;
+    private final long[] bucketEpoch;
+
+    public RecentNonceCache(long windowMillis, int capacity) {
+        this.windowMillis = Math.max(1, windowMillis);
+        this.bucketCapacity = Math.max(1, capacity / BUCKETS);
+        this.buckets = new ArrayList<>(BUCKETS);
+        this.bucketEpoch = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.add(new HashSet<>());
+            bucketEpoch[i] = -1;
+        }
+    }
+
+    /**
+     * Returns true if this nonce was unseen within the window (and now recorded).
+     * Returns false if it was already present, or the current bucket is full.
+     */
+    public synchronized boolean recordIfNew(String nonce, long nowMillis) {
+        Set<String> current = advance(nowMillis);
+        if (contains(nonce)) return false;
+        if (current.size() >= bucketCapacity) return false;
+        current.add(nonce);
+        return true;
+    }
+
+    /**
+     * True if this nonce was recorded within the window. Records nothing.
+     */
+    public synchronized boolean isSeen(String nonce, long nowMillis) {
+        advance(nowMillis);
+        return contains(nonce);
+    }
+
+    /**
+     * Expire buckets older than the window and return the current one.
+     */
+    private Set<String> advance(long nowMillis) {
+        long epoch = nowMillis / windowMillis;
+        int current = (int) (epoch % BUCKETS);
+        for (int i = 0; i < BUCKETS; i++) {
+            if (bucketEpoch[i] >= 0 && epoch - bucketEpoch[i] >= BUCKETS) {
+                buckets.get(i).clear();
+                bucketEpoch[i] = -1;
+            }
+        }
+        if (bucketEpoch[current] != epoch) {
+            buckets.get(current).clear();
+            bucketEpoch[current] = epoch;
+        }
+        return buckets.get(current);
+    }
+
+    private boolean contains(String nonce) {
+        for (Set<String> bucket : buckets) {
+            if (bucket.contains(nonce)) return true;
+        }
+        return false;
+    }
+}
@@ -9,15 +9,21 @@ public class MessageFactory {
 
     public static BaseMessage fromJson(String json) throws Exception {
         JsonNode node = mapper.readTree(json);
-        String type = node.get("type").asText();
+        // "type" is the MessageType name, as written by MessageSerializer
+        MessageType type = MessageType.valueOf(node.get("type").asText());
 
         return switch (type) {
-            case "handshake" -> mapper.treeToValue(node, HandshakeMessage.class);
-            case "chat_message" -> mapper.treeToValue(node, ChatMessage.class);
-            case "file_metadata" -> mapper.treeToValue(node, FileMetadataMessage.class);
-            case "file_chunk" -> mapper.treeToValue(node, FileChunkMessage.class);
-            case "room_message" -> mapper.treeToValue(node, RoomMessage.class);
-            default -> throw new IllegalArgumentException("Unknown message type: " + type);
+            case HANDSHAKE_MESSAGE -> mapper.treeToValue(node, HandshakeMessage.class);
+            case HANDSHAKE_ACK -> mapper.treeToValue(node, HandshakeAckMessage.class);
+            case CHAT_MESSAGE -> mapper.treeToValue(node, ChatMessage.class);
+            case FILE_METADATA_MESSAGE -> mapper.treeToValue(node, FileMetadataMessage.class);
+            case FILE_CHUNK_MESSAGE -> mapper.treeToValue(node, FileChunkMessage.class);
+            case FILE_CHUNK_ACK_MESSAGE -> mapper.treeToValue(node, FileChunkAckMessage.class);
+            case FILE_CHUNK_REQUEST_MESSAGE -> mapper.treeToValue(node, FileChunkRequestMessage.class);
+            case ROOM_MESSAGE -> mapper.treeToValue(node, RoomMessage.class);
+            case FILE_HAVE_MESSAGE -> mapper.treeToValue(node, FileHaveMessage.class);
+            case HANDSHAKE_COOKIE -> mapper.treeToValue(node, HandshakeCookieMessage.class);
+            case HEARTBEAT -> mapper.treeToValue(node, HeartbeatMessage.class);
         };
     }
 }
@@ -0,0 +1,182 @@
+package dev.ojas.p2p_chat_file_share.message.handler;
+
+import dev.ojas.p2p_chat_file_share.config.HandshakeProperties;
+import dev.ojas.p2p_chat_file_share.message.data.HandshakeCookieMessage;
+import dev.ojas.p2p_chat_file_share.message.data.HandshakeMessage;
+import dev.ojas.p2p_chat_file_share.message.data.RecentNonceCache;
+import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HandshakeAdmission: cheap checks in front of HandshakeHandler, none of which touches a public key.
+ * In order:
+ * 1. per-IP token bucket (perIpRate/s, perIpBurst), buckets kept for the maxTrackedIps most recent IPs
+ * 2. timestamp within maxClockSkewSeconds of our clock
+ * 3. cookie round-trip when the handshake rate is above cookieThresholdPerSecond: the sender gets a
+ *    HandshakeCookieMessage and must echo the cookie. cookie = Base64(issuedAtSeconds || HMAC(secret,
+ *    ip:port:from:issuedAtSeconds)[0..16)); the responder keeps nothing per cookie.
+ * 4. replay: the nonce (or, without one, the signature) must not have been seen within the skew window
+ * Only handshakes that pass all four reach the ECDSA verify / ECDH in HandshakeHandler. The nonce is
+ * recorded only once HandshakeHandler has authenticated the handshake (recordNonce), so forged
+ * handshakes cannot fill the replay cache and lock real peers out.
+ */
+public class HandshakeAdmission {
+    public enum Verdict {
+        ADMIT,   // go on with the handshake
+        COOKIE,  // reply with issueCookie() and do nothing else
+        REJECT   // drop it
+    }
+
+    private static final int COOKIE_MAC_SIZE = 16;
+
+    private static final class TokenBucket {
+        double tokens;
+        long lastRefill;
+        boolean throttled; // logged once per throttling episode, not per dropped handshake
+
+        TokenBucket(double tokens, long lastRefill) {
+            this.tokens = tokens;
+            this.lastRefill = lastRefill;
+        }
+    }
+
+    private final HandshakeProperties properties;
+    private final byte[] cookieSecret = CryptoUtils.randomBytes(32);
+    private final RecentNonceCache nonces;
+    private final LinkedHashMap<String, TokenBucket> buckets;
+    private final AtomicLong rateSecond = new AtomicLong();
+    private final AtomicLong rateCount = new AtomicLong();
+
+    public HandshakeAdmission(HandshakeProperties properties) {
+        this.properties = properties;
+        this.nonces = new RecentNonceCache(properties.getMaxClockSkewSeconds() * 1000, properties.getMaxTrackedNonces());
+        this.buckets = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                return size() > properties.getMaxTrackedIps();
+            }
+        };
+    }
+
+    public Verdict admit(HandshakeMessage msg, String ip, int port) {
+        long now = System.currentTimeMillis();
+        String source = ip == null ? "unknown" : ip;
+
+        if (!takeToken(source, now)) return Verdict.REJECT;
+        if (Math.abs(now - msg.getTimestamp()) > properties.getMaxClockSkewSeconds() * 1000) {
+            System.err.println("Stale handshake from " + source + " (timestamp " + msg.getTimestamp() + ")");
+            return Verdict.REJECT;
+        }
+        if (cookieRequired(now)) {
+            if (msg.getCookie() == null) return Verdict.COOKIE;
+            if (!verifyCookie(msg.getCookie(), source, port, msg.getFrom(), now)) {
+                System.err.println("Invalid handshake cookie from " + source);
+                return Verdict.REJECT;
+            }
+        }
+        String replayKey = replayKey(msg);
+        if (replayKey == null || nonces.isSeen(replayKey, now)) {
+            System.err.println("Replayed handshake from " + source);
+            return Verdict.REJECT;
+        }
+        return Verdict.ADMIT;
+    }
+
+    /**
+     * Record an admitted handshake's nonce once its signature (or binder) has verified. False if it
+     * was replayed meanwhile or the replay cache is full; the handshake must then be dropped.
+     */
+    public boolean recordNonce(HandshakeMessage msg) {
+        String replayKey = replayKey(msg);
+        if (replayKey == null || !nonces.recordIfNew(replayKey, System.currentTimeMillis())) {
+            System.err.println("Replayed handshake from " + msg.getFrom() + " (or replay cache full)");
+            return false;
+        }
+        return true;
+    }
+
+    private static String replayKey(HandshakeMessage msg) {
+        String key = msg.getNonce() != null ? msg.getNonce() : msg.getSignature();
+        return key == null ? null : msg.getFrom() + ":" + key;
+    }
+
+    /**
+     * The reply for a COOKIE verdict.
+     */
+    public HandshakeCookieMessage issueCookie(HandshakeMessage msg, String ip, int port, String ownNodeId) {
+        long issuedAt = System.currentTimeMillis() / 1000;
+        byte[] cookie = ByteBuffer.allocate(Long.BYTES + COOKIE_MAC_SIZE)
+                .putLong(issuedAt)
+                .put(cookieMac(ip == null ? "unknown" : ip, port, msg.getFrom(), issuedAt), 0, COOKIE_MAC_SIZE)
+                .array();
+        HandshakeCookieMessage reply = new HandshakeCookieMessage();
+        reply.setFrom(ownNodeId);
+        reply.setTo(msg.getFrom());
+        reply.setCookie(CryptoUtils.toBase64(cookie));
+        return reply;
+    }
+
+    private boolean verifyCookie(String cookieB64, String ip, int port, String from, long now) {
+        byte[] cookie;
+        try {
+            cookie = CryptoUtils.fromBase64(cookieB64);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (cookie.length != Long.BYTES + COOKIE_MAC_SIZE) return false;
+        ByteBuffer buffer = ByteBuffer.wrap(cookie);
+        long issuedAt = buffer.getLong();
+        long age = now / 1000 - issuedAt;
+        if (age < 0 || age > properties.getCookieLifetimeSeconds()) return false;
+        byte[] expected = cookieMac(ip, port, from, issuedAt);
+        byte[] presented = new byte[COOKIE_MAC_SIZE];
+        buffer.get(presented);
+        return MessageDigest.isEqual(presented, java.util.Arrays.copyOf(expected, COOKIE_MAC_SIZE));
+    }
+
+    private byte[] cookieMac(String ip, int port, String from, long issuedAt) {
+        String data = ip + ":" + port + ":" + from + ":" + issuedAt;
+        return CryptoUtils.hmacSha256(cookieSecret, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean takeToken(String ip, long now) {
+        synchronized (buckets) {
+            TokenBucket bucket = buckets.get(ip);
+            if (bucket == null) {
+                bucket = new TokenBucket(properties.getPerIpBurst(), now);
+                buckets.put(ip, bucket);
+            } else {
+                bucket.tokens = Math.min(properties.getPerIpBurst(),
+                        bucket.tokens + (now - bucket.lastRefill) * properties.getPerIpRate() / 1000.0);
+                bucket.lastRefill = now;
+            }
+            if (bucket.tokens < 1) {
+                if (!bucket.throttled) System.err.println("Handshake rate limit hit for " + ip);
+                bucket.throttled = true;
+                return false;
+            }
+            bucket.tokens -= 1;
+            bucket.throttled = false;
+            return true;
+        }
+    }
+
+    /**
+     * Counts this handshake toward the current second and decides whether cookies are on.
+     */
+    private boolean cookieRequired(long now) {
+        int threshold = properties.getCookieThresholdPerSecond();
+        if (threshold < 0) return false;
+        if (threshold == 0) return true;
+        long second = now / 1000;
+        long seen = rateSecond.get();
+        if (seen != second && rateSecond.compareAndSet(seen, second)) rateCount.set(0);
+        return rateCount.incrementAndGet() > threshold;
+    }
+}
@@ -1,37 +1,58 @@
 package dev.ojas.p2p_chat_file_share.message.handler;
 
-import dev.ojas.p2p_chat_file_share.config.StorageProperties;
+import dev.ojas.p2p_chat_file_share.config.HandshakeProperties;
+import dev.ojas.p2p_chat_file_share.config.KeyProperties;
 import dev.ojas.p2p_chat_file_share.message.data.HandshakeAckMessage;
 import dev.ojas.p2p_chat_file_share.message.data.HandshakeMessage;
-import dev.ojas.p2p_chat_file_share.node.data.Node;
 import dev.ojas.p2p_chat_file_share.node.data.Peer;
+import dev.ojas.p2p_chat_file_share.node.service.NodeService;
+import dev.ojas.p2p_chat_file_share.session.ResumptionTickets;
+import dev.ojas.p2p_chat_file_share.session.SecureChannel;
+import dev.ojas.p2p_chat_file_share.session.SessionKeys;
+import dev.ojas.p2p_chat_file_share.transport.PeerConnection;
 import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
-import dev.ojas.p2p_chat_file_share.utils.persist.PersistenceManager;
+import dev.ojas.p2p_chat_file_share.utils.key.EphemeralKeyPool;
+import dev.ojas.p2p_chat_file_share.utils.key.IdentityKey;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.PublicKey;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 @Service
 public class HandshakeHandler {
-    private final Node node;
-    private final Path walletPath;
+    private final NodeService nodeService;
+    private final ResumptionTickets resumptionTickets = new ResumptionTickets(Duration.ofHours(1));
 
     @Autowired
-    private StorageProperties storageProperties;
+    private KeyProperties keyProperties;
     @Autowired
-    private PersistenceManager persistenceManager;
+    private IdentityKey identityKey;
+    private EphemeralKeyPool ephemeralKeyPool;
+    @Autowired
+    private HandshakeProperties handshakeProperties;
+    private HandshakeAdmission admission;
 
-    public HandshakeHandler(Node node) {
-        this.node = node;
-        String walletPathString = storageProperties.getDir();
-        this.walletPath = Paths.get(walletPathString);
+    @Autowired
+    public HandshakeHandler(NodeService nodeService) {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * Acknowledgment plus the session derived for it and the verified peer it belongs to
+     */
+    private static final class AcceptedHandshake {
+        final HandshakeAckMessage ack;
+        final SecureChannel channel;
+        final Peer peer;
+
+        AcceptedHandshake(HandshakeAckMessage ack, SecureChannel channel, Peer peer) {
+            this.ack = ack;
+            this.channel = channel;
+            this.peer = peer;
+        }
     }
 
     /**
@@ -43,45 +64,91 @@ public class HandshakeHandler {
      */
     public HandshakeAckMessage handleIncomingHandshake(HandshakeMessage handshakeMsg,
                                                        String senderIp, int senderPort) {
+        if (admission().admit(handshakeMsg, senderIp, senderPort) != HandshakeAdmission.Verdict.ADMIT) return null;
+        AcceptedHandshake accepted = accept(handshakeMsg, senderIp, senderPort);
+        if (accepted == null) return null;
+        accepted.channel.destroy(); // caller has no connection to attach it to
+        return accepted.ack;
+    }
+
+    /**
+     * Handles an incoming handshake on a live connection: sends the acknowledgment in the clear,
+     * then switches the connection to the derived session so every later frame is sealed.
+     * The verified peer is bound to the connection before the ack goes out, so heartbeats, transfers and
+     * the disconnect handling can attribute the connection from its first sealed frame.
+     * Handshakes go through HandshakeAdmission first; under load the reply is a cookie instead.
+     * @return false if the handshake was rejected and the connection should be closed
+     */
+    public boolean acceptHandshake(HandshakeMessage handshakeMsg, PeerConnection connection) throws Exception {
+        String ip = null;
+        int port = 0;
+        if (connection.getRemoteAddress() instanceof java.net.InetSocketAddress remote) {
+            ip = remote.getHostString();
+            port = remote.getPort();
+        }
+        switch (admission().admit(handshakeMsg, ip, port)) {
+            case REJECT:
+                return false;
+            case COOKIE:
+                connection.send(admission().issueCookie(handshakeMsg, ip, port, nodeService.getNode().getIdentity().getNodeId()));
+                return true;
+            default:
+                break;
+        }
+        AcceptedHandshake accepted = accept(handshakeMsg, ip, port);
+        if (accepted == null) return false;
+        connection.setPeer(accepted.peer);
+        connection.send(accepted.ack);
+        connection.setSecureChannel(accepted.channel);
+        return true;
+    }
+
+    private AcceptedHandshake accept(HandshakeMessage handshakeMsg, String senderIp, int senderPort) {
         try {
+            // Only handshakes addressed to this node: the signature and binder cover `to`
+            String ownNodeId = nodeService.getNode().getIdentity().getNodeId();
+            if (!ownNodeId.equals(handshakeMsg.getTo())) {
+                System.err.println("Handshake from " + handshakeMsg.getFrom() + " addressed to " + handshakeMsg.getTo() + ", not to this node");
+                return null;
+            }
+
+            // Reconnect with a resumption ticket: no EC operations, no wallet write
+            if (handshakeMsg.getTicket() != null) {
+                return resumeSession(handshakeMsg);
+            }
+
             // 1. Basic validation
             if (handshakeMsg.getFrom() == null || handshakeMsg.getEphemeralPubKey() == null
-                    || handshakeMsg.getSignature() == null) {
+                    || handshakeMsg.getSignature() == null || handshakeMsg.getIdentityPubKey() == null) {
                 System.err.println("Invalid handshake message: missing required fields");
                 return null;
             }
 
-            // 2. Check if peer already exists
-            if (isPeerAlreadyKnown(handshakeMsg.getFrom())) {
-                System.out.println("Peer " + handshakeMsg.getFrom() + " already exists, updating last seen");
-                updatePeerLastSeen(handshakeMsg.getFrom());
-                return createHandshakeAck(handshakeMsg.getFrom());
-            }
-
-            // 3. Verify the signature
+            // 2. Verify the identity signature (before anything is derived from the ephemeral key)
             if (!verifyHandshakeSignature(handshakeMsg)) {
                 System.err.println("Handshake signature verification failed for peer: " + handshakeMsg.getFrom());
                 return null;
             }
+            if (!admission().recordNonce(handshakeMsg)) return null;
+
+            // 3. Check if peer already exists
+            Peer knownPeer = nodeService.findPeer(handshakeMsg.getFrom());
+            if (knownPeer != null) {
+                System.out.println("Peer " + handshakeMsg.getFrom() + " already exists, updating last seen");
+                updatePeerLastSeen(handshakeMsg.getFrom(), true);
+                return createHandshakeAck(handshakeMsg, knownPeer);
+            }
 
             // 4. Create new peer entry
             Peer newPeer = createNewPeer(handshakeMsg.getFrom(), senderIp, senderPort);
 
-            // 5. Add peer to the node's peer list
+            // 5. Add peer to the node's peer list and journal it (group-committed, off the message path)
             addPeerToNode(newPeer);
 
-            // 6. Save the updated node data
-            if (!saveNodeData()) {
-                System.err.println("Failed to save node data after adding new peer");
-                // Rollback - remove the peer we just added
-                removePeerFromNode(newPeer.getNodeId());
-                return null;
-            }
-
             System.out.println("Successfully added new peer: " + handshakeMsg.getFrom());
 
             // 7. Create and return acknowledgment
-            return createHandshakeAck(handshakeMsg.getFrom());
+            return createHandshakeAck(handshakeMsg, newPeer);
 
         } catch (Exception e) {
             System.err.println("Error handling handshake message: " + e.getMessage());
@@ -91,142 +158,158 @@ public class HandshakeHandler {
     }
 
     /**
-     * Checks if a peer with the given nodeId already exists
+     * Resumes a session from a ticket issued on an earlier handshake. The binder proves the initiator
+     * holds the ticket's secret; the new session keys come from that secret and both nonces.
      */
-    private boolean isPeerAlreadyKnown(String nodeId) {
-        if (node.getPeers() == null) {
-            return false;
+    private AcceptedHandshake resumeSession(HandshakeMessage handshakeMsg) {
+        if (handshakeMsg.getFrom() == null || handshakeMsg.getNonce() == null || handshakeMsg.getBinder() == null) {
+            System.err.println("Invalid resumption handshake: missing required fields");
+            return null;
+        }
+        byte[] secret = resumptionTickets.redeem(handshakeMsg.getTicket(), handshakeMsg.getFrom());
+        if (secret == null) {
+            System.err.println("Resumption ticket rejected for peer: " + handshakeMsg.getFrom());
+            return null;
         }
+        try {
+            if (!SessionKeys.verifyBinder(secret, createResumptionMessage(handshakeMsg), handshakeMsg.getBinder())) {
+                System.err.println("Resumption binder verification failed for peer: " + handshakeMsg.getFrom());
+                return null;
+            }
+            if (!admission().recordNonce(handshakeMsg)) return null;
+            Peer peer = nodeService.findPeer(handshakeMsg.getFrom());
+            if (peer == null) {
+                System.err.println("Resumption from unknown peer: " + handshakeMsg.getFrom());
+                return null;
+            }
+            updatePeerLastSeen(handshakeMsg.getFrom(), false);
 
-        for (Peer peer : node.getPeers()) {
-            if (peer.getNodeId().equals(nodeId)) {
-                return true;
+            HandshakeAckMessage ackMsg = new HandshakeAckMessage();
+            ackMsg.setFrom(nodeService.getNode().getIdentity().getNodeId());
+            ackMsg.setTo(handshakeMsg.getFrom());
+            ackMsg.setNonce(CryptoUtils.toBase64(CryptoUtils.randomBytes(16)));
+            ackMsg.setBinder(SessionKeys.binder(secret, String.format("HANDSHAKE_RESUME_ACK:%s:%s:%d:%s:%s",
+                    ackMsg.getFrom(), ackMsg.getTo(), ackMsg.getTimestamp(), handshakeMsg.getNonce(), ackMsg.getNonce())));
+
+            SessionKeys keys = SessionKeys.resume(secret, false, handshakeMsg.getFrom(), ackMsg.getFrom(),
+                    handshakeMsg.getNonce(), ackMsg.getNonce());
+            try {
+                issueTicket(ackMsg, keys);
+                return new AcceptedHandshake(ackMsg, keys.newChannel(), peer);
+            } finally {
+                keys.destroy();
             }
+        } finally {
+            Arrays.fill(secret, (byte) 0);
         }
-        return false;
     }
 
     /**
-     * Updates the lastSeen timestamp for an existing peer
+     * The string the resumption binder covers (must match HandshakeMessageBuilder.createResumptionPayload)
      */
-    private void updatePeerLastSeen(String nodeId) {
-        if (node.getPeers() == null) {
-            return;
-        }
-
-        for (Peer peer : node.getPeers()) {
-            if (peer.getNodeId().equals(nodeId)) {
-                peer.setLastSeen(LocalDateTime.now()); // Unix timestamp
-                saveNodeData(); // Save the updated timestamp
-                break;
-            }
-        }
+    private String createResumptionMessage(HandshakeMessage handshakeMsg) {
+        return String.format("HANDSHAKE_RESUME:%s:%s:%d:%s:%s:%s",
+                handshakeMsg.getFrom(),
+                handshakeMsg.getTo(),
+                handshakeMsg.getTimestamp(),
+                handshakeMsg.getSeq(),
+                handshakeMsg.getNonce(),
+                handshakeMsg.getTicket());
     }
 
     /**
-     * Verifies the handshake message signature
+     * Attaches a resumption ticket for the session to the acknowledgment
      */
-    private boolean verifyHandshakeSignature(HandshakeMessage handshakeMsg) {
+    private void issueTicket(HandshakeAckMessage ackMsg, SessionKeys keys) {
+        byte[] secret = keys.getResumptionSecret();
         try {
-            // Decode the ephemeral public key
-            PublicKey ephemeralPubKey = CryptoUtils.decodePublicKey(handshakeMsg.getEphemeralPubKey());
-
-            // Create the message to verify (same format used when signing)
-            String messageToVerify = createSignatureMessage(handshakeMsg);
-
-            // Verify the signature
-            return CryptoUtils.verifyFromBase64(ephemeralPubKey, messageToVerify, handshakeMsg.getSignature());
-
-        } catch (Exception e) {
-            System.err.println("Error verifying handshake signature: " + e.getMessage());
-            return false;
+            ackMsg.setTicket(resumptionTickets.issue(ackMsg.getTo(), secret));
+            ackMsg.setTicketLifetime(resumptionTickets.getLifetimeSeconds());
+        } finally {
+            Arrays.fill(secret, (byte) 0);
         }
     }
 
     /**
-     * Creates the message string that was signed (should match sender's format)
+     * Updates the lastSeen timestamp for an existing peer; persisted only when save is set
      */
-    private String createSignatureMessage(HandshakeMessage handshakeMsg) {
-        // This should match the format used by the sender when creating the signature
-        // Typically includes: nodeId, ephemeral public key, timestamp, and optionally nonce
-        return String.format("HANDSHAKE:%s:%s:%d",
-                handshakeMsg.getFrom(),
-                handshakeMsg.getEphemeralPubKey(),
-                handshakeMsg.getTimestamp());
+    private void updatePeerLastSeen(String nodeId, boolean save) {
+        nodeService.touchPeer(nodeId, LocalDateTime.now(), save);
     }
 
     /**
-     * Creates a new peer object
+     * Verifies the handshake signature under the sender's identity key, and that the key's hash is
+     * the nodeId it claims (see IdentityKey)
      */
-    private Peer createNewPeer(String nodeId, String ip, int port) {
-        return new Peer(nodeId, ip, port, LocalDateTime.now());
+    private boolean verifyHandshakeSignature(HandshakeMessage handshakeMsg) {
+        return IdentityKey.verify(handshakeMsg.getFrom(), handshakeMsg.getIdentityPubKey(),
+                createSignatureMessage(handshakeMsg), handshakeMsg.getSignature());
     }
 
     /**
-     * Adds a peer to the node's peer list
+     * Creates the message string that was signed (should match sender's format)
      */
-    private void addPeerToNode(Peer newPeer) {
-        if (node.getPeers() == null) {
-            node.setPeers(new Peer[]{newPeer});
-        } else {
-            // Convert array to list, add new peer, convert back to array
-            List<Peer> peerList = new ArrayList<>(Arrays.asList(node.getPeers()));
-            peerList.add(newPeer);
-            node.setPeers(peerList.toArray(new Peer[0]));
+    private String createSignatureMessage(HandshakeMessage handshakeMsg) {
+        // Must match HandshakeMessageBuilder.createSignaturePayload:
+        // from, to, ephemeral public key, timestamp, then seq and nonce when present
+        StringBuilder payload = new StringBuilder();
+        payload.append("HANDSHAKE:");
+        payload.append(handshakeMsg.getFrom()).append(":");
+        payload.append(handshakeMsg.getTo()).append(":");
+        payload.append(handshakeMsg.getEphemeralPubKey()).append(":");
+        payload.append(handshakeMsg.getTimestamp());
+        if (handshakeMsg.getSeq() != null) {
+            payload.append(":").append(handshakeMsg.getSeq());
+        }
+        if (handshakeMsg.getNonce() != null && !handshakeMsg.getNonce().isEmpty()) {
+            payload.append(":").append(handshakeMsg.getNonce());
         }
+        return payload.toString();
     }
 
     /**
-     * Removes a peer from the node's peer list (used for rollback)
+     * Creates a new peer object
      */
-    private void removePeerFromNode(String nodeId) {
-        if (node.getPeers() == null) {
-            return;
-        }
-
-        List<Peer> peerList = new ArrayList<>(Arrays.asList(node.getPeers()));
-        peerList.removeIf(peer -> peer.getNodeId().equals(nodeId));
-        node.setPeers(peerList.toArray(new Peer[0]));
+    private Peer createNewPeer(String nodeId, String ip, int port) {
+        return new Peer(nodeId, ip, port, LocalDateTime.now());
     }
 
     /**
-     * Saves the node data to persistent storage
+     * Adds a peer to the node's peer list
      */
-    private boolean saveNodeData() {
-        try {
-            persistenceManager.saveWallet(node, walletPath);
-            return true;
-        } catch (Exception e) {
-            System.err.println("Failed to save node data: " + e.getMessage());
-            return false;
-        }
+    private void addPeerToNode(Peer newPeer) {
+        nodeService.addPeer(newPeer);
     }
 
     /**
-     * Creates a handshake acknowledgment message
+     * Creates a handshake acknowledgment message and derives the session keys:
+     * ECDH between our fresh ephemeral key and the initiator's, bound to both nodeIds and both public keys
      */
-    private HandshakeAckMessage createHandshakeAck(String peerNodeId) {
+    private AcceptedHandshake createHandshakeAck(HandshakeMessage handshakeMsg, Peer peer) {
         try {
             HandshakeAckMessage ackMsg = new HandshakeAckMessage();
-            ackMsg.setFrom(node.getIdentity().getNodeId());
-            ackMsg.setTo(peerNodeId);
+            ackMsg.setFrom(nodeService.getNode().getIdentity().getNodeId());
+            ackMsg.setTo(handshakeMsg.getFrom());
 
-            // Generate ephemeral key pair for this session
-            // You might want to store this temporarily for the session
+            // Generate ephemeral key pair for this session; only the derived keys outlive this call
             java.security.KeyPair ephemeralKeyPair = generateEphemeralKeyPair();
             ackMsg.setEphemeralPubKey(CryptoUtils.encodePublicKey(ephemeralKeyPair.getPublic()));
 
-            // Sign the acknowledgment
-            String messageToSign = String.format("HANDSHAKE_ACK:%s:%s:%d",
-                    ackMsg.getFrom(),
-                    ackMsg.getEphemeralPubKey(),
-                    ackMsg.getTimestamp());
-
-            // Use master private key for signing (you'll need to derive this from masterSeedEnc)
-            // This is a simplified version - you'll need to decrypt masterSeedEnc first
-            ackMsg.setSignature(signAckMessage(messageToSign));
-
-            return ackMsg;
+            // Sign the acknowledgment with our identity key, bound to the initiator's ephemeral key and nonce
+            ackMsg.setIdentityPubKey(identityKey.publicKey());
+            ackMsg.setSignature(identityKey.sign(
+                    HandshakeMessageBuilder.createAckSignaturePayload(ackMsg, handshakeMsg)));
+
+            PublicKey peerEphemeral = CryptoUtils.decodePublicKey(handshakeMsg.getEphemeralPubKey());
+            SessionKeys keys = SessionKeys.derive(ephemeralKeyPair.getPrivate(), peerEphemeral, false,
+                    handshakeMsg.getFrom(), ackMsg.getFrom(),
+                    handshakeMsg.getEphemeralPubKey(), ackMsg.getEphemeralPubKey());
+            try {
+                issueTicket(ackMsg, keys);
+                return new AcceptedHandshake(ackMsg, keys.newChannel(), peer);
+            } finally {
+                keys.destroy();
+            }
 
         } catch (Exception e) {
             System.err.println("Error creating handshake acknowledgment: " + e.getMessage());
@@ -235,25 +318,26 @@ public class HandshakeHandler {
     }
 
     /**
-     * Generates an ephemeral key pair for the session
+     * Admission gate, created on first use
      */
-    private java.security.KeyPair generateEphemeralKeyPair() throws Exception {
-        java.security.KeyPairGenerator keyGen = java.security.KeyPairGenerator.getInstance("EC");
-        keyGen.initialize(256);
-        return keyGen.generateKeyPair();
+    private synchronized HandshakeAdmission admission() {
+        if (admission == null) {
+            admission = new HandshakeAdmission(handshakeProperties);
+        }
+        return admission;
     }
 
     /**
-     * Signs the acknowledgment message using the node's master key
-     * Note: You'll need to implement proper key derivation from masterSeedEnc
+     * Takes an ephemeral key pair for the session from the pool (generated in the background)
      */
-    private String signAckMessage(String message) throws Exception {
-        // This is a placeholder - you'll need to:
-        // 1. Decrypt the masterSeedEnc using user's password
-        // 2. Derive the appropriate private key using HD wallet derivation
-        // 3. Sign the message with that key
-
-        // For now, returning a placeholder
-        throw new UnsupportedOperationException("Implement key derivation and signing");
+    private java.security.KeyPair generateEphemeralKeyPair() throws Exception {
+        EphemeralKeyPool pool;
+        synchronized (this) {
+            if (ephemeralKeyPool == null) {
+                ephemeralKeyPool = EphemeralKeyPool.random("handshake-ack", keyProperties.getEphemeralPoolSize());
+            }
+            pool = ephemeralKeyPool;
+        }
+        return pool.take().getKeyPair();
     }
 }
\ No newline at end of file
@@ -1,36 +1,69 @@
 package dev.ojas.p2p_chat_file_share.message.handler;
 
-import dev.ojas.p2p_chat_file_share.config.StorageProperties;
+import dev.ojas.p2p_chat_file_share.config.KeyProperties;
+import dev.ojas.p2p_chat_file_share.config.LivenessProperties;
+import dev.ojas.p2p_chat_file_share.message.data.HandshakeAckMessage;
+import dev.ojas.p2p_chat_file_share.message.data.HandshakeCookieMessage;
 import dev.ojas.p2p_chat_file_share.message.data.HandshakeMessage;
-import dev.ojas.p2p_chat_file_share.node.data.Node;
 import dev.ojas.p2p_chat_file_share.node.data.Peer;
-import dev.ojas.p2p_chat_file_share.node.data.Vault;
+import dev.ojas.p2p_chat_file_share.node.service.NodeService;
+import dev.ojas.p2p_chat_file_share.session.SecureChannel;
+import dev.ojas.p2p_chat_file_share.session.SessionKeys;
+import dev.ojas.p2p_chat_file_share.session.TicketCache;
+import dev.ojas.p2p_chat_file_share.transport.PeerConnection;
 import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
-import dev.ojas.p2p_chat_file_share.utils.persist.PersistenceManager;
+import dev.ojas.p2p_chat_file_share.utils.key.EphemeralKeyPool;
+import dev.ojas.p2p_chat_file_share.utils.key.IdentityKey;
+import dev.ojas.p2p_chat_file_share.utils.key.KeySession;
+import dev.ojas.p2p_chat_file_share.utils.persist.NodeJournal;
+import dev.ojas.p2p_chat_file_share.utils.timer.HashedTimingWheel;
+import org.bouncycastle.jce.ECNamedCurveTable;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class HandshakeMessageBuilder {
-    private final Node node;
-    private final Path walletPath;
+    private final NodeService nodeService;
     private final AtomicLong sequenceCounter;
+    // ephemeral key pair of each handshake we sent and have not seen the ack for, by target nodeId
+    private final Map<String, KeyPair> pendingHandshakes = new ConcurrentHashMap<>();
+    // ticket taken for each resumption we sent and have not seen the ack for, by target nodeId
+    private final Map<String, PendingResumption> pendingResumptions = new ConcurrentHashMap<>();
+    private final TicketCache ticketCache = new TicketCache(256);
+    // last handshake sent to each target, kept for a cookie retry until the ack arrives
+    private final Map<String, HandshakeMessage> awaitingAck = new ConcurrentHashMap<>();
+
+    private static final class PendingResumption {
+        final TicketCache.Entry ticket;
+        final String nonce;
+
+        PendingResumption(TicketCache.Entry ticket, String nonce) {
+            this.ticket = ticket;
+            this.nonce = nonce;
+        }
+    }
 
     @Autowired
-    private StorageProperties storageProperties;
+    private KeySession keySession;
+    @Autowired
+    private KeyProperties keyProperties;
+    @Autowired
+    private IdentityKey identityKey;
+    @Autowired
+    private HashedTimingWheel timer;
     @Autowired
-    private PersistenceManager persistenceManager;
+    private LivenessProperties livenessProperties;
+    private EphemeralKeyPool ephemeralKeyPool;
 
-    public HandshakeMessageBuilder(Node node) {
-        this.node = node;
-        String walletPathProperty = storageProperties.getDir();
-        this.walletPath = Paths.get(walletPathProperty);
+    public HandshakeMessageBuilder(NodeService nodeService) {
+        this.nodeService = nodeService;
         this.sequenceCounter = new AtomicLong(0);
     }
 
@@ -40,12 +73,12 @@ public class HandshakeMessageBuilder {
      * @return Complete HandshakeMessage ready to send
      */
     public HandshakeMessage createHandshakeMessage(String targetNodeId) throws Exception {
-        // Generate ephemeral key pair for this handshake
-        KeyPair ephemeralKeyPair = generateEphemeralKeyPair();
+        // Take a pregenerated ephemeral key pair (its index was reserved and saved with its block)
+        KeyPair ephemeralKeyPair = ephemeralKeyPool().take().getKeyPair();
 
         // Create the base message
         HandshakeMessage handshake = new HandshakeMessage();
-        handshake.setFrom(node.getIdentity().getNodeId());
+        handshake.setFrom(nodeService.getNode().getIdentity().getNodeId());
         handshake.setTo(targetNodeId);
         handshake.setSeq(sequenceCounter.incrementAndGet());
 
@@ -53,17 +86,136 @@ public class HandshakeMessageBuilder {
         String ephemeralPubKeyB64 = CryptoUtils.encodePublicKey(ephemeralKeyPair.getPublic());
         handshake.setEphemeralPubKey(ephemeralPubKeyB64);
 
-        // Create signature
-        String messageToSign = createSignaturePayload(handshake);
-        String signature = signHandshakeMessage(messageToSign, ephemeralKeyPair.getPrivate());
-        handshake.setSignature(signature);
+        // Sign with the identity key, whose hash is our nodeId
+        handshake.setIdentityPubKey(identityKey.publicKey());
+        handshake.setSignature(signHandshakeMessage(createSignaturePayload(handshake)));
+
+        // Keep the private half until the ack arrives (see completeHandshake)
+        pendingHandshakes.put(targetNodeId, ephemeralKeyPair);
+        awaitingAck.put(targetNodeId, handshake);
+        PendingResumption superseded = pendingResumptions.remove(targetNodeId);
+        if (superseded != null) superseded.ticket.destroy();
+        expireUnanswered(targetNodeId, handshake);
+
+        return handshake;
+    }
+
+    /**
+     * Completes a handshake we initiated: checks the ack signature, runs ECDH between our ephemeral
+     * key and the responder's, and derives the session keys.
+     * @param ack The HandshakeAckMessage received from the peer
+     * @return SecureChannel for the session, or null if no handshake to that peer is pending or the ack is invalid
+     */
+    public SecureChannel completeHandshake(HandshakeAckMessage ack) throws Exception {
+        HandshakeMessage sent = ack.getFrom() == null ? null : awaitingAck.remove(ack.getFrom());
+        SecureChannel channel = ack.getBinder() != null ? completeResumption(ack) : completeFullHandshake(ack, sent);
+        if (channel != null && sent != null) {
+            // handshake round trip (including the responder's key work): the peer's score for reconnects
+            long rttMillis = System.currentTimeMillis() - sent.getTimestamp();
+            if (rttMillis > 0) nodeService.recordRtt(ack.getFrom(), rttMillis * 1_000_000L);
+        }
+        return channel;
+    }
+
+    private SecureChannel completeFullHandshake(HandshakeAckMessage ack, HandshakeMessage sent) throws Exception {
+        if (ack.getFrom() == null || ack.getEphemeralPubKey() == null || ack.getSignature() == null
+                || ack.getIdentityPubKey() == null) {
+            System.err.println("Invalid handshake ack: missing required fields");
+            return null;
+        }
+        KeyPair ephemeralKeyPair = pendingHandshakes.remove(ack.getFrom());
+        if (ephemeralKeyPair == null || sent == null) {
+            System.err.println("Unexpected handshake ack from " + ack.getFrom());
+            return null;
+        }
+
+        // the responder's identity key signs its ephemeral key together with ours and our nonce,
+        // so the ack can't be replayed into another handshake
+        String signedAck = createAckSignaturePayload(ack, sent);
+        if (!IdentityKey.verify(ack.getFrom(), ack.getIdentityPubKey(), signedAck, ack.getSignature())) {
+            System.err.println("Handshake ack signature verification failed for peer: " + ack.getFrom());
+            return null;
+        }
+        PublicKey peerEphemeral = CryptoUtils.decodePublicKey(ack.getEphemeralPubKey());
+
+        SessionKeys keys = SessionKeys.derive(ephemeralKeyPair.getPrivate(), peerEphemeral, true,
+                nodeService.getNode().getIdentity().getNodeId(), ack.getFrom(),
+                CryptoUtils.encodePublicKey(ephemeralKeyPair.getPublic()), ack.getEphemeralPubKey());
+        try {
+            storeTicket(ack, keys);
+            return keys.newChannel();
+        } finally {
+            keys.destroy();
+        }
+    }
+
+    /**
+     * Completes a resumption: checks the ack binder under the ticket's secret and derives the resumed
+     * session from that secret and both nonces.
+     */
+    private SecureChannel completeResumption(HandshakeAckMessage ack) {
+        if (ack.getFrom() == null || ack.getNonce() == null) {
+            System.err.println("Invalid resumption ack: missing required fields");
+            return null;
+        }
+        PendingResumption pending = pendingResumptions.remove(ack.getFrom());
+        if (pending == null) {
+            System.err.println("Unexpected resumption ack from " + ack.getFrom());
+            return null;
+        }
+        byte[] secret = pending.ticket.getSecret();
+        try {
+            String signedAck = String.format("HANDSHAKE_RESUME_ACK:%s:%s:%d:%s:%s",
+                    ack.getFrom(), ack.getTo(), ack.getTimestamp(), pending.nonce, ack.getNonce());
+            if (!SessionKeys.verifyBinder(secret, signedAck, ack.getBinder())) {
+                System.err.println("Resumption ack binder verification failed for peer: " + ack.getFrom());
+                return null;
+            }
+            SessionKeys keys = SessionKeys.resume(secret, true, nodeService.getNode().getIdentity().getNodeId(), ack.getFrom(),
+                    pending.nonce, ack.getNonce());
+            try {
+                storeTicket(ack, keys);
+                return keys.newChannel();
+            } finally {
+                keys.destroy();
+            }
+        } finally {
+            pending.ticket.destroy();
+        }
+    }
 
-        // Update ephemeral index and save
-        incrementEphemeralIndexAndSave();
+    /**
+     * Keeps the ticket an ack carries for the next reconnect to that peer
+     */
+    private void storeTicket(HandshakeAckMessage ack, SessionKeys keys) {
+        if (ack.getTicket() == null || ack.getTicketLifetime() == null) return;
+        ticketCache.put(ack.getFrom(), ack.getTicket(), keys.getResumptionSecret(), ack.getTicketLifetime());
+    }
 
+    /**
+     * The responder asked for a cookie: the pending handshake to that peer, with the cookie attached,
+     * ready to be sent again. Null if nothing is pending or it already carried a cookie.
+     */
+    public HandshakeMessage retryWithCookie(HandshakeCookieMessage cookieMsg) {
+        if (cookieMsg.getFrom() == null || cookieMsg.getCookie() == null) return null;
+        HandshakeMessage handshake = awaitingAck.get(cookieMsg.getFrom());
+        if (handshake == null || handshake.getCookie() != null) return null;
+        handshake.setCookie(cookieMsg.getCookie());
         return handshake;
     }
 
+    /**
+     * Completes a handshake and switches the connection over to the session.
+     * Call this from the connection's message callback so no later frame is read before the switch.
+     * @return true if the session was established
+     */
+    public boolean completeHandshake(HandshakeAckMessage ack, PeerConnection connection) throws Exception {
+        SecureChannel channel = completeHandshake(ack);
+        if (channel == null) return false;
+        connection.setSecureChannel(channel);
+        return true;
+    }
+
     /**
      * Creates a handshake message with additional nonce for replay protection
      * @param targetNodeId The nodeId of the peer we want to connect to
@@ -77,22 +229,56 @@ public class HandshakeMessageBuilder {
             handshake.setNonce(nonce);
 
             // Re-sign with nonce included
-            String messageToSign = createSignaturePayload(handshake);
-            KeyPair ephemeralKeyPair = generateEphemeralKeyPairFromIndex((int) (node.getIndices().getEphemeral() - 1));
-            String signature = signHandshakeMessage(messageToSign, ephemeralKeyPair.getPrivate());
-            handshake.setSignature(signature);
+            handshake.setSignature(signHandshakeMessage(createSignaturePayload(handshake)));
         }
 
         return handshake;
     }
 
     /**
-     * Creates a handshake message for reconnection (using existing peer info)
+     * Creates a handshake message for reconnection (using existing peer info).
+     * With a live resumption ticket for the peer this is a resumption handshake: no seed decryption,
+     * no key derivation or signature and no wallet write. Otherwise it is a full handshake.
      * @param peer The peer to reconnect to
      * @return Complete HandshakeMessage for reconnection
      */
     public HandshakeMessage createReconnectionHandshake(Peer peer) throws Exception {
-        return createHandshakeMessage(peer.getNodeId());
+        TicketCache.Entry ticket = ticketCache.take(peer.getNodeId());
+        if (ticket == null) {
+            return createHandshakeMessage(peer.getNodeId());
+        }
+
+        HandshakeMessage handshake = new HandshakeMessage();
+        handshake.setFrom(nodeService.getNode().getIdentity().getNodeId());
+        handshake.setTo(peer.getNodeId());
+        handshake.setSeq(sequenceCounter.incrementAndGet());
+        handshake.setNonce(generateNonce());
+        handshake.setTicket(ticket.getTicket());
+        handshake.setBinder(SessionKeys.binder(ticket.getSecret(), createResumptionPayload(handshake)));
+
+        pendingHandshakes.remove(peer.getNodeId());
+        awaitingAck.put(peer.getNodeId(), handshake);
+        PendingResumption superseded = pendingResumptions.put(peer.getNodeId(), new PendingResumption(ticket, handshake.getNonce()));
+        if (superseded != null) superseded.ticket.destroy();
+        expireUnanswered(peer.getNodeId(), handshake);
+        return handshake;
+    }
+
+    /**
+     * Drop the state kept for this handshake if no ack came within handshakeTimeoutSeconds. A newer
+     * handshake to the same peer replaced the entries and has its own timer, so only this one's go.
+     */
+    private void expireUnanswered(String targetNodeId, HandshakeMessage handshake) {
+        if (timer == null || livenessProperties == null) return;
+        KeyPair keyPair = pendingHandshakes.get(targetNodeId);
+        PendingResumption resumption = pendingResumptions.get(targetNodeId);
+        timer.newTimeout(() -> {
+            if (!awaitingAck.remove(targetNodeId, handshake)) return; // answered or superseded
+            if (keyPair != null) pendingHandshakes.remove(targetNodeId, keyPair);
+            if (resumption != null && pendingResumptions.remove(targetNodeId, resumption)) resumption.ticket.destroy();
+            System.err.println("Handshake to " + targetNodeId + " expired without an ack");
+            nodeService.recordFailure(targetNodeId);
+        }, livenessProperties.getHandshakeTimeoutSeconds(), TimeUnit.SECONDS);
     }
 
     /**
@@ -130,40 +316,71 @@ public class HandshakeMessageBuilder {
     }
 
     /**
-     * Signs the handshake message using the ephemeral private key
+     * Creates the payload the ack signature covers: the ack's own fields, then the initiator's
+     * ephemeral key and nonce. This must match HandshakeHandler.createAckSignatureMessage
+     */
+    static String createAckSignaturePayload(HandshakeAckMessage ack, HandshakeMessage handshake) {
+        return String.format("HANDSHAKE_ACK:%s:%s:%s:%d:%s:%s",
+                ack.getFrom(),
+                ack.getTo(),
+                ack.getEphemeralPubKey(),
+                ack.getTimestamp(),
+                handshake.getEphemeralPubKey(),
+                handshake.getNonce());
+    }
+
+    /**
+     * Creates the payload the resumption binder covers
+     * This must match HandshakeHandler.createResumptionMessage
+     */
+    private String createResumptionPayload(HandshakeMessage handshake) {
+        return String.format("HANDSHAKE_RESUME:%s:%s:%d:%s:%s:%s",
+                handshake.getFrom(),
+                handshake.getTo(),
+                handshake.getTimestamp(),
+                handshake.getSeq(),
+                handshake.getNonce(),
+                handshake.getTicket());
+    }
+
+    /**
+     * Signs the handshake message with the identity key (needs the KeySession unlocked)
      */
-    private String signHandshakeMessage(String message, PrivateKey ephemeralPrivateKey) throws Exception {
-        return CryptoUtils.signToBase64(ephemeralPrivateKey, message);
+    private String signHandshakeMessage(String message) throws Exception {
+        return identityKey.sign(message);
     }
 
     /**
-     * Generates an ephemeral key pair for this handshake
+     * Pool of deterministic ephemeral key pairs, created on first use. The keys come from the seed,
+     * so the pool is emptied whenever the KeySession locks.
      */
-    private KeyPair generateEphemeralKeyPair() throws Exception {
-        int currentIndex = node.getIndices().getEphemeral();
-        return generateEphemeralKeyPairFromIndex(currentIndex);
+    private synchronized EphemeralKeyPool ephemeralKeyPool() {
+        if (ephemeralKeyPool == null) {
+            ephemeralKeyPool = new EphemeralKeyPool("handshake", keyProperties.getEphemeralPoolSize(),
+                    keyProperties.getEphemeralIndexBlock(), this::reserveEphemeralIndices,
+                    this::generateEphemeralKeyPairFromIndex);
+            keySession.onLock(ephemeralKeyPool::clear);
+        }
+        return ephemeralKeyPool;
     }
 
     /**
      * Generates ephemeral key pair from specific index (for deterministic generation)
      */
     private KeyPair generateEphemeralKeyPairFromIndex(int index) throws Exception {
-        // Get master seed
-        byte[] masterSeed = decryptMasterSeed();
-
         // Create derivation info
         String derivationInfo = "ephemeral:" + index;
         byte[] derivationInfoBytes = derivationInfo.getBytes("UTF-8");
 
-        // Derive ephemeral key material
-        byte[] ephemeralSeed = CryptoUtils.hkdfExpand(
-                CryptoUtils.hkdfExtract(null, masterSeed),
-                derivationInfoBytes,
-                32 // 256-bit seed
-        );
+        // Derive ephemeral key material from the unlocked seed (no PBKDF2 per handshake)
+        byte[] ephemeralSeed = keySession.deriveKey(derivationInfoBytes, 32); // 256-bit seed
 
         // Generate EC key pair from seed
-        return createECKeyPairFromSeed(ephemeralSeed);
+        try {
+            return createECKeyPairFromSeed(ephemeralSeed);
+        } finally {
+            java.util.Arrays.fill(ephemeralSeed, (byte) 0);
+        }
     }
 
     /**
@@ -200,21 +417,15 @@ public class HandshakeMessageBuilder {
     }
 
     /**
-     * Calculates the public key point from private key scalar
+     * Calculates the public key point from private key scalar (publicPoint = privateKeyScalar * G)
      */
     private java.security.spec.ECPoint calculatePublicPoint(java.math.BigInteger privateKeyScalar,
                                                             java.security.spec.ECParameterSpec ecSpec) {
-        // This is a simplified version - in production you might want to use a crypto library
-        // like BouncyCastle for proper EC point multiplication
-        java.security.spec.ECPoint generator = ecSpec.getGenerator();
-
-        // For now, we'll use the KeyPairGenerator approach which is simpler
-        // In a full implementation, you'd do: publicPoint = privateKeyScalar * generator
-
-        // This is a placeholder - the actual EC point multiplication is complex
-        // Consider using BouncyCastle or similar library for production
-        throw new UnsupportedOperationException(
-                "Implement EC point multiplication or use BouncyCastle library");
+        org.bouncycastle.math.ec.ECPoint point = ECNamedCurveTable.getParameterSpec("secp256r1")
+                .getG().multiply(privateKeyScalar).normalize();
+        return new java.security.spec.ECPoint(
+                point.getAffineXCoord().toBigInteger(),
+                point.getAffineYCoord().toBigInteger());
     }
 
     /**
@@ -249,53 +460,10 @@ public class HandshakeMessageBuilder {
     }
 
     /**
-     * Decrypts master seed (same implementation as HandshakeHandler)
-     */
-    private byte[] decryptMasterSeed() throws Exception {
-        String password = getPasswordFromUser();
-        Vault.EncryptedSeed seedEnc = node.getIdentity().getMasterSeedEnc();
-
-        byte[] salt = CryptoUtils.fromBase64(seedEnc.getSalt());
-        byte[] decryptionKey = deriveKeyFromPassword(password, salt, seedEnc.getIterations());
-
-        // Handle IV extraction based on your encryption format
-        String iv = extractIVFromCiphertext(seedEnc.getCiphertext());
-
-        return CryptoUtils.aesGcmDecryptFromBase64(decryptionKey, iv, seedEnc.getCiphertext());
-    }
-
-    /**
-     * Derives key from password using PBKDF2
-     */
-    private byte[] deriveKeyFromPassword(String password, byte[] salt, int iterations) throws Exception {
-        javax.crypto.spec.PBEKeySpec spec = new javax.crypto.spec.PBEKeySpec(
-                password.toCharArray(), salt, iterations, 256);
-        javax.crypto.SecretKeyFactory factory = javax.crypto.SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        javax.crypto.SecretKey key = factory.generateSecret(spec);
-        return key.getEncoded();
-    }
-
-    /**
-     * Increments the ephemeral index and saves the node data
-     */
-    private void incrementEphemeralIndexAndSave() throws Exception {
-        node.getIndices().setEphemeral(node.getIndices().getEphemeral() + 1);
-        persistenceManager.saveWallet(node, walletPath);
-    }
-
-    /**
-     * Placeholder for password input
-     */
-    private String getPasswordFromUser() {
-        throw new UnsupportedOperationException(
-                "Implement password input mechanism for your application");
-    }
-
-    /**
-     * Placeholder for IV extraction
+     * Advances the ephemeral index past a block of `count` indices, durably and once for the whole
+     * block. Returns the first index of the block.
      */
-    private String extractIVFromCiphertext(String ciphertext) {
-        throw new UnsupportedOperationException(
-                "Implement IV extraction based on your encryption format");
+    private int reserveEphemeralIndices(int count) {
+        return nodeService.reserveIndices(NodeJournal.IndexKind.EPHEMERAL, count);
     }
 }
\ No newline at end of file
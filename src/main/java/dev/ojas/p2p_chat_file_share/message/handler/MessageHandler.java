@@ -1,16 +1,20 @@
 package dev.ojas.p2p_chat_file_share.message.handler;
 
 import dev.ojas.p2p_chat_file_share.exception.StorageDirNullException;
+import dev.ojas.p2p_chat_file_share.file.TransferEngine;
 import dev.ojas.p2p_chat_file_share.message.data.*;
 import dev.ojas.p2p_chat_file_share.node.data.Peer;
 import dev.ojas.p2p_chat_file_share.node.service.NodeService;
 import dev.ojas.p2p_chat_file_share.room.Room;
 import dev.ojas.p2p_chat_file_share.room.RoomManager;
+import dev.ojas.p2p_chat_file_share.transport.PeerConnection;
 import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.io.EOFException;
 import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
+import java.time.LocalDateTime;
 import java.util.Base64;
 import java.util.Objects;
 
@@ -18,12 +22,58 @@ public class MessageHandler {
     private final RoomManager roomManager;
     private final NodeService nodeService;
     private final HandshakeHandler handshakeHandler;
+    private final TransferEngine transferEngine;
+    private volatile HandshakeMessageBuilder handshakeMessageBuilder;
 
     @Autowired
-    public MessageHandler(RoomManager roomManager, NodeService nodeService, HandshakeHandler handshakeHandler) {
+    public MessageHandler(RoomManager roomManager, NodeService nodeService, HandshakeHandler handshakeHandler,
+                          TransferEngine transferEngine) {
         this.roomManager = roomManager;
         this.nodeService = nodeService;
         this.handshakeHandler = handshakeHandler;
+        this.transferEngine = transferEngine;
+    }
+
+    /**
+     * Builder whose outgoing handshakes this node completes when the ack comes back.
+     */
+    public void setHandshakeMessageBuilder(HandshakeMessageBuilder handshakeMessageBuilder) {
+        this.handshakeMessageBuilder = handshakeMessageBuilder;
+    }
+
+    /**
+     * Message read from a connection: handshakes set up the session on it, everything else goes
+     * through handleMessage(BaseMessage). Runs on the connection's I/O thread, so the session is in
+     * place before the next frame is read.
+     * - other frames are dropped until the connection is secure
+     * - their `from` is the peer the handshake verified, whatever the sender put there
+     */
+    public void handleMessage(BaseMessage msg, PeerConnection connection) {
+        switch (msg.getType()) {
+            case HANDSHAKE_MESSAGE:
+                try {
+                    if (!handshakeHandler.acceptHandshake((HandshakeMessage) msg, connection)) connection.close();
+                } catch (Exception e) {
+                    System.err.println("Error accepting handshake from " + msg.getFrom() + ": " + e.getMessage());
+                    connection.close();
+                }
+                break;
+            case HANDSHAKE_ACK:
+                handleHandshakeAck((HandshakeAckMessage) msg, connection);
+                break;
+            case HANDSHAKE_COOKIE:
+                handleHandshakeCookie((HandshakeCookieMessage) msg, connection);
+                break;
+            default:
+                Peer peer = connection.getPeer();
+                if (!connection.isSecure() || peer == null) {
+                    System.err.println("Dropping " + msg.getType() + " from " + connection.getRemoteAddress() + ": no session yet");
+                    return;
+                }
+                msg.setFrom(peer.getNodeId());
+                if (msg.getType() == MessageType.HEARTBEAT) handleHeartbeat(connection);
+                else handleMessage(msg);
+        }
     }
 
     public void handleMessage(BaseMessage msg) {
@@ -49,18 +99,61 @@ public class MessageHandler {
             case ROOM_MESSAGE:
                 handleRoom((RoomMessage) msg);
                 break;
+            case FILE_HAVE_MESSAGE:
+                handleFileHave((FileHaveMessage) msg);
+                break;
             default:
                 System.out.println("Unknown message type: " + msg.getType());
         }
     }
 
-    private void handleHandshake(HandshakeMessage msg) throws Exception {
+    /**
+     * Connection closed (by the peer, an error or the idle check): its outbound transfers stop and its
+     * swarm requests go back to the other peers. An idle eviction or an I/O error counts against the peer's
+     * score; the peer closing the connection (EOF) or a local close() does not.
+     */
+    public void handleDisconnect(PeerConnection connection, Throwable cause) {
+        Peer peer = connection.getPeer();
+        if (peer == null || peer.getNodeId() == null) return;
+        transferEngine.onPeerGone(peer.getNodeId());
+        if (cause != null && !(cause instanceof EOFException)) nodeService.recordFailure(peer.getNodeId());
+    }
+
+    private void handleHandshake(HandshakeMessage msg) {
         System.out.println("🤝 Handshake from " + msg.getFrom() + " with pubKey=" + msg.getEphemeralPubKey());
         // TODO: store peer’s identity
 
 
     }
 
+    private void handleHandshakeAck(HandshakeAckMessage msg, PeerConnection connection) {
+        HandshakeMessageBuilder builder = handshakeMessageBuilder;
+        try {
+            if (builder != null && builder.completeHandshake(msg, connection)) {
+                System.out.println("🔒 Session established with " + msg.getFrom());
+                return;
+            }
+        } catch (Exception e) {
+            System.err.println("Error completing handshake with " + msg.getFrom() + ": " + e.getMessage());
+        }
+        connection.close();
+    }
+
+    private void handleHandshakeCookie(HandshakeCookieMessage msg, PeerConnection connection) {
+        HandshakeMessageBuilder builder = handshakeMessageBuilder;
+        HandshakeMessage retry = builder == null ? null : builder.retryWithCookie(msg);
+        if (retry == null) {
+            connection.close();
+            return;
+        }
+        try {
+            connection.send(retry);
+        } catch (Exception e) {
+            System.err.println("Error resending handshake to " + msg.getFrom() + ": " + e.getMessage());
+            connection.close();
+        }
+    }
+
     private void handleChat(ChatMessage msg) {
         System.out.println("💬 Chat from " + msg.getFrom() + ": " + msg.getEncryptedPayload());
         // TODO: decrypt payload with own private key
@@ -72,6 +165,12 @@ public class MessageHandler {
     }
 
     private void handleFileChunk(FileChunkMessage msg) {
+        try {
+            if (transferEngine.onChunk(msg)) return;
+        } catch (Exception e) {
+            System.err.println("Error storing chunk " + msg.getChunkIndex() + " of " + msg.getFileId() + ": " + e.getMessage());
+            return;
+        }
         System.out.println("📦 Received chunk " + msg.getChunkIndex() + "/" + msg.getTotalChunks());
         // TODO: assemble chunks into file
     }
@@ -107,12 +206,36 @@ public class MessageHandler {
         }
     }
 
-    private void handleFileChunkAck(FileChunkAckMessage msg) {
+    private void handleHeartbeat(PeerConnection connection) {
+        // the sender is the peer the session was set up with, not whatever `from` claims;
+        // lastSeen stays in memory, the journal gets it at the next handshake
+        Peer peer = connection.getPeer();
+        if (peer == null || !connection.isSecure() || nodeService.getNode() == null) return;
+        nodeService.touchPeer(peer.getNodeId(), LocalDateTime.now(), false);
+    }
 
+    private void handleFileChunkAck(FileChunkAckMessage msg) {
+        try {
+            transferEngine.onAck(msg);
+        } catch (Exception e) {
+            System.err.println("Error handling chunk ack for " + msg.getFileId() + ": " + e.getMessage());
+        }
     }
 
     private void handleFileChunkRequest(FileChunkRequestMessage msg) {
+        try {
+            transferEngine.onRequest(msg);
+        } catch (Exception e) {
+            System.err.println("Error handling chunk request for " + msg.getFileId() + ": " + e.getMessage());
+        }
+    }
 
+    private void handleFileHave(FileHaveMessage msg) {
+        try {
+            transferEngine.onHave(msg);
+        } catch (Exception e) {
+            System.err.println("Error handling have-set for " + msg.getFileId() + ": " + e.getMessage());
+        }
     }
 
     private byte[] decryptRoomKey(String encryptedKey) {
@@ -9,7 +9,7 @@ public class Node {
     Identity identity;
     Metadata metadata;
     Indices indices;
-    Peer[] peers;
+    PeerTable peers; // serialized as a Peer array
     Room[] rooms;
     PendingTransfer[] pendingTransfers;
     Config config;
@@ -0,0 +1,80 @@
+package dev.ojas.p2p_chat_file_share.node.data;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * PeerScore: what this node has observed of one peer, kept with it in the PeerTable. Immutable; every
+ * observation returns a new score.
+ * - rttMillis / throughputBytesPerSecond: EWMAs of the samples (0 = never measured)
+ * - failures: consecutive failures (timeouts, dropped transfers, unanswered handshakes), reset by a success
+ * - lastSuccessMillis / lastFailureMillis: epoch millis of the last of each (0 = never)
+ * score() folds these into one number in (0, 1]; higher is better. Unmeasured parts count as average,
+ * so a new peer ranks below a proven fast one and above a slow or failing one.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public final class PeerScore {
+    public static final PeerScore UNKNOWN = new PeerScore(0, 0, 0, 0, 0);
+
+    private static final double RTT_GAIN = 0.125;           // same smoothing as TCP's SRTT
+    private static final double THROUGHPUT_GAIN = 0.25;
+    private static final double REFERENCE_RTT_MILLIS = 100;  // latency factor 0.5 at this RTT
+    private static final double REFERENCE_THROUGHPUT = 1 << 20; // throughput factor 0.5 at 1 MiB/s
+    private static final double RECENCY_HALF_LIFE_MILLIS = 3_600_000; // one hour
+
+    private final double rttMillis;
+    private final double throughputBytesPerSecond;
+    private final int failures;
+    private final long lastSuccessMillis;
+    private final long lastFailureMillis;
+
+    /**
+     * A round trip took rttNanos. Counts as a success.
+     */
+    public PeerScore withRtt(long rttNanos, long nowMillis) {
+        if (rttNanos <= 0) return this;
+        double sample = rttNanos / 1e6;
+        double rtt = rttMillis == 0 ? sample : rttMillis + RTT_GAIN * (sample - rttMillis);
+        return new PeerScore(rtt, throughputBytesPerSecond, 0, nowMillis, lastFailureMillis);
+    }
+
+    /**
+     * `bytes` arrived from the peer over `nanos`. Counts as a success.
+     */
+    public PeerScore withThroughput(long bytes, long nanos, long nowMillis) {
+        if (bytes <= 0 || nanos <= 0) return this;
+        double sample = bytes * 1e9 / nanos;
+        double throughput = throughputBytesPerSecond == 0 ? sample
+                : throughputBytesPerSecond + THROUGHPUT_GAIN * (sample - throughputBytesPerSecond);
+        return new PeerScore(rttMillis, throughput, 0, nowMillis, lastFailureMillis);
+    }
+
+    public PeerScore withFailure(long nowMillis) {
+        return new PeerScore(rttMillis, throughputBytesPerSecond, failures == Integer.MAX_VALUE ? failures : failures + 1,
+                lastSuccessMillis, nowMillis);
+    }
+
+    /**
+     * (latency + throughput) / 2 * reliability * recency, each factor in (0, 1]:
+     * latency = 100ms / (100ms + rtt), throughput = t / (t + 1 MiB/s), reliability = 1 / (1 + failures),
+     * recency = 0.5 + 0.5 * 2^(-age of last success / 1h). Unmeasured latency or throughput count 0.5,
+     * a peer never successfully reached counts 0.5 for recency.
+     */
+    public double score(long nowMillis) {
+        double latency = rttMillis == 0 ? 0.5 : REFERENCE_RTT_MILLIS / (REFERENCE_RTT_MILLIS + rttMillis);
+        double throughput = throughputBytesPerSecond == 0 ? 0.5
+                : throughputBytesPerSecond / (throughputBytesPerSecond + REFERENCE_THROUGHPUT);
+        double reliability = 1.0 / (1 + failures);
+        double recency = 0.5;
+        if (lastSuccessMillis != 0) {
+            long age = Math.max(0, nowMillis - lastSuccessMillis);
+            recency = 0.5 + 0.5 * Math.pow(2, -age / RECENCY_HALF_LIFE_MILLIS);
+        }
+        return (latency + throughput) / 2 * reliability * recency;
+    }
+}
@@ -0,0 +1,306 @@
+package dev.ojas.p2p_chat_file_share.node.data;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import dev.ojas.p2p_chat_file_share.utils.TimeUtils;
+
+import java.time.LocalDateTime;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.UnaryOperator;
+
+/**
+ * PeerTable: known peers keyed by nodeId, with secondary indexes by address (ip:port) and by lastSeen.
+ * Each peer carries a PeerScore; top() picks the best-scored peers for dialing, relaying or fetching.
+ * - reads (get, contains, findByAddress, ordered views) take no lock
+ * - writes to one nodeId are serialized by ConcurrentHashMap.compute, which also keeps both indexes in step
+ * - stored Peer objects are never modified: touch() swaps in a new Peer. Callers must not mutate a
+ *   Peer they got from here either (use touch/put), or the lastSeen index goes stale.
+ * - serialized as a plain Peer array (snapshot()) for JSON; scores are persisted by WalletSnapshot and
+ *   the NodeJournal only
+ */
+public final class PeerTable {
+    private static final class SeenKey implements Comparable<SeenKey> {
+        final long seen;
+        final String nodeId;
+
+        SeenKey(long seen, String nodeId) {
+            this.seen = seen;
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public int compareTo(SeenKey other) {
+            int byTime = Long.compare(seen, other.seen);
+            return byTime != 0 ? byTime : nodeId.compareTo(other.nodeId);
+        }
+    }
+
+    private static final class Entry {
+        final Peer peer;
+        final SeenKey seenKey;
+        final PeerScore score;
+
+        Entry(Peer peer, PeerScore score) {
+            this.peer = peer;
+            this.seenKey = new SeenKey(TimeUtils.toEpochMillis(peer.getLastSeen()), peer.getNodeId());
+            this.score = score;
+        }
+    }
+
+    private static final class Ranked {
+        final Peer peer;
+        final double score;
+
+        Ranked(Peer peer, double score) {
+            this.peer = peer;
+            this.score = score;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> byNodeId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> byAddress = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<SeenKey> bySeen = new ConcurrentSkipListSet<>();
+
+    public PeerTable() {
+    }
+
+    /**
+     * Table holding the given peers (null entries skipped; later duplicates of a nodeId win).
+     */
+    @JsonCreator
+    public static PeerTable of(Peer[] peers) {
+        PeerTable table = new PeerTable();
+        if (peers != null) {
+            for (Peer peer : peers) {
+                if (peer != null && peer.getNodeId() != null) table.put(peer);
+            }
+        }
+        return table;
+    }
+
+    public Peer get(String nodeId) {
+        Entry entry = byNodeId.get(nodeId);
+        return entry == null ? null : entry.peer;
+    }
+
+    public boolean contains(String nodeId) {
+        return byNodeId.containsKey(nodeId);
+    }
+
+    public Peer findByAddress(String ip, int port) {
+        String nodeId = byAddress.get(address(ip, port));
+        return nodeId == null ? null : get(nodeId);
+    }
+
+    public int size() {
+        return byNodeId.size();
+    }
+
+    public boolean isEmpty() {
+        return byNodeId.isEmpty();
+    }
+
+    /**
+     * Insert or replace the peer with this nodeId, keeping the score of a replaced one. Returns the
+     * previous peer, or null.
+     */
+    public Peer put(Peer peer) {
+        return put(peer, null);
+    }
+
+    /**
+     * Insert or replace the peer with the given score (null: keep the current one, UNKNOWN for a new peer).
+     */
+    public Peer put(Peer peer, PeerScore score) {
+        Peer[] previous = new Peer[1];
+        byNodeId.compute(peer.getNodeId(), (id, old) -> {
+            PeerScore kept = score != null ? score : old != null ? old.score : PeerScore.UNKNOWN;
+            if (old != null) {
+                previous[0] = old.peer;
+                unindex(old);
+            }
+            Entry entry = new Entry(peer, kept);
+            index(entry);
+            return entry;
+        });
+        return previous[0];
+    }
+
+    /**
+     * Set a known peer's lastSeen. Returns false if the nodeId is unknown.
+     */
+    public boolean touch(String nodeId, LocalDateTime lastSeen) {
+        return byNodeId.computeIfPresent(nodeId, (id, old) -> {
+            Peer peer = old.peer;
+            Entry entry = new Entry(new Peer(peer.getNodeId(), peer.getIp(), peer.getPort(), lastSeen), old.score);
+            bySeen.remove(old.seenKey);
+            bySeen.add(entry.seenKey);
+            return entry;
+        }) != null;
+    }
+
+    /**
+     * Score of a known peer; null if the nodeId is unknown.
+     */
+    public PeerScore getScore(String nodeId) {
+        Entry entry = byNodeId.get(nodeId);
+        return entry == null ? null : entry.score;
+    }
+
+    /**
+     * Apply an observation to a known peer's score. Returns the new score, or null if the nodeId is unknown.
+     */
+    public PeerScore updateScore(String nodeId, UnaryOperator<PeerScore> change) {
+        Entry updated = byNodeId.computeIfPresent(nodeId, (id, old) -> {
+            PeerScore score = change.apply(old.score);
+            return score == old.score ? old : new Entry(old.peer, score);
+        });
+        return updated == null ? null : updated.score;
+    }
+
+    /**
+     * Up to k peers with the best score at nowMillis, best first. O(n log k).
+     */
+    public List<Peer> top(int k, long nowMillis) {
+        return top(k, byNodeId.values().iterator(), nowMillis);
+    }
+
+    /**
+     * Up to k of the candidate nodeIds with the best score at nowMillis, best first. Unknown nodeIds are skipped.
+     */
+    public List<Peer> top(int k, Collection<String> candidates, long nowMillis) {
+        List<Entry> entries = new ArrayList<>(candidates.size());
+        for (String nodeId : new LinkedHashSet<>(candidates)) { // a nodeId listed twice is still one peer
+            Entry entry = byNodeId.get(nodeId);
+            if (entry != null) entries.add(entry);
+        }
+        return top(k, entries.iterator(), nowMillis);
+    }
+
+    public Peer remove(String nodeId) {
+        Peer[] removed = new Peer[1];
+        byNodeId.computeIfPresent(nodeId, (id, old) -> {
+            removed[0] = old.peer;
+            unindex(old);
+            return null;
+        });
+        return removed[0];
+    }
+
+    public void clear() {
+        for (String nodeId : byNodeId.keySet()) remove(nodeId);
+    }
+
+    /**
+     * Up to `limit` peers, least recently seen first (eviction candidates). Peers never seen come first.
+     */
+    public List<Peer> leastRecentlySeen(int limit) {
+        return collect(bySeen.iterator(), limit);
+    }
+
+    /**
+     * Up to `limit` peers, most recently seen first (best reconnect candidates).
+     */
+    public List<Peer> mostRecentlySeen(int limit) {
+        return collect(bySeen.descendingIterator(), limit);
+    }
+
+    /**
+     * Peers last seen strictly before the given time, oldest first.
+     */
+    public List<Peer> seenBefore(LocalDateTime time) {
+        NavigableSet<SeenKey> older = bySeen.headSet(new SeenKey(TimeUtils.toEpochMillis(time), ""), false);
+        return collect(older.iterator(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Unmodifiable live view of the peers (weakly consistent, like any ConcurrentHashMap view).
+     */
+    public Collection<Peer> values() {
+        return Collections.unmodifiableCollection(new AbstractCollection<>() {
+            @Override
+            public Iterator<Peer> iterator() {
+                Iterator<Entry> it = byNodeId.values().iterator();
+                return new Iterator<>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public Peer next() { return it.next().peer; }
+                };
+            }
+
+            @Override
+            public int size() {
+                return byNodeId.size();
+            }
+        });
+    }
+
+    /**
+     * Point-in-time copy of the table for persistence.
+     */
+    @JsonValue
+    public Peer[] snapshot() {
+        List<Peer> peers = new ArrayList<>(byNodeId.size());
+        for (Entry entry : byNodeId.values()) peers.add(entry.peer);
+        return peers.toArray(new Peer[0]);
+    }
+
+    private void index(Entry entry) {
+        bySeen.add(entry.seenKey);
+        byAddress.put(address(entry.peer.getIp(), entry.peer.getPort()), entry.peer.getNodeId());
+    }
+
+    private void unindex(Entry entry) {
+        bySeen.remove(entry.seenKey);
+        byAddress.remove(address(entry.peer.getIp(), entry.peer.getPort()), entry.peer.getNodeId());
+    }
+
+    private static List<Peer> top(int k, Iterator<Entry> entries, long nowMillis) {
+        if (k <= 0) return new ArrayList<>();
+        // min-heap of the best k so far; ties go to the smaller nodeId so the choice is stable
+        Comparator<Ranked> worstFirst = Comparator.<Ranked>comparingDouble(r -> r.score)
+                .thenComparing(r -> r.peer.getNodeId(), Comparator.reverseOrder());
+        PriorityQueue<Ranked> best = new PriorityQueue<>(Math.min(k, 64), worstFirst);
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            Ranked ranked = new Ranked(entry.peer, entry.score.score(nowMillis));
+            if (best.size() < k) best.add(ranked);
+            else if (worstFirst.compare(ranked, best.peek()) > 0) {
+                best.poll();
+                best.add(ranked);
+            }
+        }
+        Peer[] ordered = new Peer[best.size()];
+        for (int i = ordered.length - 1; i >= 0; i--) ordered[i] = best.poll().peer;
+        return new ArrayList<>(List.of(ordered));
+    }
+
+    private List<Peer> collect(Iterator<SeenKey> keys, int limit) {
+        List<Peer> peers = new ArrayList<>(Math.min(limit, 64));
+        while (keys.hasNext() && peers.size() < limit) {
+            Entry entry = byNodeId.get(keys.next().nodeId);
+            if (entry != null) peers.add(entry.peer);
+        }
+        return peers;
+    }
+
+    private static String address(String ip, int port) {
+        return ip + ":" + port;
+    }
+
+
+    @Override
+    public String toString() {
+        return "PeerTable(" + byNodeId.size() + " peers)";
+    }
+}
@@ -1,33 +1,293 @@
 package dev.ojas.p2p_chat_file_share.node.service;
 
+import dev.ojas.p2p_chat_file_share.config.KeyProperties;
 import dev.ojas.p2p_chat_file_share.config.StorageProperties;
 import dev.ojas.p2p_chat_file_share.exception.StorageDirNullException;
+import dev.ojas.p2p_chat_file_share.file.TransferEngine;
+import dev.ojas.p2p_chat_file_share.node.data.Indices;
 import dev.ojas.p2p_chat_file_share.node.data.Node;
 import dev.ojas.p2p_chat_file_share.node.data.Peer;
+import dev.ojas.p2p_chat_file_share.node.data.PeerScore;
+import dev.ojas.p2p_chat_file_share.node.data.PeerTable;
+import dev.ojas.p2p_chat_file_share.node.data.Vault;
+import dev.ojas.p2p_chat_file_share.utils.key.KeySession;
+import dev.ojas.p2p_chat_file_share.utils.persist.NodeJournal;
 import dev.ojas.p2p_chat_file_share.utils.persist.PersistenceManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
+/**
+ * NodeService: owner of the one in-memory Node. It is loaded once (wallet snapshot + journal replay)
+ * and every other component reads and changes that instance through here, so nothing reloads the
+ * wallet from disk or keeps a copy of its own.
+ * - peer reads go to the PeerTable (no locks, no I/O)
+ * - peer and index changes are applied in memory and journaled; index reservations wait for the journal
+ * - other changes go through update(), which marks the wallet for a write-behind snapshot
+ * - transfers, swarms and handshakes report RTT, throughput and failures per peer (record*); bestPeers()
+ *   ranks by the resulting PeerScore. A score is journaled at once when its failure count changes and
+ *   otherwise at most every SCORE_JOURNAL_INTERVAL_MILLIS per peer, since samples come per chunk.
+ * - the KeySession (identity signing, handshakes) is unlocked from the wallet's encrypted seed: with
+ *   p2pcf.keys.wallet-password when the wallet loads, otherwise (and after an idle lock) through unlock()
+ */
 @Service
 public class NodeService {
+    private static final long SCORE_JOURNAL_INTERVAL_MILLIS = 30_000;
 
     PersistenceManager persistenceManager;
     StorageProperties storageProperties;
+    NodeJournal nodeJournal;
+    private volatile Node node;
+    private final Map<String, Long> scoreJournaledAt = new ConcurrentHashMap<>();
+    @Autowired
+    private KeySession keySession;
+    @Autowired
+    private KeyProperties keyProperties;
 
     @Autowired
-    public NodeService(PersistenceManager persistenceManager, StorageProperties storageProperties) {
+    public NodeService(PersistenceManager persistenceManager, StorageProperties storageProperties, NodeJournal nodeJournal) {
         this.persistenceManager = persistenceManager;
         this.storageProperties = storageProperties;
+        this.nodeJournal = nodeJournal;
+    }
+
+    /**
+     * The node, loaded on first call. Null while no wallet exists.
+     */
+    public Node getNode() {
+        Node loaded = node;
+        if (loaded != null) return loaded;
+        synchronized (this) {
+            if (node == null) {
+                try {
+                    node = nodeJournal.recover();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (node != null && node.getPeers() == null) node.setPeers(new PeerTable());
+                if (node != null) unlockFromConfig(node);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Use a node created in this process (a new wallet) as the authoritative one.
+     */
+    public synchronized void adopt(Node created) {
+        if (created.getPeers() == null) created.setPeers(new PeerTable());
+        nodeJournal.attach(created);
+        node = created;
+        unlockFromConfig(created);
+    }
+
+    /**
+     * Unlock the key session with the wallet password: decrypts the node's master seed once (PBKDF2)
+     * and keeps it in the session. Also the way back after the session locked on idle timeout.
+     */
+    public void unlock(char[] password) {
+        Vault.EncryptedSeed encryptedSeed = requireNode().getIdentity().getMasterSeedEnc();
+        keySession.unlock(encryptedSeed, password);
+    }
+
+    public boolean isUnlocked() {
+        return keySession.isUnlocked();
+    }
+
+    /**
+     * Unlock with p2pcf.keys.wallet-password if it is set. A wrong password leaves the session locked.
+     */
+    private void unlockFromConfig(Node loaded) {
+        String password = keyProperties == null ? null : keyProperties.getWalletPassword();
+        if (password == null || password.isEmpty() || keySession == null || keySession.isUnlocked()) return;
+        char[] chars = password.toCharArray();
+        try {
+            keySession.unlock(loaded.getIdentity().getMasterSeedEnc(), chars);
+        } catch (RuntimeException e) {
+            System.err.println("Could not unlock the key session with the configured wallet password: " + e.getMessage());
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
     }
 
     public Peer[] getKnownPeers() throws StorageDirNullException {
-        String storageDir = storageProperties.getDir();
-        if(storageDir == null) throw new StorageDirNullException("Storage directory not provided. Application side issue.");
-        Path storageDirPath = Paths.get(storageDir);
-        Node node = persistenceManager.loadWallet(storageDirPath);
-        return node.getPeers();
+        if (storageProperties.getDir() == null) throw new StorageDirNullException("Storage directory not provided. Application side issue.");
+        Node current = getNode();
+        return current == null ? new Peer[0] : current.getPeers().snapshot();
+    }
+
+    public Peer findPeer(String nodeId) {
+        Node current = getNode();
+        return current == null ? null : current.getPeers().get(nodeId);
+    }
+
+    public boolean isKnownPeer(String nodeId) {
+        Node current = getNode();
+        return current != null && current.getPeers().contains(nodeId);
+    }
+
+    /**
+     * Add or replace a peer. Journaled in the background.
+     */
+    public void addPeer(Peer peer) {
+        requireNode().getPeers().put(peer);
+        nodeJournal.peerPut(peer);
+    }
+
+    /**
+     * Set a known peer's lastSeen; journaled only when persist is set. False if the peer is unknown.
+     */
+    public boolean touchPeer(String nodeId, LocalDateTime lastSeen, boolean persist) {
+        if (!requireNode().getPeers().touch(nodeId, lastSeen)) return false;
+        if (persist) nodeJournal.peerSeen(nodeId, lastSeen);
+        return true;
+    }
+
+    public Peer removePeer(String nodeId) {
+        Peer removed = requireNode().getPeers().remove(nodeId);
+        if (removed != null) nodeJournal.peerRemoved(nodeId);
+        scoreJournaledAt.remove(nodeId);
+        return removed;
+    }
+
+    public PeerScore getScore(String nodeId) {
+        Node current = getNode();
+        return current == null ? null : current.getPeers().getScore(nodeId);
+    }
+
+    /**
+     * Up to k known peers, best score first (dial, relay and reconnect candidates).
+     */
+    public List<Peer> bestPeers(int k) {
+        Node current = getNode();
+        return current == null ? List.of() : current.getPeers().top(k, System.currentTimeMillis());
+    }
+
+    /**
+     * Up to k of the candidates, best score first; unknown nodeIds are left out.
+     */
+    public List<Peer> bestPeers(int k, Collection<String> candidates) {
+        Node current = getNode();
+        return current == null ? List.of() : current.getPeers().top(k, candidates, System.currentTimeMillis());
+    }
+
+    public void recordRtt(String nodeId, long rttNanos) {
+        long now = System.currentTimeMillis();
+        recordScore(nodeId, score -> score.withRtt(rttNanos, now));
+    }
+
+    public void recordThroughput(String nodeId, long bytes, long nanos) {
+        long now = System.currentTimeMillis();
+        recordScore(nodeId, score -> score.withThroughput(bytes, nanos, now));
+    }
+
+    public void recordFailure(String nodeId) {
+        long now = System.currentTimeMillis();
+        recordScore(nodeId, score -> score.withFailure(now));
+    }
+
+    /**
+     * Advance an HD index past `count` values and return the first. Returns only once the new index is
+     * durable, so a reserved index is never handed out twice across a crash.
+     */
+    public int reserveIndices(NodeJournal.IndexKind kind, int count) {
+        Node current = requireNode();
+        synchronized (current.getIndices()) {
+            Indices indices = current.getIndices();
+            int first = kind.get(indices);
+            kind.set(indices, first + count);
+            try {
+                nodeJournal.indexSet(kind, first + count).join();
+            } catch (RuntimeException e) {
+                kind.set(indices, first);
+                throw e;
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Apply a change without a journal record of its own (rooms, metadata, ...) and schedule a snapshot.
+     */
+    public void update(Consumer<Node> change) {
+        Node current = requireNode();
+        synchronized (current) {
+            change.accept(current);
+        }
+        persistenceManager.markDirty(current, storageDir());
+    }
+
+    /**
+     * Make everything changed so far durable (journal and pending snapshot), e.g. before shutdown.
+     */
+    public void flush() {
+        nodeJournal.sync();
+        persistenceManager.flush();
+    }
+
+    /**
+     * The scores as TransferEngine.PeerStats: transfer observations go into them, swarms start from
+     * the RTT they hold.
+     */
+    public TransferEngine.PeerStats peerStats() {
+        return new TransferEngine.PeerStats() {
+            public void rtt(String peerNodeId, long rttNanos) {
+                recordRtt(peerNodeId, rttNanos);
+            }
+
+            public void throughput(String peerNodeId, long bytes, long nanos) {
+                recordThroughput(peerNodeId, bytes, nanos);
+            }
+
+            public void failure(String peerNodeId) {
+                recordFailure(peerNodeId);
+            }
+
+            public long expectedRttNanos(String peerNodeId) {
+                PeerScore score = getScore(peerNodeId);
+                return score == null ? 0 : (long) (score.getRttMillis() * 1_000_000);
+            }
+        };
+    }
+
+    private void recordScore(String nodeId, UnaryOperator<PeerScore> observation) {
+        Node current = getNode();
+        if (current == null || nodeId == null) return;
+        int[] failuresBefore = new int[1];
+        PeerScore after = current.getPeers().updateScore(nodeId, score -> {
+            failuresBefore[0] = score.getFailures();
+            return observation.apply(score);
+        });
+        if (after == null) return; // not a known peer
+        long now = System.currentTimeMillis();
+        boolean due = after.getFailures() != failuresBefore[0];
+        Long last = scoreJournaledAt.get(nodeId);
+        if (!due && last != null && now - last < SCORE_JOURNAL_INTERVAL_MILLIS) return;
+        PeerScore latest = current.getPeers().getScore(nodeId); // a concurrent sample may have landed meanwhile
+        if (latest == null) return;
+        scoreJournaledAt.put(nodeId, now);
+        nodeJournal.peerScore(nodeId, latest);
+    }
+
+    private Node requireNode() {
+        Node current = getNode();
+        if (current == null) throw new IllegalStateException("No wallet; create a user first");
+        return current;
+    }
+
+    private Path storageDir() {
+        return Paths.get(storageProperties.getDir());
     }
 }
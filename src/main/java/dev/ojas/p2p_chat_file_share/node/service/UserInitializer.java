@@ -5,6 +5,7 @@ import dev.ojas.p2p_chat_file_share.exception.StorageDirNullException;
 import dev.ojas.p2p_chat_file_share.node.data.*;
 import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
 import dev.ojas.p2p_chat_file_share.utils.key.HDKeyManager;
+import dev.ojas.p2p_chat_file_share.utils.key.IdentityKey;
 import dev.ojas.p2p_chat_file_share.node.data.Vault;
 import dev.ojas.p2p_chat_file_share.utils.persist.PersistenceManager;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -50,7 +51,7 @@ public class UserInitializer {
         // 2) create HD manager and derive a "master pub" to use as public identity (not xpub format)
         HDKeyManager km = new HDKeyManager(masterSeed);
         // derive an initial key as masterXPub surrogate
-        KeyPair rootKP = km.deriveECKeyPair("m/999'/0'/0/0"); // canonical first child
+        KeyPair rootKP = km.deriveECKeyPair(IdentityKey.IDENTITY_PATH); // canonical first child, the handshake signing key
         PublicKey pub = rootKP.getPublic();
         String masterXPubB64 = CryptoUtils.toBase64(pub.getEncoded());
 
@@ -72,7 +73,7 @@ public class UserInitializer {
         Arrays.fill(peers, peer);
         // config
         Config config = new Config(9090);
-        Node node = new Node(identity, metadata, indices, peers, null, null, config);
+        Node node = new Node(identity, metadata, indices, PeerTable.of(peers), null, null, config);
 
         // Save new wallet
         persistenceManager.saveWallet(node, storageDirPath);
@@ -0,0 +1,107 @@
+package dev.ojas.p2p_chat_file_share.session;
+
+import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * ResumptionTickets: responder side of session resumption. A ticket is the session's resumption
+ * secret sealed under a key only this node holds, so the responder keeps no per-peer state:
+ * - ticket    = Base64([byte keyId][iv || AES-GCM(expiresAtMillis || secret || peerNodeId) || tag])
+ * - ticket keys are random, live in memory only and rotate every lifetime; the previous key is kept
+ *   so a ticket stays redeemable for its whole lifetime. A restart invalidates every ticket.
+ * - redeem() checks the tag, the expiry and that the ticket was issued to the presenting nodeId
+ */
+public final class ResumptionTickets {
+    private static final int KEY_SIZE = 32;
+    private static final int HEADER_SIZE = Long.BYTES + SessionKeys.SECRET_SIZE;
+
+    private final long lifetimeMillis;
+    private byte[] currentKey;
+    private byte[] previousKey;
+    private byte currentKeyId;
+    private long rotateAt;
+
+    public ResumptionTickets(Duration lifetime) {
+        this.lifetimeMillis = lifetime.toMillis();
+        this.currentKey = CryptoUtils.randomBytes(KEY_SIZE);
+        this.rotateAt = System.currentTimeMillis() + lifetimeMillis;
+    }
+
+    public long getLifetimeSeconds() {
+        return lifetimeMillis / 1000;
+    }
+
+    /**
+     * Seal a resumption secret into a ticket for one peer.
+     */
+    public String issue(String peerNodeId, byte[] resumptionSecret) {
+        long now = System.currentTimeMillis();
+        byte[] peer = peerNodeId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plain = ByteBuffer.allocate(HEADER_SIZE + peer.length);
+        plain.putLong(now + lifetimeMillis).put(resumptionSecret, 0, SessionKeys.SECRET_SIZE).put(peer).flip();
+        byte[] ticket = new byte[1 + CryptoUtils.aesGcmSealedSize(plain.remaining())];
+        synchronized (this) {
+            rotateIfDue(now);
+            ticket[0] = currentKeyId;
+            CryptoUtils.aesGcmSeal(currentKey, plain, ByteBuffer.wrap(ticket, 1, ticket.length - 1));
+        }
+        Arrays.fill(plain.array(), (byte) 0);
+        return CryptoUtils.toBase64(ticket);
+    }
+
+    /**
+     * The resumption secret inside a ticket, or null if the ticket is forged, expired, sealed under a
+     * retired key or was issued to another peer.
+     */
+    public byte[] redeem(String ticket, String peerNodeId) {
+        byte[] sealed;
+        try {
+            sealed = CryptoUtils.fromBase64(ticket);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (sealed.length < 1 + CryptoUtils.aesGcmSealedSize(HEADER_SIZE)) return null;
+        long now = System.currentTimeMillis();
+        ByteBuffer plain = ByteBuffer.allocate(sealed.length);
+        // decrypt under the lock: rotateIfDue zeroes retired keys in place
+        synchronized (this) {
+            rotateIfDue(now);
+            byte[] key;
+            if (sealed[0] == currentKeyId) key = currentKey;
+            else if (sealed[0] == (byte) (currentKeyId - 1) && previousKey != null) key = previousKey;
+            else return null;
+            try {
+                CryptoUtils.aesGcmOpen(key, ByteBuffer.wrap(sealed, 1, sealed.length - 1), plain);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+        plain.flip();
+        try {
+            if (plain.getLong() < now) return null;
+            byte[] secret = new byte[SessionKeys.SECRET_SIZE];
+            plain.get(secret);
+            String issuedTo = StandardCharsets.UTF_8.decode(plain).toString();
+            if (issuedTo.equals(peerNodeId)) return secret;
+            Arrays.fill(secret, (byte) 0);
+            return null;
+        } finally {
+            Arrays.fill(plain.array(), (byte) 0);
+        }
+    }
+
+    private void rotateIfDue(long now) {
+        if (now < rotateAt) return;
+        if (previousKey != null) Arrays.fill(previousKey, (byte) 0);
+        // two rotations missed: the old current key has outlived every ticket sealed under it
+        previousKey = now < rotateAt + lifetimeMillis ? currentKey : null;
+        if (previousKey == null) Arrays.fill(currentKey, (byte) 0);
+        currentKey = CryptoUtils.randomBytes(KEY_SIZE);
+        currentKeyId++;
+        rotateAt = now + lifetimeMillis;
+    }
+}
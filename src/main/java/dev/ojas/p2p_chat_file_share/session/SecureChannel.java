@@ -0,0 +1,92 @@
+package dev.ojas.p2p_chat_file_share.session;
+
+import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * SecureChannel: AES-GCM record protection for an established session (see SessionKeys).
+ * - sealed record: [long counter][ciphertext || 16-byte tag]
+ * - nonce = 4-byte direction salt || 8-byte counter; the counter starts at 0 and goes up by one per record
+ * - the receiver only accepts the next counter in sequence (the transport is ordered), so replayed,
+ *   dropped or reordered records fail, and a nonce is never reused under one key
+ * One symmetric AEAD per message replaces the per-message ECDSA signature. Not thread-safe on its own:
+ * the connection seals under its send lock and opens on its I/O thread.
+ */
+public final class SecureChannel {
+    public static final int NONCE_SALT_SIZE = 4;
+    public static final int COUNTER_SIZE = 8;
+    public static final int OVERHEAD = COUNTER_SIZE + CryptoUtils.GCM_TAG_LENGTH;
+
+    private SecretKeySpec sendKey;
+    private SecretKeySpec receiveKey;
+    private final byte[] sendNonce = new byte[CryptoUtils.GCM_IV_LENGTH];
+    private final byte[] receiveNonce = new byte[CryptoUtils.GCM_IV_LENGTH];
+    private long sendCounter;
+    private long receiveCounter;
+
+    SecureChannel(byte[] sendKey, byte[] sendSalt, byte[] receiveKey, byte[] receiveSalt) {
+        this.sendKey = new SecretKeySpec(sendKey, "AES");
+        this.receiveKey = new SecretKeySpec(receiveKey, "AES");
+        System.arraycopy(sendSalt, 0, sendNonce, 0, NONCE_SALT_SIZE);
+        System.arraycopy(receiveSalt, 0, receiveNonce, 0, NONCE_SALT_SIZE);
+    }
+
+    /**
+     * Seal in[off, off+len) into out at outOff. Returns the record length, len + OVERHEAD.
+     */
+    public int seal(byte[] in, int off, int len, byte[] out, int outOff) {
+        if (sendKey == null) throw new IllegalStateException("channel destroyed");
+        if (sendCounter == Long.MAX_VALUE) throw new IllegalStateException("session exhausted, rekey required");
+        long counter = sendCounter++;
+        putLong(out, outOff, counter);
+        putLong(sendNonce, NONCE_SALT_SIZE, counter);
+        try {
+            Cipher cipher = CryptoUtils.aesGcm(Cipher.ENCRYPT_MODE, sendKey, sendNonce, 0);
+            cipher.updateAAD(out, outOff, COUNTER_SIZE);
+            return COUNTER_SIZE + cipher.doFinal(in, off, len, out, outOff + COUNTER_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("seal failed", e);
+        }
+    }
+
+    /**
+     * Open a record in[off, off+len) into out at outOff. Returns the plaintext length.
+     * Throws if the counter is not the next expected one or the tag does not verify.
+     */
+    public int open(byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        if (receiveKey == null) throw new GeneralSecurityException("channel destroyed");
+        if (len < OVERHEAD) throw new GeneralSecurityException("record too short");
+        long counter = getLong(in, off);
+        if (counter != receiveCounter) throw new GeneralSecurityException("record " + counter + " out of sequence, expected " + receiveCounter);
+        putLong(receiveNonce, NONCE_SALT_SIZE, counter);
+        Cipher cipher = CryptoUtils.aesGcm(Cipher.DECRYPT_MODE, receiveKey, receiveNonce, 0);
+        cipher.updateAAD(in, off, COUNTER_SIZE);
+        int n = cipher.doFinal(in, off + COUNTER_SIZE, len - COUNTER_SIZE, out, outOff);
+        receiveCounter++;
+        return n;
+    }
+
+    /**
+     * Forget the keys. The channel is unusable afterwards.
+     */
+    public void destroy() {
+        sendKey = null;
+        receiveKey = null;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) v = (v << 8) | (b[off + i] & 0xff);
+        return v;
+    }
+}
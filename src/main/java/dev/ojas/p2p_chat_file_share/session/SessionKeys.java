@@ -0,0 +1,138 @@
+package dev.ojas.p2p_chat_file_share.session;
+
+import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
+
+import javax.crypto.KeyAgreement;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * SessionKeys: directional keys for one connection, derived from the handshake's ephemeral EC keys.
+ * - shared secret = ECDH(own ephemeral private, peer ephemeral public)
+ * - transcript    = SHA-256("p2pcf-session-v1:" initiatorId ":" responderId ":" initiatorPub ":" responderPub)
+ * - per direction: CryptoUtils.hkdfSha256(shared, transcript || "i2r" / "r2i", 36) = 32-byte AES key || 4-byte nonce salt
+ * - resumption secret: CryptoUtils.hkdfSha256(shared, transcript || "res", 32), the key a ResumptionTicket carries
+ * Binding the transcript means both sides only agree on keys if they saw the same handshake.
+ * <p>
+ * A resumed session (see resume) runs the same expansion over the previous resumption secret, with a
+ * transcript of both nodeIds and both handshake nonces instead of the ephemeral keys: no EC operation at all.
+ */
+public final class SessionKeys {
+    private static final int KEY_SIZE = 32;
+    private static final int SALT_SIZE = SecureChannel.NONCE_SALT_SIZE;
+    private static final byte[] I2R = "i2r".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] R2I = "r2i".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RES = "res".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BINDER = "p2pcf-binder-v1".getBytes(StandardCharsets.UTF_8);
+    public static final int SECRET_SIZE = 32;
+
+    private final byte[] sendKey;
+    private final byte[] sendSalt;
+    private final byte[] receiveKey;
+    private final byte[] receiveSalt;
+    private final byte[] resumptionSecret;
+
+    private SessionKeys(byte[] sendKey, byte[] sendSalt, byte[] receiveKey, byte[] receiveSalt, byte[] resumptionSecret) {
+        this.sendKey = sendKey;
+        this.sendSalt = sendSalt;
+        this.receiveKey = receiveKey;
+        this.receiveSalt = receiveSalt;
+        this.resumptionSecret = resumptionSecret;
+    }
+
+    /**
+     * Derive the keys for one side of the session. Ids are nodeIds, pubs the Base64 ephemeral keys as sent.
+     */
+    public static SessionKeys derive(PrivateKey ownEphemeral, PublicKey peerEphemeral, boolean initiator,
+                                     String initiatorId, String responderId,
+                                     String initiatorPub, String responderPub) throws Exception {
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(ownEphemeral);
+        agreement.doPhase(peerEphemeral, true);
+        byte[] shared = agreement.generateSecret();
+        try {
+            byte[] transcript = CryptoUtils.sha256(("p2pcf-session-v1:" + initiatorId + ":" + responderId + ":"
+                    + initiatorPub + ":" + responderPub).getBytes(StandardCharsets.UTF_8));
+            return fromSecret(shared, transcript, initiator);
+        } finally {
+            Arrays.fill(shared, (byte) 0);
+        }
+    }
+
+    /**
+     * Derive a resumed session from a ticket's resumption secret. Nonces are the Base64 values of the
+     * resuming HandshakeMessage and its ack, so every resumption gets fresh keys.
+     */
+    public static SessionKeys resume(byte[] resumptionSecret, boolean initiator,
+                                     String initiatorId, String responderId,
+                                     String initiatorNonce, String responderNonce) {
+        byte[] transcript = CryptoUtils.sha256(("p2pcf-resume-v1:" + initiatorId + ":" + responderId + ":"
+                + initiatorNonce + ":" + responderNonce).getBytes(StandardCharsets.UTF_8));
+        return fromSecret(resumptionSecret, transcript, initiator);
+    }
+
+    /**
+     * Base64 HMAC-SHA256 of a handshake payload under a key derived from the resumption secret. Proves
+     * possession of the secret without revealing it; the responder checks it before resuming.
+     */
+    public static String binder(byte[] resumptionSecret, String payload) {
+        byte[] binderKey = CryptoUtils.hkdfSha256(resumptionSecret, BINDER, SECRET_SIZE).getEncoded();
+        try {
+            return CryptoUtils.toBase64(CryptoUtils.hmacSha256(binderKey, payload.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            Arrays.fill(binderKey, (byte) 0);
+        }
+    }
+
+    public static boolean verifyBinder(byte[] resumptionSecret, String payload, String binder) {
+        if (binder == null) return false;
+        return java.security.MessageDigest.isEqual(
+                binder(resumptionSecret, payload).getBytes(StandardCharsets.US_ASCII),
+                binder.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static SessionKeys fromSecret(byte[] secret, byte[] transcript, boolean initiator) {
+        byte[] i2r = expand(secret, transcript, I2R);
+        byte[] r2i = expand(secret, transcript, R2I);
+        byte[] send = initiator ? i2r : r2i;
+        byte[] receive = initiator ? r2i : i2r;
+        SessionKeys keys = new SessionKeys(Arrays.copyOf(send, KEY_SIZE), Arrays.copyOfRange(send, KEY_SIZE, KEY_SIZE + SALT_SIZE),
+                Arrays.copyOf(receive, KEY_SIZE), Arrays.copyOfRange(receive, KEY_SIZE, KEY_SIZE + SALT_SIZE),
+                Arrays.copyOf(expand(secret, transcript, RES), SECRET_SIZE));
+        Arrays.fill(i2r, (byte) 0);
+        Arrays.fill(r2i, (byte) 0);
+        return keys;
+    }
+
+    private static byte[] expand(byte[] secret, byte[] transcript, byte[] label) {
+        byte[] info = new byte[transcript.length + label.length];
+        System.arraycopy(transcript, 0, info, 0, transcript.length);
+        System.arraycopy(label, 0, info, transcript.length, label.length);
+        return CryptoUtils.hkdfSha256(secret, info, KEY_SIZE + SALT_SIZE).getEncoded();
+    }
+
+    /**
+     * A fresh channel (both counters at zero) over these keys.
+     */
+    public SecureChannel newChannel() {
+        return new SecureChannel(sendKey, sendSalt, receiveKey, receiveSalt);
+    }
+
+    /**
+     * Copy of the secret a resumption ticket for this session carries.
+     */
+    public byte[] getResumptionSecret() {
+        return resumptionSecret.clone();
+    }
+
+    /**
+     * Zero the raw key bytes once every channel and ticket needed has been created.
+     */
+    public void destroy() {
+        Arrays.fill(sendKey, (byte) 0);
+        Arrays.fill(receiveKey, (byte) 0);
+        Arrays.fill(resumptionSecret, (byte) 0);
+    }
+}
@@ -0,0 +1,112 @@
+package dev.ojas.p2p_chat_file_share.session;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TicketCache: initiator side of session resumption. Holds the latest ticket (and its resumption
+ * secret) per peer nodeId, bounded two ways:
+ * - LRU: at most `capacity` peers, least recently used evicted first
+ * - TTL: a ticket is dropped once the responder's lifetime for it has passed
+ * Tickets are single use: take() removes the entry, and the resumed session's ack brings a new one.
+ * Evicted secrets are zeroed.
+ */
+public final class TicketCache {
+    /**
+     * One ticket and the secret it carries.
+     */
+    public static final class Entry {
+        private final String ticket;
+        private final byte[] secret;
+        private final long expiresAt;
+
+        Entry(String ticket, byte[] secret, long expiresAt) {
+            this.ticket = ticket;
+            this.secret = secret;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getTicket() {
+            return ticket;
+        }
+
+        public byte[] getSecret() {
+            return secret;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        /**
+         * Zero the secret once the resumption it was taken for is done.
+         */
+        public void destroy() {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+
+    public TicketCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= TicketCache.this.capacity) return false;
+                eldest.getValue().destroy();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Remember a ticket for a peer, replacing any older one. lifetimeSeconds is the responder's.
+     */
+    public synchronized void put(String peerNodeId, String ticket, byte[] secret, long lifetimeSeconds) {
+        long now = System.currentTimeMillis();
+        if (entries.size() >= capacity) evictExpired(now);
+        Entry previous = entries.put(peerNodeId, new Entry(ticket, secret, now + lifetimeSeconds * 1000));
+        if (previous != null) previous.destroy();
+    }
+
+    /**
+     * Remove and return the peer's ticket, or null if there is none or it has expired.
+     */
+    public synchronized Entry take(String peerNodeId) {
+        Entry entry = entries.remove(peerNodeId);
+        if (entry == null) return null;
+        if (entry.isExpired(System.currentTimeMillis())) {
+            entry.destroy();
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void remove(String peerNodeId) {
+        Entry entry = entries.remove(peerNodeId);
+        if (entry != null) entry.destroy();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) entry.destroy();
+        entries.clear();
+    }
+
+    private void evictExpired(long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.isExpired(now)) {
+                entry.destroy();
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import dev.ojas.p2p_chat_file_share.config.LivenessProperties;
+import dev.ojas.p2p_chat_file_share.message.data.BaseMessage;
+import dev.ojas.p2p_chat_file_share.message.data.HeartbeatMessage;
+import dev.ojas.p2p_chat_file_share.node.data.Peer;
+import dev.ojas.p2p_chat_file_share.utils.timer.HashedTimingWheel;
+
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * ConnectionMonitor: listener in front of another one (usually MessageHandlerListener) that keeps
+ * every connection's liveness timer on the HashedTimingWheel.
+ * - one timer per connection, re-armed for whichever comes first: the next heartbeat or the idle deadline
+ * - nothing read for idleTimeout: the connection is aborted with a SocketTimeoutException, so
+ *   onDisconnected releases its transfers and counts it as a failure of the peer
+ * - nothing written for heartbeatInterval on a secure session: a HeartbeatMessage goes out
+ * - the timer is cancelled when the connection closes
+ */
+public class ConnectionMonitor implements TransportListener {
+    private final TransportListener delegate;
+    private final HashedTimingWheel timer;
+    private final Supplier<String> ownNodeId;
+    private final long heartbeatNanos;
+    private final long idleNanos;
+    private final Map<PeerConnection, HashedTimingWheel.Timeout> timeouts = new ConcurrentHashMap<>();
+
+    public ConnectionMonitor(TransportListener delegate, HashedTimingWheel timer, LivenessProperties properties,
+                             Supplier<String> ownNodeId) {
+        this.delegate = delegate;
+        this.timer = timer;
+        this.ownNodeId = ownNodeId;
+        this.heartbeatNanos = TimeUnit.SECONDS.toNanos(properties.getHeartbeatIntervalSeconds());
+        this.idleNanos = TimeUnit.SECONDS.toNanos(properties.getIdleTimeoutSeconds());
+        if (heartbeatNanos <= 0 || idleNanos <= 0) throw new IllegalArgumentException("liveness intervals must be positive");
+    }
+
+    @Override
+    public void onConnected(PeerConnection connection) {
+        schedule(connection, Math.min(heartbeatNanos, idleNanos));
+        delegate.onConnected(connection);
+    }
+
+    @Override
+    public void onMessage(PeerConnection connection, BaseMessage msg) {
+        delegate.onMessage(connection, msg);
+    }
+
+    @Override
+    public void onDisconnected(PeerConnection connection, Throwable cause) {
+        HashedTimingWheel.Timeout timeout = timeouts.remove(connection);
+        if (timeout != null) timeout.cancel();
+        delegate.onDisconnected(connection, cause);
+    }
+
+    /**
+     * Connections currently watched.
+     */
+    public int size() {
+        return timeouts.size();
+    }
+
+    private void schedule(PeerConnection connection, long delayNanos) {
+        if (!connection.isOpen()) return;
+        timeouts.put(connection, timer.newTimeout(() -> check(connection), delayNanos, TimeUnit.NANOSECONDS));
+        // closed while arming: onDisconnected may have missed the new timer
+        if (!connection.isOpen()) {
+            HashedTimingWheel.Timeout timeout = timeouts.remove(connection);
+            if (timeout != null) timeout.cancel();
+        }
+    }
+
+    private void check(PeerConnection connection) {
+        if (!connection.isOpen()) return;
+        long now = System.nanoTime();
+        long idle = now - connection.getLastReadNanos();
+        if (idle >= idleNanos) {
+            String reason = "nothing received for " + TimeUnit.NANOSECONDS.toSeconds(idle) + "s";
+            System.err.println("Closing " + connection.getRemoteAddress() + ": " + reason);
+            connection.abort(new SocketTimeoutException(reason));
+            return;
+        }
+        long nextHeartbeat = connection.getLastWriteNanos() + heartbeatNanos - now;
+        if (nextHeartbeat <= 0) {
+            if (connection.isSecure()) sendHeartbeat(connection);
+            nextHeartbeat = heartbeatNanos; // the write lands later; don't resend every tick meanwhile
+        }
+        long nextIdle = connection.getLastReadNanos() + idleNanos - now;
+        schedule(connection, Math.max(Math.min(nextHeartbeat, nextIdle), 0));
+    }
+
+    private void sendHeartbeat(PeerConnection connection) {
+        HeartbeatMessage heartbeat = new HeartbeatMessage();
+        heartbeat.setFrom(ownNodeId.get());
+        Peer peer = connection.getPeer();
+        if (peer != null) heartbeat.setTo(peer.getNodeId());
+        try {
+            connection.send(heartbeat);
+        } catch (Exception e) {
+            System.err.println("Heartbeat to " + connection.getRemoteAddress() + " failed: " + e.getMessage());
+            connection.abort(e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import dev.ojas.p2p_chat_file_share.message.data.FileChunkMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FileChunkCodec: binary frame for FILE_CHUNK_MESSAGE (frame kind KIND_FILE_CHUNK).
+ * Bulk data skips JSON entirely; control messages stay JSON.
+ * <pre>
+ * [int length][byte kind=2]          frame header (FrameCodec)
+ * [byte version]
+ * [short fileIdLen][fileId UTF-8]
+ * [int chunkIndex][int totalChunks]
+ * [32 bytes SHA-256(iv||ct)]
+ * [byte proofHashes][proofHashes * 32 bytes]   Merkle audit path (version 2; absent in version 1)
+ * [iv||ct ...]                       rest of the frame
+ * </pre>
+ * Version 1 frames (no audit path) are still decoded.
+ */
+public final class FileChunkCodec {
+    public static final byte VERSION = 2;
+    private static final byte VERSION_NO_PROOF = 1;
+    public static final int HASH_SIZE = 32;
+
+    private FileChunkCodec() {}
+
+    /**
+     * Size of everything before the iv||ct payload, frame header included.
+     * proof is the Merkle audit path (may be null).
+     */
+    public static int headerSize(byte[] fileIdUtf8, byte[] proof) {
+        return FrameCodec.HEADER_SIZE + 1 + 2 + fileIdUtf8.length + 4 + 4 + HASH_SIZE + 1 + (proof == null ? 0 : proof.length);
+    }
+
+    /**
+     * Write the frame header and chunk header for a payload of payloadLength bytes.
+     */
+    public static void encodeHeader(ByteBuffer dst, byte[] fileIdUtf8, int chunkIndex, int totalChunks,
+                                    byte[] hash, byte[] proof, int payloadLength) {
+        if (hash == null || hash.length != HASH_SIZE) throw new IllegalArgumentException("chunk hash must be 32 bytes");
+        if (fileIdUtf8.length > 0xFFFF) throw new IllegalArgumentException("fileId too long");
+        int proofHashes = proof == null ? 0 : proof.length / HASH_SIZE;
+        if (proof != null && (proof.length % HASH_SIZE != 0 || proofHashes > 0xFF))
+            throw new IllegalArgumentException("bad Merkle proof length " + proof.length);
+        int frameLength = headerSize(fileIdUtf8, proof) - FrameCodec.LENGTH_FIELD_SIZE + payloadLength;
+        dst.putInt(frameLength);
+        dst.put(FrameCodec.KIND_FILE_CHUNK);
+        dst.put(VERSION);
+        dst.putShort((short) fileIdUtf8.length);
+        dst.put(fileIdUtf8);
+        dst.putInt(chunkIndex);
+        dst.putInt(totalChunks);
+        dst.put(hash);
+        dst.put((byte) proofHashes);
+        if (proof != null) dst.put(proof);
+    }
+
+    /**
+     * Build the header bytes for a chunk message that carries chunkData/chunkHashBytes.
+     * The payload itself is not copied; the caller sends it right after the header.
+     */
+    public static ByteBuffer encodeHeader(FileChunkMessage m) {
+        byte[] fileId = m.getFileId().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(headerSize(fileId, m.getMerkleProofBytes()));
+        encodeHeader(header, fileId, m.getChunkIndex(), m.getTotalChunks(), m.getChunkHashBytes(),
+                m.getMerkleProofBytes(), m.getChunkData().remaining());
+        return header.flip();
+    }
+
+    /**
+     * Encode the whole frame (header and payload) into dst.
+     */
+    public static void encode(FileChunkMessage m, ByteBuffer dst) {
+        dst.put(encodeHeader(m));
+        dst.put(m.getChunkData().duplicate());
+    }
+
+    /**
+     * Decode a chunk frame payload (everything after the kind byte). chunkData is a view into
+     * the given buffer, not a copy, so it is only valid until the buffer is reused - callers that
+     * keep it past the listener callback must copy it.
+     */
+    public static FileChunkMessage decode(ByteBuffer payload) {
+        ByteBuffer in = payload.duplicate();
+        byte version = in.get();
+        if (version != VERSION && version != VERSION_NO_PROOF) throw new IllegalArgumentException("unsupported chunk frame version " + version);
+        int fileIdLength = Short.toUnsignedInt(in.getShort());
+        String fileId;
+        if (in.hasArray()) {
+            fileId = new String(in.array(), in.arrayOffset() + in.position(), fileIdLength, StandardCharsets.UTF_8);
+            in.position(in.position() + fileIdLength);
+        } else {
+            byte[] tmp = new byte[fileIdLength];
+            in.get(tmp);
+            fileId = new String(tmp, StandardCharsets.UTF_8);
+        }
+        int chunkIndex = in.getInt();
+        int totalChunks = in.getInt();
+        byte[] hash = new byte[HASH_SIZE];
+        in.get(hash);
+        byte[] proof = null;
+        if (version >= VERSION) {
+            int proofHashes = Byte.toUnsignedInt(in.get());
+            if (proofHashes > 0) {
+                proof = new byte[proofHashes * HASH_SIZE];
+                in.get(proof);
+            }
+        }
+
+        FileChunkMessage m = new FileChunkMessage();
+        m.setFileId(fileId);
+        m.setChunkIndex(chunkIndex);
+        m.setTotalChunks(totalChunks);
+        m.setChunkHashBytes(hash);
+        m.setMerkleProofBytes(proof);
+        m.setChunkData(in.slice());
+        return m;
+    }
+}
@@ -0,0 +1,61 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A frame whose header goes through the write buffer and whose body is streamed
+ * from a file straight to the socket with FileChannel.transferTo (sendfile), never
+ * touching the Java heap. Owns the FileChannel and closes it on release.
+ */
+class FileRegionOutbound implements Outbound {
+    private final ByteBuffer header;
+    private final FileChannel file;
+    private final long end;
+    private long position;
+
+    FileRegionOutbound(ByteBuffer header, FileChannel file, long position, long count) {
+        this.header = header.duplicate();
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    @Override
+    public boolean fill(ByteBuffer dst) {
+        if (header.remaining() <= dst.remaining()) {
+            dst.put(header);
+            return true;
+        }
+        int limit = header.limit();
+        header.limit(header.position() + dst.remaining());
+        dst.put(header);
+        header.limit(limit);
+        return false;
+    }
+
+    @Override
+    public boolean hasRegion() {
+        return true;
+    }
+
+    @Override
+    public boolean transferRegion(WritableByteChannel target) throws IOException {
+        while (position < end) {
+            long n = file.transferTo(position, end - position, target);
+            if (n <= 0) return false; // socket buffer full, wait for OP_WRITE
+            position += n;
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import dev.ojas.p2p_chat_file_share.message.data.BaseMessage;
+import dev.ojas.p2p_chat_file_share.message.factory.MessageFactory;
+import dev.ojas.p2p_chat_file_share.session.SecureChannel;
+import dev.ojas.p2p_chat_file_share.utils.serializer.MessageSerializer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FrameCodec: length-prefixed framing used on every peer connection.
+ * - frame layout: [int length][byte kind][payload]
+ * - length counts the kind byte plus the payload (so it is always >= 1)
+ * - KIND_JSON payload is the UTF-8 JSON of a BaseMessage (see MessageFactory)
+ * - KIND_FILE_CHUNK payload is a binary FileChunkMessage (see FileChunkCodec)
+ * - KIND_SEALED payload is a SecureChannel record whose plaintext is an inner [kind][payload];
+ *   once a session is established every JSON frame travels sealed
+ */
+public final class FrameCodec {
+    public static final int LENGTH_FIELD_SIZE = 4;
+    public static final int HEADER_SIZE = LENGTH_FIELD_SIZE + 1;
+
+    public static final byte KIND_JSON = 1;
+    public static final byte KIND_FILE_CHUNK = 2;
+    public static final byte KIND_SEALED = 3;
+
+    private FrameCodec() {}
+
+    /**
+     * Serialize a control message into a complete JSON frame (header included), ready to be queued.
+     */
+    public static byte[] encodeJson(BaseMessage msg) throws Exception {
+        byte[] json = MessageSerializer.toJson(msg).getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[HEADER_SIZE + json.length];
+        ByteBuffer.wrap(frame).putInt(json.length + 1).put(KIND_JSON).put(json);
+        return frame;
+    }
+
+    /**
+     * Wrap a complete frame (header included) into a sealed frame: the inner kind and payload are
+     * encrypted and authenticated with the channel's next send counter.
+     */
+    public static byte[] seal(byte[] frame, SecureChannel channel) {
+        int innerLength = frame.length - LENGTH_FIELD_SIZE;
+        byte[] sealed = new byte[HEADER_SIZE + innerLength + SecureChannel.OVERHEAD];
+        ByteBuffer.wrap(sealed).putInt(1 + innerLength + SecureChannel.OVERHEAD).put(KIND_SEALED);
+        channel.seal(frame, LENGTH_FIELD_SIZE, innerLength, sealed, HEADER_SIZE);
+        return sealed;
+    }
+
+    /**
+     * Decode a JSON payload. The buffer's position..limit must span exactly the payload.
+     */
+    public static BaseMessage decodeJson(ByteBuffer payload) throws Exception {
+        String json;
+        if (payload.hasArray()) {
+            json = new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+        } else {
+            byte[] tmp = new byte[payload.remaining()];
+            payload.duplicate().get(tmp);
+            json = new String(tmp, StandardCharsets.UTF_8);
+        }
+        return MessageFactory.fromJson(json);
+    }
+}
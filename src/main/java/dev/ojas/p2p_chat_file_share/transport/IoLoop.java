@@ -0,0 +1,116 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * IoLoop: one thread, one Selector. Owns every channel registered on it; other threads
+ * talk to it only through execute(), which queues a task and wakes the selector.
+ */
+class IoLoop implements Runnable {
+    /**
+     * Attached to each SelectionKey; the loop calls back into it when the key is ready.
+     */
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void close(Throwable cause);
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    IoLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run the task on the loop thread. Runs inline when already on it.
+     */
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) handler.handle(key);
+                    } catch (Exception e) {
+                        handler.close(e);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                System.err.println("I/O loop " + thread.getName() + " error: " + e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("I/O loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                Object att = key.attachment();
+                if (att instanceof Handler) ((Handler) att).close(null);
+            }
+            selector.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,28 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import dev.ojas.p2p_chat_file_share.message.data.BaseMessage;
+import dev.ojas.p2p_chat_file_share.message.handler.MessageHandler;
+
+/**
+ * Default listener: hands every decoded message, with its connection, to MessageHandler.
+ */
+public class MessageHandlerListener implements TransportListener {
+    private final MessageHandler messageHandler;
+
+    public MessageHandlerListener(MessageHandler messageHandler) {
+        this.messageHandler = messageHandler;
+    }
+
+    @Override
+    public void onMessage(PeerConnection connection, BaseMessage msg) {
+        messageHandler.handleMessage(msg, connection);
+    }
+
+    @Override
+    public void onDisconnected(PeerConnection connection, Throwable cause) {
+        messageHandler.handleDisconnect(connection, cause);
+        if (cause != null) {
+            System.err.println("Connection to " + connection.getRemoteAddress() + " closed: " + cause.getMessage());
+        }
+    }
+}
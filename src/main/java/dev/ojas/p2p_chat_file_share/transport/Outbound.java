@@ -0,0 +1,81 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A queued outbound frame. The connection drains it into its (reused) write buffer
+ * piece by piece, so a large frame never needs a buffer of its own size.
+ */
+interface Outbound {
+    /**
+     * Copy as many pending bytes as fit into dst (dst is in fill mode).
+     * Returns true once every byte of this frame has been handed over.
+     */
+    boolean fill(ByteBuffer dst);
+
+    /**
+     * True when, after fill() is done, the frame still has a body to stream with transferRegion().
+     */
+    default boolean hasRegion() {
+        return false;
+    }
+
+    /**
+     * Write the body directly to the socket (the write buffer has already been flushed).
+     * Returns true once the whole body is written, false if the socket is full.
+     */
+    default boolean transferRegion(WritableByteChannel target) throws IOException {
+        return true;
+    }
+
+    /**
+     * Called once when the frame is done or the connection is closed before it was sent.
+     */
+    default void release() {}
+
+    static Outbound of(byte[] frame) {
+        return new Outbound() {
+            private int offset;
+
+            @Override
+            public boolean fill(ByteBuffer dst) {
+                int n = Math.min(dst.remaining(), frame.length - offset);
+                dst.put(frame, offset, n);
+                offset += n;
+                return offset == frame.length;
+            }
+        };
+    }
+
+    /**
+     * A frame made of several buffers sent back to back (e.g. a chunk header and its payload).
+     * The buffers are read through duplicates, so the caller's positions are left untouched.
+     */
+    static Outbound of(ByteBuffer... parts) {
+        ByteBuffer[] views = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) views[i] = parts[i].duplicate();
+        return new Outbound() {
+            private int part;
+
+            @Override
+            public boolean fill(ByteBuffer dst) {
+                while (part < views.length) {
+                    ByteBuffer src = views[part];
+                    if (src.remaining() <= dst.remaining()) {
+                        dst.put(src);
+                        part++;
+                    } else {
+                        int limit = src.limit();
+                        src.limit(src.position() + dst.remaining());
+                        dst.put(src);
+                        src.limit(limit);
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+}
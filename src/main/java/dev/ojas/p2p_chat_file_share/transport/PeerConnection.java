@@ -0,0 +1,353 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import dev.ojas.p2p_chat_file_share.message.data.BaseMessage;
+import dev.ojas.p2p_chat_file_share.message.data.FileChunkMessage;
+import dev.ojas.p2p_chat_file_share.node.data.Peer;
+import dev.ojas.p2p_chat_file_share.session.SecureChannel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PeerConnection: one non-blocking socket plus its framing state.
+ * - the read buffer is reused for every frame and grows (up to maxFrameSize) for a big frame; once
+ *   that frame is consumed it shrinks back to readBufferSize, so idle connections don't pin big buffers
+ * - outbound frames are queued from any thread and drained into one reused direct write buffer
+ *   by the I/O loop, so a slow peer costs queue entries, not threads
+ * - after the handshake a SecureChannel is attached: JSON frames are then sealed on the way out and
+ *   unsealed frames are refused on the way in. Chunk frames stay as they are: their payload is already
+ *   AES-GCM under the file key and checked against the signed Merkle root.
+ */
+public class PeerConnection implements IoLoop.Handler {
+    private final IoLoop loop;
+    private final SocketChannel channel;
+    private final TransportListener listener;
+    private final int maxFrameSize;
+    private final int readBufferSize;
+    private final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ByteBuffer writeBuffer;
+    private ByteBuffer readBuffer;
+    private Outbound current;
+    private boolean regionPending; // current's header is staged, its file region still has to go out
+    private SelectionKey key;
+    private final Object sendLock = new Object(); // sealing order must match queue order
+    private volatile SecureChannel secureChannel;
+    private byte[] openBuffer = new byte[0];       // I/O thread only
+    private volatile long lastReadNanos = System.nanoTime();  // liveness, read by ConnectionMonitor
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    @Getter
+    private final boolean inbound;
+    @Getter
+    private final SocketAddress remoteAddress;
+    @Getter
+    @Setter
+    private volatile Peer peer; // known up front when dialed, filled in after handshake when accepted
+
+    PeerConnection(IoLoop loop, SocketChannel channel, TransportListener listener, int readBufferSize,
+                   int writeBufferSize, int maxFrameSize, boolean inbound, SocketAddress remoteAddress) {
+        this.loop = loop;
+        this.channel = channel;
+        this.listener = listener;
+        this.maxFrameSize = maxFrameSize;
+        this.readBufferSize = readBufferSize;
+        this.inbound = inbound;
+        this.remoteAddress = remoteAddress;
+        this.readBuffer = ByteBuffer.allocate(readBufferSize);
+        this.writeBuffer = ByteBuffer.allocateDirect(writeBufferSize);
+    }
+
+    /**
+     * Register on the loop. Must run on the loop thread.
+     */
+    void register(int interestOps) throws IOException {
+        key = channel.register(loop.selector(), interestOps, this);
+    }
+
+    /**
+     * Interest ops for a connected socket: read, plus write if frames were queued before it connected.
+     */
+    int connectedInterestOps() {
+        return SelectionKey.OP_READ | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * System.nanoTime() of the last read that returned data (connection setup until then).
+     */
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * System.nanoTime() of the last socket write that sent data (connection setup until then).
+     */
+    public long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    /**
+     * Switch to the session: every JSON frame queued after this call is sealed, and only sealed
+     * frames are accepted from the peer. Queue the last plaintext handshake frame before calling this.
+     */
+    public void setSecureChannel(SecureChannel channel) {
+        synchronized (sendLock) {
+            this.secureChannel = channel;
+        }
+    }
+
+    public boolean isSecure() {
+        return secureChannel != null;
+    }
+
+    /**
+     * Queue a message. Safe to call from any thread.
+     * File chunks that carry raw chunkData go out as binary frames; everything else is JSON.
+     */
+    public void send(BaseMessage msg) throws Exception {
+        if (msg instanceof FileChunkMessage && ((FileChunkMessage) msg).getChunkData() != null) {
+            FileChunkMessage chunk = (FileChunkMessage) msg;
+            enqueue(Outbound.of(FileChunkCodec.encodeHeader(chunk), chunk.getChunkData()));
+            return;
+        }
+        byte[] frame = FrameCodec.encodeJson(msg);
+        synchronized (sendLock) {
+            SecureChannel channel = secureChannel;
+            enqueue(Outbound.of(channel == null ? frame : FrameCodec.seal(frame, channel)));
+        }
+    }
+
+    /**
+     * Queue a frame whose body is count bytes of file starting at position. The header is written
+     * normally, then the body goes from the file to the socket with transferTo (zero-copy).
+     * The connection takes ownership of the FileChannel and closes it when done.
+     */
+    public void sendFileRegion(ByteBuffer header, FileChannel file, long position, long count) {
+        enqueue(new FileRegionOutbound(header, file, position, count));
+    }
+
+    void enqueue(Outbound frame) {
+        if (closed.get()) {
+            frame.release();
+            throw new IllegalStateException("connection closed: " + remoteAddress);
+        }
+        outbound.add(frame);
+        loop.execute(this::requestWrite);
+    }
+
+    private void requestWrite() {
+        if (closed.get()) {
+            releasePending(); // raced with close()
+            return;
+        }
+        if (key == null || !key.isValid() || channel.isConnectionPending()) return; // OP_CONNECT handler picks it up
+        if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            key.interestOps(connectedInterestOps());
+            listener.onConnected(this);
+            return;
+        }
+        if (key.isReadable()) onReadable();
+        if (key.isValid() && key.isWritable()) onWritable();
+    }
+
+    private void onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) throw new EOFException("peer closed connection");
+        if (n > 0) lastReadNanos = System.nanoTime();
+        readBuffer.flip();
+        while (readBuffer.remaining() >= FrameCodec.LENGTH_FIELD_SIZE) {
+            int start = readBuffer.position();
+            int length = readBuffer.getInt(start);
+            if (length < 1 || length > maxFrameSize) throw new IOException("bad frame length " + length);
+            if (readBuffer.remaining() < FrameCodec.LENGTH_FIELD_SIZE + length) {
+                ensureCapacity(FrameCodec.LENGTH_FIELD_SIZE + length);
+                return;
+            }
+            byte kind = readBuffer.get(start + FrameCodec.LENGTH_FIELD_SIZE);
+            int end = start + FrameCodec.LENGTH_FIELD_SIZE + length;
+            ByteBuffer payload = readBuffer.duplicate();
+            payload.position(start + FrameCodec.HEADER_SIZE).limit(end);
+            dispatch(kind, payload);
+            readBuffer.position(end);
+        }
+        if (readBuffer.capacity() > readBufferSize && readBuffer.remaining() <= readBufferSize) {
+            // the big frame is consumed: go back to the default size
+            ByteBuffer smaller = ByteBuffer.allocate(readBufferSize);
+            smaller.put(readBuffer);
+            readBuffer = smaller;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Make room for a frame of the given total size. Leaves readBuffer in fill mode.
+     */
+    private void ensureCapacity(int frameSize) {
+        if (frameSize > readBuffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    private void dispatch(byte kind, ByteBuffer payload) throws IOException {
+        try {
+            switch (kind) {
+                case FrameCodec.KIND_SEALED:
+                    dispatchSealed(payload);
+                    break;
+                case FrameCodec.KIND_JSON:
+                    if (secureChannel != null) throw new IOException("unsealed frame on a secure session");
+                    listener.onMessage(this, FrameCodec.decodeJson(payload));
+                    break;
+                case FrameCodec.KIND_FILE_CHUNK:
+                    FileChunkMessage chunk = FileChunkCodec.decode(payload);
+                    if (peer != null) chunk.setFrom(peer.getNodeId());
+                    listener.onMessage(this, chunk); // chunkData is only valid during this call
+                    break;
+                default:
+                    throw new IOException("unknown frame kind " + kind);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            System.err.println("Dropping undecodable frame from " + remoteAddress + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Open a sealed frame and dispatch the inner frame. A record that fails to open ends the connection:
+     * the counter sequence is broken from then on.
+     */
+    private void dispatchSealed(ByteBuffer payload) throws Exception {
+        SecureChannel channel = secureChannel;
+        if (channel == null) throw new IOException("sealed frame before the session was established");
+        byte[] record;
+        int offset;
+        int length = payload.remaining();
+        if (payload.hasArray()) {
+            record = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            record = new byte[length];
+            payload.duplicate().get(record);
+            offset = 0;
+        }
+        if (openBuffer.length < length) openBuffer = new byte[length];
+        int innerLength;
+        try {
+            innerLength = channel.open(record, offset, length, openBuffer, 0);
+        } catch (java.security.GeneralSecurityException e) {
+            throw new IOException("sealed frame rejected: " + e.getMessage(), e);
+        }
+        if (innerLength < 1) throw new IOException("empty sealed frame");
+        byte innerKind = openBuffer[0];
+        if (innerKind == FrameCodec.KIND_SEALED) throw new IOException("nested sealed frame");
+        ByteBuffer inner = ByteBuffer.wrap(openBuffer, 1, innerLength - 1).slice();
+        if (innerKind == FrameCodec.KIND_JSON) listener.onMessage(this, FrameCodec.decodeJson(inner));
+        else dispatch(innerKind, inner);
+    }
+
+    private void onWritable() throws IOException {
+        if (flush()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Drain queued frames through the write buffer. Returns true when nothing is left pending.
+     * A file region is streamed only after everything staged before it has been written.
+     */
+    private boolean flush() throws IOException {
+        for (;;) {
+            while (!regionPending && writeBuffer.hasRemaining()) {
+                if (current == null && (current = outbound.poll()) == null) break;
+                if (!current.fill(writeBuffer)) break;
+                if (current.hasRegion()) {
+                    regionPending = true;
+                    break;
+                }
+                current.release();
+                current = null;
+            }
+            if (writeBuffer.position() > 0) {
+                writeBuffer.flip();
+                if (channel.write(writeBuffer) > 0) lastWriteNanos = System.nanoTime();
+                boolean drained = !writeBuffer.hasRemaining();
+                writeBuffer.compact();
+                if (!drained) return false;
+                continue;
+            }
+            if (regionPending) {
+                boolean done = current.transferRegion(channel);
+                lastWriteNanos = System.nanoTime();
+                if (!done) return false;
+                regionPending = false;
+                current.release();
+                current = null;
+                continue;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Close the connection. Safe to call from any thread.
+     */
+    public void close() {
+        loop.execute(() -> close(null));
+    }
+
+    /**
+     * Close the connection because of cause, which the listener's onDisconnected then sees (a plain
+     * close() reports none). Safe to call from any thread.
+     */
+    public void abort(Throwable cause) {
+        loop.execute(() -> close(cause));
+    }
+
+    @Override
+    public void close(Throwable cause) {
+        if (!closed.compareAndSet(false, true)) return;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        releasePending();
+        SecureChannel channel = secureChannel;
+        if (channel != null) channel.destroy();
+        listener.onDisconnected(this, cause);
+    }
+
+    private void releasePending() {
+        if (current != null) current.release();
+        current = null;
+        regionPending = false;
+        Outbound frame;
+        while ((frame = outbound.poll()) != null) frame.release();
+    }
+}
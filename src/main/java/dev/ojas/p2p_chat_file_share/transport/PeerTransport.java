@@ -0,0 +1,134 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import dev.ojas.p2p_chat_file_share.config.TransportProperties;
+import dev.ojas.p2p_chat_file_share.node.data.Config;
+import dev.ojas.p2p_chat_file_share.node.data.Peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PeerTransport: selector-based TCP transport for peer messages.
+ * - a fixed set of I/O loops (p2pcf.transport.io-threads) serves every connection
+ * - the listening socket lives on loop 0; accepted and dialed sockets are spread round-robin
+ * - frames are length-prefixed (see FrameCodec) and decoded messages go to the TransportListener
+ */
+public class PeerTransport implements AutoCloseable {
+    private final TransportProperties properties;
+    private final TransportListener listener;
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel server;
+
+    public PeerTransport(TransportProperties properties, TransportListener listener) throws IOException {
+        this.properties = properties;
+        this.listener = listener;
+        int threads = Math.max(1, properties.getIoThreads());
+        this.loops = new IoLoop[threads];
+        for (int i = 0; i < threads; i++) loops[i] = new IoLoop("p2pcf-io-" + i);
+    }
+
+    /**
+     * Start the I/O loops and listen on the node's configured port.
+     */
+    public void start(Config config) throws IOException {
+        for (IoLoop loop : loops) loop.start();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(config.getPort()));
+        IoLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> {
+            try {
+                server.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT, new Acceptor());
+            } catch (IOException e) {
+                System.err.println("Failed to register listener: " + e.getMessage());
+            }
+        });
+        System.out.println("Listening for peers on port " + config.getPort());
+    }
+
+    /**
+     * Dial a peer. The future completes once the connection is registered; the TCP connect itself
+     * finishes asynchronously and is reported through TransportListener.onConnected. Messages sent
+     * before that are queued and flushed on connect.
+     */
+    public CompletableFuture<PeerConnection> connect(Peer peer) {
+        CompletableFuture<PeerConnection> result = new CompletableFuture<>();
+        try {
+            InetSocketAddress address = new InetSocketAddress(peer.getIp(), peer.getPort());
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            IoLoop loop = pickLoop();
+            PeerConnection connection = newConnection(loop, channel, false, address);
+            connection.setPeer(peer);
+            loop.execute(() -> {
+                try {
+                    boolean connected = channel.connect(address);
+                    // connected at once: frames queued before registration (the handshake) need OP_WRITE too
+                    connection.register(connected ? connection.connectedInterestOps() : SelectionKey.OP_CONNECT);
+                    if (connected) listener.onConnected(connection);
+                    result.complete(connection);
+                } catch (IOException e) {
+                    connection.close(e);
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private IoLoop pickLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    private PeerConnection newConnection(IoLoop loop, SocketChannel channel, boolean inbound, InetSocketAddress remote) {
+        return new PeerConnection(loop, channel, listener, properties.getReadBufferSize(),
+                properties.getWriteBufferSize(), properties.getMaxFrameSize(), inbound, remote);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null) server.close();
+        for (IoLoop loop : loops) loop.shutdown();
+    }
+
+    /**
+     * Accepts on loop 0 and hands each socket to a loop chosen round-robin.
+     */
+    private class Acceptor implements IoLoop.Handler {
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = pickLoop();
+                PeerConnection connection = newConnection(loop, channel, true,
+                        (InetSocketAddress) channel.getRemoteAddress());
+                loop.execute(() -> {
+                    try {
+                        connection.register(SelectionKey.OP_READ);
+                        listener.onConnected(connection);
+                    } catch (IOException e) {
+                        connection.close(e);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void close(Throwable cause) {
+            if (cause != null) System.err.println("Listener error: " + cause.getMessage());
+        }
+    }
+}
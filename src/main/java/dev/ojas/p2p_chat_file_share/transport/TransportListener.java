@@ -0,0 +1,15 @@
+package dev.ojas.p2p_chat_file_share.transport;
+
+import dev.ojas.p2p_chat_file_share.message.data.BaseMessage;
+
+/**
+ * Callbacks from the transport. All methods run on the connection's I/O thread,
+ * so implementations must not block (hand long work to another executor).
+ */
+public interface TransportListener {
+    default void onConnected(PeerConnection connection) {}
+
+    void onMessage(PeerConnection connection, BaseMessage msg);
+
+    default void onDisconnected(PeerConnection connection, Throwable cause) {}
+}
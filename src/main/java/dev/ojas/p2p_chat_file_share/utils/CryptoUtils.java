@@ -3,8 +3,10 @@ package dev.ojas.p2p_chat_file_share.utils;
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.PKCS8EncodedKeySpec;
@@ -13,36 +15,132 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * CryptoUtils: hashing, HMAC/HKDF, AES-GCM, EC keys and signatures.
+ * JCA instances are looked up once per thread and reused (getInstance walks the provider list, which
+ * shows up at the top of chunk-handling profiles). Key specs are never cached here; a key used for many
+ * operations is held by its owner as a SecretKey and passed to the SecretKey overloads.
+ * The (in, off, len, out, outOff) overloads write into caller buffers and allocate nothing per call.
+ */
 public final class CryptoUtils {
     private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    public static final int GCM_IV_LENGTH = 12;
+    public static final int GCM_TAG_LENGTH = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> newInstance(() -> MessageDigest.getInstance("SHA-256")));
+    private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> newInstance(() -> Mac.getInstance("HmacSHA256")));
+    private static final ThreadLocal<Cipher> AES_GCM = ThreadLocal.withInitial(() -> newInstance(() -> Cipher.getInstance("AES/GCM/NoPadding")));
+    private static final ThreadLocal<Signature> ECDSA = ThreadLocal.withInitial(() -> newInstance(() -> Signature.getInstance("SHA256withECDSA")));
+    private static final ThreadLocal<KeyFactory> EC_KEY_FACTORY = ThreadLocal.withInitial(() -> newInstance(() -> KeyFactory.getInstance("EC")));
 
     private CryptoUtils() {}
 
+    private interface InstanceFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private static <T> T newInstance(InstanceFactory<T> factory) {
+        try {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * AES key spec for raw key bytes. Not cached: a static cache would keep a copy of every secret
+     * (seeds, PRKs, session and ticket keys) alive after its owner zeroes it. Callers that reuse one
+     * key across many operations build the spec once and use the SecretKey overloads.
+     */
+    public static SecretKeySpec aesKey(byte[] key) {
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * HmacSHA256 key spec for raw key bytes; not cached, see aesKey.
+     */
+    public static SecretKeySpec hmacKey(byte[] key) {
+        return new SecretKeySpec(key, "HmacSHA256");
+    }
+
     public static byte[] randomBytes(int len) {
         byte[] b = new byte[len];
         SECURE_RANDOM.nextBytes(b);
         return b;
     }
 
+    /**
+     * This thread's SHA-256 digest, reset and ready for update(). Must not be kept across calls
+     * that may hash with it (every sha256 method here uses the same instance).
+     */
+    public static MessageDigest sha256Digest() {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md;
+    }
+
     public static byte[] sha256(byte[]... parts) {
+        MessageDigest md = sha256Digest();
+        for (byte[] p : parts) md.update(p);
+        return md.digest();
+    }
+
+    /**
+     * SHA-256 of the buffer's remaining bytes. The buffer's position is not moved.
+     */
+    public static byte[] sha256(ByteBuffer data) {
+        MessageDigest md = sha256Digest();
+        md.update(data.duplicate());
+        return md.digest();
+    }
+
+    /**
+     * SHA-256 of in[off, off+len) written to out[outOff, outOff+32). Returns 32.
+     */
+    public static int sha256(byte[] in, int off, int len, byte[] out, int outOff) {
+        MessageDigest md = sha256Digest();
+        md.update(in, off, len);
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            for (byte[] p : parts) md.update(p);
-            return md.digest();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return md.digest(out, outOff, 32);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("output too small", e);
+        }
+    }
+
+    /**
+     * This thread's HmacSHA256, initialised with the key.
+     */
+    public static Mac hmacSha256(byte[] key) {
+        return hmacSha256(hmacKey(key));
+    }
+
+    public static Mac hmacSha256(SecretKey key) {
+        try {
+            Mac mac = HMAC_SHA256.get();
+            mac.init(key);
+            return mac;
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException(e);
         }
     }
 
     public static byte[] hmacSha256(byte[] key, byte[] data) {
+        return hmacSha256(key).doFinal(data);
+    }
+
+    /**
+     * HMAC-SHA256 of in[off, off+len) written to out[outOff, outOff+32). Returns 32.
+     */
+    public static int hmacSha256(byte[] key, byte[] in, int off, int len, byte[] out, int outOff) {
+        Mac mac = hmacSha256(key);
+        mac.update(in, off, len);
         try {
-            Mac mac = Mac.getInstance("HmacSHA256");
-            SecretKey sk = new SecretKeySpec(key, "HmacSHA256");
-            mac.init(sk);
-            return mac.doFinal(data);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            mac.doFinal(out, outOff);
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException("output too small", e);
         }
+        return 32;
     }
 
     // Basic HKDF-Expand (we'll use Extract as HMAC with salt, Expand via info)
@@ -55,17 +153,22 @@ public final class CryptoUtils {
         int hashLen = 32;
         int n = (outLen + hashLen - 1) / hashLen;
         byte[] result = new byte[outLen];
-        byte[] t = new byte[0];
+        byte[] t = new byte[hashLen];
         int copied = 0;
-        for (int i = 1; i <= n; i++) {
-            byte[] input = new byte[t.length + (info == null ? 0 : info.length) + 1];
-            System.arraycopy(t, 0, input, 0, t.length);
-            if (info != null) System.arraycopy(info, 0, input, t.length, info.length);
-            input[input.length - 1] = (byte) i;
-            t = hmacSha256(prk, input);
-            int want = Math.min(hashLen, outLen - copied);
-            System.arraycopy(t, 0, result, copied, want);
-            copied += want;
+        Mac mac = hmacSha256(prk);
+        try {
+            for (int i = 1; i <= n; i++) {
+                // T(i) = HMAC(prk, T(i-1) || info || i)
+                if (i > 1) mac.update(t);
+                if (info != null) mac.update(info);
+                mac.update((byte) i);
+                mac.doFinal(t, 0);
+                int want = Math.min(hashLen, outLen - copied);
+                System.arraycopy(t, 0, result, copied, want);
+                copied += want;
+            }
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
         }
         return result;
     }
@@ -79,19 +182,137 @@ public final class CryptoUtils {
     }
 
     public static String toHex(byte[] b) {
-        StringBuilder sb = new StringBuilder(b.length * 2);
-        for (byte x : b) sb.append(String.format("%02x", x & 0xff));
-        return sb.toString();
+        return toHex(b, 0, b.length);
+    }
+
+    public static String toHex(byte[] b, int off, int len) {
+        char[] out = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            int x = b[off + i] & 0xff;
+            out[2 * i] = HEX_DIGITS[x >>> 4];
+            out[2 * i + 1] = HEX_DIGITS[x & 0x0f];
+        }
+        return new String(out);
+    }
+
+    public static byte[] fromHex(CharSequence hex) {
+        int len = hex.length();
+        if ((len & 1) != 0) throw new IllegalArgumentException("odd hex length");
+        byte[] out = new byte[len / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("bad hex at " + 2 * i);
+            out[i] = (byte) (hi << 4 | lo);
+        }
+        return out;
+    }
+
+    /**
+     * This thread's AES/GCM cipher, initialised for one operation. A fresh IV is required for every encryption.
+     */
+    public static Cipher aesGcm(int mode, byte[] key, byte[] iv, int ivOff) {
+        return aesGcm(mode, aesKey(key), iv, ivOff);
+    }
+
+    /**
+     * Same as aesGcm(int, byte[], byte[], int) for a key spec the caller holds itself.
+     */
+    public static Cipher aesGcm(int mode, SecretKey key, byte[] iv, int ivOff) {
+        try {
+            Cipher cipher = AES_GCM.get();
+            cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv, ivOff, GCM_IV_LENGTH));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("aesGcm init failed", e);
+        }
+    }
+
+    /**
+     * AES-GCM encrypt in[off, off+len) into out at outOff (ciphertext then 16-byte tag).
+     * Returns the bytes written, len + 16. out may be the same array as in (same offsets).
+     */
+    public static int aesGcmEncrypt(byte[] key, byte[] iv, byte[] in, int off, int len, byte[] out, int outOff) {
+        try {
+            return aesGcm(Cipher.ENCRYPT_MODE, key, iv, 0).doFinal(in, off, len, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("aesGcmEncrypt failed", e);
+        }
+    }
+
+    /**
+     * AES-GCM decrypt in[off, off+len) (ciphertext then tag) into out at outOff.
+     * Returns the plaintext length, len - 16. Throws if the tag does not verify.
+     */
+    public static int aesGcmDecrypt(byte[] key, byte[] iv, byte[] in, int off, int len, byte[] out, int outOff) {
+        try {
+            return aesGcm(Cipher.DECRYPT_MODE, key, iv, 0).doFinal(in, off, len, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("aesGcmDecrypt failed", e);
+        }
+    }
+
+    /**
+     * Size of a sealed message (iv || ciphertext || tag) for plainLength bytes of plaintext.
+     */
+    public static int aesGcmSealedSize(int plainLength) {
+        return GCM_IV_LENGTH + plainLength + GCM_TAG_LENGTH;
+    }
+
+    /**
+     * AES-GCM encrypt src's remaining bytes into dst as iv || ciphertext || tag, with a fresh random iv.
+     * Either buffer may be heap or direct; nothing is copied besides the cipher's own output.
+     * Advances both positions and returns the number of bytes written to dst.
+     */
+    public static int aesGcmSeal(byte[] key, ByteBuffer src, ByteBuffer dst) {
+        return aesGcmSeal(aesKey(key), src, dst);
+    }
+
+    public static int aesGcmSeal(SecretKey key, ByteBuffer src, ByteBuffer dst) {
+        if (dst.remaining() < aesGcmSealedSize(src.remaining())) throw new IllegalArgumentException("destination too small");
+        byte[] iv = randomBytes(GCM_IV_LENGTH);
+        try {
+            dst.put(iv);
+            return GCM_IV_LENGTH + aesGcm(Cipher.ENCRYPT_MODE, key, iv, 0).doFinal(src, dst);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("aesGcmEncrypt failed", e);
+        }
+    }
+
+    /**
+     * Decrypt a sealed message (iv || ciphertext || tag, src's remaining bytes) into dst.
+     * Throws if the tag does not verify; dst then holds nothing usable.
+     * Advances both positions and returns the plaintext length.
+     */
+    public static int aesGcmOpen(byte[] key, ByteBuffer src, ByteBuffer dst) {
+        return aesGcmOpen(aesKey(key), src, dst);
+    }
+
+    public static int aesGcmOpen(SecretKey key, ByteBuffer src, ByteBuffer dst) {
+        if (src.remaining() < GCM_IV_LENGTH + GCM_TAG_LENGTH) throw new IllegalArgumentException("sealed message too short");
+        if (dst.remaining() < src.remaining() - GCM_IV_LENGTH - GCM_TAG_LENGTH) throw new IllegalArgumentException("destination too small");
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        src.get(iv);
+        try {
+            return aesGcm(Cipher.DECRYPT_MODE, key, iv, 0).doFinal(src, dst);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("aesGcmDecrypt failed", e);
+        }
+    }
+
+    /**
+     * Seal a whole array: returns iv || ciphertext || tag.
+     */
+    public static byte[] aesGcmSeal(byte[] key, byte[] plaintext) {
+        byte[] sealed = new byte[aesGcmSealedSize(plaintext.length)];
+        aesGcmSeal(key, ByteBuffer.wrap(plaintext), ByteBuffer.wrap(sealed));
+        return sealed;
     }
 
     public static Map<String, String> aesGcmEncryptToBase64(byte[] key, byte[] plaintext) {
         try {
-            byte[] iv = randomBytes(12); // 12 bytes recommended for GCM
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
-            GCMParameterSpec gcm = new GCMParameterSpec(128, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, gcm);
-            byte[] ct = cipher.doFinal(plaintext); // ct includes tag at the end
+            byte[] iv = randomBytes(GCM_IV_LENGTH); // 12 bytes recommended for GCM
+            byte[] ct = aesGcm(Cipher.ENCRYPT_MODE, key, iv, 0).doFinal(plaintext); // ct includes tag at the end
             Map<String, String> out = new HashMap<>();
             out.put("iv", toBase64(iv));
             out.put("ct", toBase64(ct));
@@ -102,14 +323,12 @@ public final class CryptoUtils {
     }
 
     public static byte[] aesGcmDecryptFromBase64(byte[] key, String ivB64, String ctB64) {
+        return aesGcmDecrypt(key, fromBase64(ivB64), fromBase64(ctB64));
+    }
+
+    public static byte[] aesGcmDecrypt(byte[] key, byte[] iv, byte[] ct) {
         try {
-            byte[] iv = fromBase64(ivB64);
-            byte[] ct = fromBase64(ctB64);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
-            GCMParameterSpec gcm = new GCMParameterSpec(128, iv);
-            cipher.init(Cipher.DECRYPT_MODE, keySpec, gcm);
-            return cipher.doFinal(ct);
+            return aesGcm(Cipher.DECRYPT_MODE, key, iv, 0).doFinal(ct);
         } catch (Exception e) {
             throw new RuntimeException("aesGcmDecrypt failed", e);
         }
@@ -129,7 +348,7 @@ public final class CryptoUtils {
 
     public static PublicKey decodePublicKey(String b64) throws Exception {
         byte[] bytes = Base64.getDecoder().decode(b64);
-        KeyFactory kf = KeyFactory.getInstance("EC"); // assuming secp256r1/secp256k1
+        KeyFactory kf = EC_KEY_FACTORY.get(); // assuming secp256r1/secp256k1
         X509EncodedKeySpec spec = new X509EncodedKeySpec(bytes);
         return kf.generatePublic(spec);
     }
@@ -140,21 +359,21 @@ public final class CryptoUtils {
 
     public static PrivateKey decodePrivateKey(String b64) throws Exception {
         byte[] bytes = Base64.getDecoder().decode(b64);
-        KeyFactory kf = KeyFactory.getInstance("EC");
+        KeyFactory kf = EC_KEY_FACTORY.get();
         PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(bytes);
         return kf.generatePrivate(spec);
     }
 
     // === Sign / Verify ===
     public static byte[] sign(PrivateKey priv, byte[] data) throws Exception {
-        Signature sig = Signature.getInstance("SHA256withECDSA");
+        Signature sig = ECDSA.get();
         sig.initSign(priv);
         sig.update(data);
         return sig.sign();
     }
 
     public static boolean verifySignature(PublicKey pub, byte[] data, byte[] signature) throws Exception {
-        Signature sig = Signature.getInstance("SHA256withECDSA");
+        Signature sig = ECDSA.get();
         sig.initVerify(pub);
         sig.update(data);
         return sig.verify(signature);
@@ -0,0 +1,24 @@
+package dev.ojas.p2p_chat_file_share.utils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * TimeUtils: LocalDateTime <-> epoch millis (UTC) as stored in the wallet snapshot and the node journal,
+ * and used to order peers by last seen.
+ * - a null time is NO_TIME, which sorts before every real time
+ */
+public final class TimeUtils {
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private TimeUtils() {}
+
+    public static long toEpochMillis(LocalDateTime time) {
+        return time == null ? NO_TIME : time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    public static LocalDateTime fromEpochMillis(long millis) {
+        return millis == NO_TIME ? null : LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000),
+                Math.floorMod(millis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,205 @@
+package dev.ojas.p2p_chat_file_share.utils.key;
+
+import dev.ojas.p2p_chat_file_share.exception.KeySessionLockedException;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EphemeralKeyPool: handshake key pairs generated ahead of time on a background daemon thread, so a
+ * handshake only pays a queue poll.
+ * - the refill thread keeps up to `size` keys ready and sleeps while the pool is full
+ * - indexed pools (deterministic keys, see HandshakeMessageBuilder) reserve indices in blocks through
+ *   an IndexReserver: one wallet write covers `block` handshakes. Indices reserved but never handed out
+ *   (shutdown, restart) are skipped, never reused.
+ * - if the pool is empty, or the generator fails (e.g. KeySession locked), take() generates inline and
+ *   the caller sees the generator's exception
+ * - clear() drops every pooled key (register it with KeySession.onLock for seed-derived pools); a key
+ *   generated across a clear() is dropped too. While the generator reports the session locked, the
+ *   refill thread waits for the next take() instead of retrying
+ */
+public class EphemeralKeyPool implements AutoCloseable {
+    /**
+     * Generates the key pair for one index (-1 for pools without indices).
+     */
+    public interface KeyGenerator {
+        KeyPair generate(int index) throws Exception;
+    }
+
+    /**
+     * Durably reserves `count` consecutive indices and returns the first one.
+     */
+    public interface IndexReserver {
+        int reserve(int count) throws Exception;
+    }
+
+    /**
+     * A key pair and the index it was generated for.
+     */
+    public static final class PooledKey {
+        private final int index;
+        private final KeyPair keyPair;
+
+        PooledKey(int index, KeyPair keyPair) {
+            this.index = index;
+            this.keyPair = keyPair;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public KeyPair getKeyPair() {
+            return keyPair;
+        }
+    }
+
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private final String name;
+    private final int block;
+    private final IndexReserver reserver;
+    private final KeyGenerator generator;
+    private final BlockingQueue<PooledKey> ready;
+    private final Object refillSignal = new Object();
+    private final Object indexLock = new Object(); // held across a reservation's wallet write
+    private int nextIndex;
+    private long takes;      // take() calls, guarded by refillSignal; wakes a refiller parked on a locked session
+    private long generation; // clear() calls, guarded by refillSignal
+    private int blockEnd;
+    private volatile Thread refiller;
+    private volatile boolean closed;
+
+    /**
+     * Pool of deterministic keys for indices reserved `block` at a time.
+     */
+    public EphemeralKeyPool(String name, int size, int block, IndexReserver reserver, KeyGenerator generator) {
+        if (size <= 0 || (reserver != null && block <= 0)) throw new IllegalArgumentException("pool size and block must be positive");
+        this.name = name;
+        this.block = block;
+        this.reserver = reserver;
+        this.generator = generator;
+        this.ready = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Pool of random P-256 key pairs.
+     */
+    public static EphemeralKeyPool random(String name, int size) {
+        return new EphemeralKeyPool(name, size, 0, null, index -> {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+            keyGen.initialize(256);
+            return keyGen.generateKeyPair();
+        });
+    }
+
+    /**
+     * A fresh key pair, never handed out before. Starts the refill thread on first use.
+     */
+    public PooledKey take() throws Exception {
+        if (closed) throw new IllegalStateException("ephemeral key pool " + name + " closed");
+        startRefiller();
+        PooledKey key = ready.poll();
+        synchronized (refillSignal) {
+            takes++;
+            refillSignal.notifyAll();
+        }
+        return key != null ? key : generate();
+    }
+
+    public int available() {
+        return ready.size();
+    }
+
+    /**
+     * Drop every pooled key, and any key the refill thread is generating right now.
+     */
+    public void clear() {
+        synchronized (refillSignal) {
+            generation++;
+            ready.clear();
+            refillSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the refill thread and drop every pooled key.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread thread = refiller;
+        if (thread != null) thread.interrupt();
+        ready.clear();
+    }
+
+    private void startRefiller() {
+        if (refiller != null) return;
+        synchronized (this) {
+            if (refiller != null) return;
+            Thread thread = new Thread(this::refill, "ephemeral-keys-" + name);
+            thread.setDaemon(true);
+            thread.start();
+            refiller = thread;
+        }
+    }
+
+    private void refill() {
+        while (!closed) {
+            long startedTakes = 0;
+            long startedGeneration;
+            try {
+                synchronized (refillSignal) {
+                    while (!closed && ready.remainingCapacity() == 0) refillSignal.wait();
+                    startedTakes = takes;
+                    startedGeneration = generation;
+                }
+                if (closed) break;
+                PooledKey key = generate();
+                synchronized (refillSignal) {
+                    // cleared meanwhile: the key may come from a session that has locked since
+                    if (generation != startedGeneration) continue;
+                    // false: a racing take() filled the gap inline; the index is skipped
+                    ready.offer(key);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (KeySessionLockedException e) {
+                // nothing to generate from until the session is unlocked; the next take() wakes us
+                try {
+                    synchronized (refillSignal) {
+                        while (!closed && takes == startedTakes) refillSignal.wait();
+                    }
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            } catch (Exception e) {
+                System.err.println("Ephemeral key pool " + name + " refill failed: " + e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private PooledKey generate() throws Exception {
+        int index = reserver == null ? -1 : nextIndex();
+        return new PooledKey(index, generator.generate(index));
+    }
+
+    private int nextIndex() throws Exception {
+        synchronized (indexLock) {
+            if (nextIndex == blockEnd) {
+                int start = reserver.reserve(block);
+                nextIndex = start;
+                blockEnd = start + block;
+            }
+            return nextIndex++;
+        }
+    }
+}
@@ -5,13 +5,30 @@ import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
 
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import org.bouncycastle.jce.spec.ECPrivateKeySpec;
 import org.bouncycastle.jce.spec.ECPublicKeySpec;
 import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
 
+/**
+ * HDKeyManager: path-based key derivation from the master seed (see deriveBytesForPath).
+ * - curve parameters, a fixed-base comb multiplier (G's precomputed table is built once per JVM)
+ *   and a KeyFactory per thread are shared, so a derivation is HMACs + one table-driven multiply
+ * - intermediate path prefixes ("999'", "999'/0'", ...) are memoized, so siblings only pay their
+ *   last HMAC; derived key pairs are kept in a bounded LRU cache keyed by canonical path
+ * - deriveECKeyPairs derives many sibling indices at once and normalizes their points together
+ * Cached material is secret: it is zeroed on eviction and dropped as soon as the KeySession locks.
+ * Every clearCache() starts a new generation; a derivation only caches what it derived if no clear
+ * happened since it started, so one in flight across a lock cannot repopulate the cache.
+ */
 public class HDKeyManager {
     static {
         // ensure BouncyCastle provider is available
@@ -20,13 +37,55 @@ public class HDKeyManager {
         }
     }
 
-    private final byte[] masterSeed;
+    private static final ECNamedCurveParameterSpec SECP256K1 = ECNamedCurveTable.getParameterSpec("secp256k1");
+    private static final BigInteger N_MINUS_ONE = SECP256K1.getN().subtract(BigInteger.ONE);
+    private static final FixedPointCombMultiplier MULTIPLIER = new FixedPointCombMultiplier();
+    private static final ThreadLocal<KeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("EC", "BC");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    static {
+        FixedPointUtil.precompute(SECP256K1.getG());
+    }
+
+    private static final int PREFIX_CACHE_SIZE = 256;
+    private static final int KEY_PAIR_CACHE_SIZE = 1024;
+
+    private final KeySession keySession;
+    private long generation; // bumped by clearCache(), guarded by this
+    private final LinkedHashMap<String, byte[]> prefixCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            if (size() <= PREFIX_CACHE_SIZE) return false;
+            Arrays.fill(eldest.getValue(), (byte) 0);
+            return true;
+        }
+    };
+    private final LinkedHashMap<String, KeyPair> keyPairCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyPair> eldest) {
+            return size() > KEY_PAIR_CACHE_SIZE;
+        }
+    };
 
     /**
      * masterSeed MUST be kept secret (encrypted at rest). Provide bytes from Vault.decryptSeed(...)
+     * The seed is copied into a KeySession of its own; prefer the KeySession constructor.
      */
     public HDKeyManager(byte[] masterSeed) {
-        this.masterSeed = masterSeed.clone();
+        this(KeySession.ofSeed(masterSeed));
+    }
+
+    /**
+     * Derive from the seed held by an unlocked KeySession (no PBKDF2 here, and no seed copy kept).
+     */
+    public HDKeyManager(KeySession keySession) {
+        this.keySession = keySession;
+        keySession.onLock(this::clearCache);
     }
 
     /**
@@ -35,16 +94,12 @@ public class HDKeyManager {
      * Path format: "m/999'/0'/1/3"  (we'll treat segments as strings and HMAC them)
      */
     public byte[] deriveBytesForPath(String path) {
-        if (path == null || path.isEmpty()) throw new IllegalArgumentException("path required");
-        String[] parts = path.trim().toLowerCase(Locale.ROOT).split("/");
-        byte[] key = masterSeed;
-        for (String p : parts) {
-            if (p.equals("m") || p.equals("")) continue;
-            // canonicalize segment bytes
-            byte[] seg = p.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            key = CryptoUtils.hmacSha256(key, seg);
+        String[] segments = canonicalSegments(path);
+        long started;
+        synchronized (this) {
+            started = generation;
         }
-        return key;
+        return deriveChain(segments, segments.length, started);
     }
 
     /**
@@ -52,40 +107,157 @@ public class HDKeyManager {
      * Uses SHA-256(derivedBytes) as the private scalar (reduced mod N).
      */
     public KeyPair deriveECKeyPair(String path) {
+        String[] segments = canonicalSegments(path);
+        String key = String.join("/", segments);
+        long started;
+        synchronized (this) {
+            KeyPair cached = keyPairCache.get(key);
+            if (cached != null) return cached;
+            started = generation;
+        }
+        BigInteger d = scalar(deriveChain(segments, segments.length, started));
+        KeyPair keyPair = toKeyPair(d, MULTIPLIER.multiply(SECP256K1.getG(), d).normalize());
+        synchronized (this) {
+            if (generation == started) keyPairCache.put(key, keyPair);
+        }
+        return keyPair;
+    }
+
+    /**
+     * Key pairs for parentPath/fromIndex .. parentPath/(fromIndex + count - 1), e.g. the next `count`
+     * room keys after Indices.room. The parent chain is walked once and all public points share one
+     * field inversion.
+     */
+    public KeyPair[] deriveECKeyPairs(String parentPath, int fromIndex, int count) {
+        if (count < 0 || fromIndex < 0) throw new IllegalArgumentException("bad index range");
+        String[] parent = canonicalSegments(parentPath);
+        String parentKey = String.join("/", parent);
+        KeyPair[] pairs = new KeyPair[count];
+        BigInteger[] scalars = new BigInteger[count];
+        ECPoint[] points = new ECPoint[count];
+        byte[] parentBytes = null;
+        long started;
+        synchronized (this) {
+            started = generation;
+        }
         try {
-            byte[] derived = deriveBytesForPath(path);
-            byte[] privCandidate = CryptoUtils.sha256(derived); // 32 bytes
-            BigInteger d = new BigInteger(1, privCandidate);
+            for (int i = 0; i < count; i++) {
+                String key = parentKey.isEmpty() ? Integer.toString(fromIndex + i) : parentKey + "/" + (fromIndex + i);
+                synchronized (this) {
+                    pairs[i] = keyPairCache.get(key);
+                }
+                if (pairs[i] != null) continue;
+                if (parentBytes == null) parentBytes = deriveChain(parent, parent.length, started);
+                byte[] child = CryptoUtils.hmacSha256(parentBytes, Integer.toString(fromIndex + i).getBytes(StandardCharsets.UTF_8));
+                scalars[i] = scalar(child);
+                points[i] = MULTIPLIER.multiply(SECP256K1.getG(), scalars[i]);
+            }
+        } finally {
+            if (parentBytes != null) Arrays.fill(parentBytes, (byte) 0);
+        }
+        ECPoint[] pending = Arrays.stream(points).filter(p -> p != null).toArray(ECPoint[]::new);
+        SECP256K1.getCurve().normalizeAll(pending);
+        for (int i = 0, j = 0; i < count; i++) {
+            if (points[i] == null) continue;
+            pairs[i] = toKeyPair(scalars[i], pending[j++]);
+            String key = parentKey.isEmpty() ? Integer.toString(fromIndex + i) : parentKey + "/" + (fromIndex + i);
+            synchronized (this) {
+                if (generation == started) keyPairCache.put(key, pairs[i]);
+            }
+        }
+        return pairs;
+    }
 
-            // fetch curve spec
-            ECNamedCurveParameterSpec spec = ECNamedCurveTable.getParameterSpec("secp256k1");
-            BigInteger n = spec.getN();
+    /**
+     * Derive a symmetric key (32 bytes) from the path using HKDF: HKDF-Extract(masterSeed) then Expand(info=path)
+     */
+    public byte[] deriveSymmetricKey(String path, byte[] info) {
+        byte[] infoBytes = (info == null) ? path.getBytes(java.nio.charset.StandardCharsets.UTF_8) : info;
+        return keySession.deriveKey(infoBytes, 32);
+    }
+
+    /**
+     * Zero and drop every cached prefix and key pair. Runs automatically when the KeySession locks.
+     */
+    public synchronized void clearCache() {
+        generation++;
+        for (byte[] bytes : prefixCache.values()) Arrays.fill(bytes, (byte) 0);
+        prefixCache.clear();
+        keyPairCache.clear();
+    }
 
-            // reduce scalar into [1, n-1]
-            d = d.mod(n.subtract(BigInteger.ONE)).add(BigInteger.ONE);
+    /**
+     * HMAC chain over segments[0, length), resumed from the longest memoized prefix. Every proper
+     * prefix walked is memoized unless the cache was cleared after `started` (a generation).
+     * Returns a fresh array the caller may zero.
+     */
+    private byte[] deriveChain(String[] segments, int length, long started) {
+        byte[] start = null;
+        int from = 0;
+        synchronized (this) {
+            String prefix = String.join("/", Arrays.copyOf(segments, length));
+            for (int end = length; end > 0; end--) {
+                byte[] cached = prefixCache.get(prefix);
+                if (cached != null) {
+                    start = cached.clone();
+                    from = end;
+                    break;
+                }
+                int slash = prefix.lastIndexOf('/');
+                prefix = slash < 0 ? "" : prefix.substring(0, slash);
+            }
+        }
+        if (start == null) {
+            try {
+                start = keySession.withSeed(byte[]::clone);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        byte[] key = start;
+        for (int i = from; i < length; i++) {
+            // canonicalize segment bytes
+            byte[] next = CryptoUtils.hmacSha256(key, segments[i].getBytes(StandardCharsets.UTF_8));
+            Arrays.fill(key, (byte) 0);
+            key = next;
+            if (i + 1 < segments.length) {
+                String prefix = String.join("/", Arrays.copyOf(segments, i + 1));
+                synchronized (this) {
+                    if (generation == started) prefixCache.putIfAbsent(prefix, key.clone());
+                }
+            }
+        }
+        return key;
+    }
 
-            // create priv/public using BouncyCastle KeyFactory
-            ECPrivateKeySpec privSpec = new ECPrivateKeySpec(d, spec);
-            KeyFactory kf = KeyFactory.getInstance("EC", "BC");
-            PrivateKey privKey = kf.generatePrivate(privSpec);
+    private static String[] canonicalSegments(String path) {
+        if (path == null || path.isEmpty()) throw new IllegalArgumentException("path required");
+        return Arrays.stream(path.trim().toLowerCase(Locale.ROOT).split("/"))
+                .filter(p -> !p.equals("m") && !p.isEmpty())
+                .toArray(String[]::new);
+    }
 
-            // compute public point Q = G * d
-            ECPoint q = spec.getG().multiply(d);
-            ECPublicKeySpec pubSpec = new ECPublicKeySpec(q, spec);
-            PublicKey pubKey = kf.generatePublic(pubSpec);
+    /**
+     * SHA-256 of the derived bytes, reduced into [1, n-1]. Zeroes derived.
+     */
+    private static BigInteger scalar(byte[] derived) {
+        byte[] privCandidate = CryptoUtils.sha256(derived); // 32 bytes
+        Arrays.fill(derived, (byte) 0);
+        BigInteger d = new BigInteger(1, privCandidate);
+        Arrays.fill(privCandidate, (byte) 0);
+        return d.mod(N_MINUS_ONE).add(BigInteger.ONE);
+    }
 
+    private static KeyPair toKeyPair(BigInteger d, ECPoint q) {
+        try {
+            KeyFactory kf = KEY_FACTORY.get();
+            PrivateKey privKey = kf.generatePrivate(new ECPrivateKeySpec(d, SECP256K1));
+            PublicKey pubKey = kf.generatePublic(new ECPublicKeySpec(q, SECP256K1));
             return new KeyPair(pubKey, privKey);
         } catch (Exception e) {
             throw new RuntimeException("deriveECKeyPair failed", e);
         }
     }
-
-    /**
-     * Derive a symmetric key (32 bytes) from the path using HKDF: HKDF-Extract(masterSeed) then Expand(info=path)
-     */
-    public byte[] deriveSymmetricKey(String path, byte[] info) {
-        byte[] prk = CryptoUtils.hkdfExtract(null, masterSeed);
-        byte[] infoBytes = (info == null) ? path.getBytes(java.nio.charset.StandardCharsets.UTF_8) : info;
-        return CryptoUtils.hkdfExpand(prk, infoBytes, 32);
-    }
 }
@@ -0,0 +1,90 @@
+package dev.ojas.p2p_chat_file_share.utils.key;
+
+import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * IdentityKey: the node's long-term signing key, the secp256k1 pair at IDENTITY_PATH. Its X.509
+ * encoding is Identity.masterXPub and nodeId = hex(SHA-256(that encoding)), so a signature that
+ * verifies under a key hashing to the claimed nodeId proves the signer owns that nodeId.
+ * - signing derives through HDKeyManager over the KeySession (cached there, dropped on lock)
+ * - verification needs no session
+ * - BouncyCastle instances only: SunEC no longer supports secp256k1
+ */
+@Component
+public class IdentityKey {
+    public static final String IDENTITY_PATH = "m/999'/0'/0/0";
+
+    static {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        }
+    }
+
+    private static final ThreadLocal<Signature> ECDSA = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance("SHA256withECDSA", "BC");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<KeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("EC", "BC");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final HDKeyManager keyManager;
+
+    @Autowired
+    public IdentityKey(KeySession keySession) {
+        this.keyManager = new HDKeyManager(keySession);
+    }
+
+    /**
+     * Base64 X.509 encoding of the identity public key (what Identity.masterXPub holds).
+     */
+    public String publicKey() {
+        return CryptoUtils.toBase64(keyManager.deriveECKeyPair(IDENTITY_PATH).getPublic().getEncoded());
+    }
+
+    /**
+     * Base64 signature over the UTF-8 payload. Throws KeySessionLockedException while locked.
+     */
+    public String sign(String payload) throws GeneralSecurityException {
+        Signature sig = ECDSA.get();
+        sig.initSign(keyManager.deriveECKeyPair(IDENTITY_PATH).getPrivate());
+        sig.update(payload.getBytes(StandardCharsets.UTF_8));
+        return CryptoUtils.toBase64(sig.sign());
+    }
+
+    /**
+     * True if publicKeyB64 hashes to nodeId and signatureB64 is its signature over payload.
+     * Malformed keys or signatures are a failed verification, not an exception.
+     */
+    public static boolean verify(String nodeId, String publicKeyB64, String payload, String signatureB64) {
+        if (nodeId == null || publicKeyB64 == null || signatureB64 == null) return false;
+        try {
+            byte[] encoded = CryptoUtils.fromBase64(publicKeyB64);
+            if (!CryptoUtils.toHex(CryptoUtils.sha256(encoded)).equalsIgnoreCase(nodeId)) return false;
+            PublicKey publicKey = KEY_FACTORY.get().generatePublic(new X509EncodedKeySpec(encoded));
+            Signature sig = ECDSA.get();
+            sig.initVerify(publicKey);
+            sig.update(payload.getBytes(StandardCharsets.UTF_8));
+            return sig.verify(CryptoUtils.fromBase64(signatureB64));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package dev.ojas.p2p_chat_file_share.utils.key;
+
+import dev.ojas.p2p_chat_file_share.config.KeyProperties;
+import dev.ojas.p2p_chat_file_share.exception.KeySessionLockedException;
+import dev.ojas.p2p_chat_file_share.node.data.Vault;
+import dev.ojas.p2p_chat_file_share.utils.CryptoUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KeySession: the master seed, unlocked once. Vault.decryptSeed (PBKDF2, 200k iterations) runs in
+ * unlock(); every later derivation (HandshakeMessageBuilder, HDKeyManager, signers) borrows the seed
+ * from here instead of decrypting it again.
+ * - seed and its HKDF PRK live in one direct buffer: off the Java heap, so the GC never copies them,
+ *   and lock() zeroes that buffer in place. (The JVM cannot mlock it; swap is the OS's business.)
+ * - heap copies handed out by withSeed()/withPrk() exist only for the callback and are zeroed after
+ * - lock() only zeroes what the session itself holds. Keys derived from the seed elsewhere are
+ *   dropped by their owners' onLock listeners; JCA key objects (SecretKeySpec, EC private keys) copy
+ *   their bytes and cannot be wiped, so dropping them only leaves them to the GC
+ * - idle timeout: the session locks itself when nothing has used the seed for that long; later
+ *   calls throw KeySessionLockedException until unlock() is called again (NodeService.unlock)
+ */
+@Component
+public class KeySession implements AutoCloseable {
+    /**
+     * Work on a temporary copy of secret bytes. The array is zeroed when the callback returns.
+     */
+    public interface SecretFunction<T> {
+        T apply(byte[] secret) throws Exception;
+    }
+
+    private static final int PRK_SIZE = 32;
+
+    private final long idleTimeoutNanos;
+    private final ScheduledExecutorService idleTimer;
+    private final List<Runnable> lockListeners = new CopyOnWriteArrayList<>();
+    private ByteBuffer secrets;   // [seed][prk], null while locked
+    private int seedLength;
+    private volatile long lastUsed;
+
+    @Autowired
+    public KeySession(KeyProperties properties) {
+        this(Duration.ofSeconds(properties.getSessionIdleTimeoutSeconds()));
+    }
+
+    /**
+     * A locked session that locks again after idleTimeout without use (Duration.ZERO: never).
+     */
+    public KeySession(Duration idleTimeout) {
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        if (idleTimeoutNanos > 0) {
+            this.idleTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "key-session-idle");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(TimeUnit.SECONDS.toNanos(1), idleTimeoutNanos / 4);
+            idleTimer.scheduleAtFixedRate(this::lockIfIdle, period, period, TimeUnit.NANOSECONDS);
+        } else {
+            this.idleTimer = null;
+        }
+    }
+
+    /**
+     * An unlocked session over a seed that is already decrypted, without idle timeout. The caller's array is not kept.
+     */
+    public static KeySession ofSeed(byte[] seed) {
+        KeySession session = new KeySession(Duration.ZERO);
+        session.unlock(seed);
+        return session;
+    }
+
+    /**
+     * Decrypt the seed with the password (the only PBKDF2 this session pays) and keep it.
+     */
+    public void unlock(Vault.EncryptedSeed encryptedSeed, char[] password) {
+        byte[] seed = Vault.decryptSeed(encryptedSeed, password);
+        try {
+            unlock(seed);
+        } finally {
+            Arrays.fill(seed, (byte) 0);
+        }
+    }
+
+    /**
+     * Keep a copy of an already decrypted seed, replacing any seed held before.
+     */
+    public void unlock(byte[] seed) {
+        byte[] prk = CryptoUtils.hkdfExtract(null, seed);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(seed.length + PRK_SIZE);
+        buffer.put(seed).put(prk, 0, PRK_SIZE);
+        Arrays.fill(prk, (byte) 0);
+        synchronized (this) {
+            zero(secrets);
+            secrets = buffer;
+            seedLength = seed.length;
+            lastUsed = System.nanoTime();
+        }
+    }
+
+    public synchronized boolean isUnlocked() {
+        return secrets != null;
+    }
+
+    /**
+     * Run fn on a copy of the master seed.
+     */
+    public <T> T withSeed(SecretFunction<T> fn) throws Exception {
+        return withCopy(false, fn);
+    }
+
+    /**
+     * Run fn on a copy of HKDF-Extract(salt = null, masterSeed), the PRK every HKDF derivation from
+     * the seed starts with.
+     */
+    public <T> T withPrk(SecretFunction<T> fn) throws Exception {
+        return withCopy(true, fn);
+    }
+
+    /**
+     * HKDF-Expand(PRK of the master seed, info, length): same bytes as
+     * hkdfExpand(hkdfExtract(null, seed), info, length), without the extract step or a seed copy.
+     */
+    public byte[] deriveKey(byte[] info, int length) {
+        try {
+            return withPrk(prk -> CryptoUtils.hkdfExpand(prk, info, length));
+        } catch (KeySessionLockedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Run listener whenever the session locks, so anything derived from the seed and cached
+     * elsewhere (see HDKeyManager) is dropped along with it.
+     */
+    public void onLock(Runnable listener) {
+        lockListeners.add(listener);
+    }
+
+    /**
+     * Zero the session's copy of the seed and PRK, forget it and run the onLock listeners.
+     * Nothing outside this session is zeroed here. The session can be unlocked again.
+     */
+    public synchronized void lock() {
+        zero(secrets);
+        secrets = null;
+        seedLength = 0;
+        for (Runnable listener : lockListeners) listener.run();
+    }
+
+    /**
+     * Lock and stop the idle timer for good.
+     */
+    @Override
+    public void close() {
+        lock();
+        if (idleTimer != null) idleTimer.shutdownNow();
+    }
+
+    private <T> T withCopy(boolean prk, SecretFunction<T> fn) throws Exception {
+        byte[] copy;
+        synchronized (this) {
+            if (secrets == null) throw new KeySessionLockedException("Key session is locked; unlock it with the wallet password");
+            copy = new byte[prk ? PRK_SIZE : seedLength];
+            secrets.get(prk ? seedLength : 0, copy);
+            lastUsed = System.nanoTime();
+        }
+        try {
+            return fn.apply(copy);
+        } finally {
+            Arrays.fill(copy, (byte) 0);
+        }
+    }
+
+    private synchronized void lockIfIdle() {
+        if (secrets != null && System.nanoTime() - lastUsed >= idleTimeoutNanos) {
+            lock();
+            System.out.println("🔒 Key session locked after idle timeout");
+        }
+    }
+
+    private static void zero(ByteBuffer buffer) {
+        if (buffer == null) return;
+        for (int i = 0; i < buffer.capacity(); i++) buffer.put(i, (byte) 0);
+    }
+}
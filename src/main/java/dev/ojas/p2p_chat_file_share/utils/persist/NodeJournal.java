@@ -0,0 +1,439 @@
+package dev.ojas.p2p_chat_file_share.utils.persist;
+
+import dev.ojas.p2p_chat_file_share.config.StorageProperties;
+import dev.ojas.p2p_chat_file_share.node.data.Indices;
+import dev.ojas.p2p_chat_file_share.node.data.Node;
+import dev.ojas.p2p_chat_file_share.node.data.Peer;
+import dev.ojas.p2p_chat_file_share.node.data.PeerScore;
+import dev.ojas.p2p_chat_file_share.node.data.PeerTable;
+import dev.ojas.p2p_chat_file_share.node.data.PendingTransfer;
+import dev.ojas.p2p_chat_file_share.utils.TimeUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * NodeJournal: append-only log of Node mutations on top of the wallet snapshot, so a change costs a
+ * record of its own size instead of a rewrite of the whole wallet.
+ * - files: <wallet>.journal.<generation> next to the wallet; record = [int len][body][int crc32(body)],
+ *   body = [type][fields]
+ * - group commit: appends queue up and the "node-journal" thread writes whatever is queued with one
+ *   write + one fsync; the returned future completes once the record is durable
+ * - compaction: after journalCompactBytes the journal moves to a new generation, the wallet snapshot is
+ *   rewritten (it already holds every older record, because callers change the Node before logging the
+ *   change) and older generations are deleted
+ * - recover(): snapshot, then every generation in order; a torn tail is cut off
+ * Every record sets a value (or adds chunks to a set), so replaying one twice is harmless. That is what
+ * lets a crash between "new generation" and "old generation deleted" go unnoticed.
+ */
+@Component
+public class NodeJournal implements AutoCloseable {
+    private static final byte PEER_PUT = 1;
+    private static final byte PEER_SEEN = 2;
+    private static final byte PEER_REMOVED = 3;
+    private static final byte INDEX_SET = 4;
+    private static final byte CHUNKS_RECEIVED = 5;
+    private static final byte PEER_SCORE = 6;
+    private static final int MAX_BATCH = 1024;
+
+    public enum IndexKind {
+        CHAT, ROOM, FILE, EPHEMERAL;
+
+        public int get(Indices indices) {
+            return switch (this) {
+                case CHAT -> indices.getChat();
+                case ROOM -> indices.getRoom();
+                case FILE -> indices.getFile();
+                case EPHEMERAL -> indices.getEphemeral();
+            };
+        }
+
+        public void set(Indices indices, int value) {
+            switch (this) {
+                case CHAT -> indices.setChat(value);
+                case ROOM -> indices.setRoom(value);
+                case FILE -> indices.setFile(value);
+                case EPHEMERAL -> indices.setEphemeral(value);
+            }
+        }
+    }
+
+    private static final class Append {
+        final byte[] record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Append(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    private final PersistenceManager persistenceManager;
+    private final Path dir;
+    private final String journalPrefix;
+    private final long compactBytes;
+    private final LinkedBlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    private volatile Node node;
+    private volatile Thread committer;
+    private volatile boolean closed;
+    private FileChannel channel; // committer thread only (and recover, before it starts)
+    private long generation;
+    private long journalBytes;
+
+    @Autowired
+    public NodeJournal(PersistenceManager persistenceManager, StorageProperties storageProperties) {
+        this(persistenceManager, Paths.get(storageProperties.getDir()), storageProperties.getUserDetailsFileName(),
+                storageProperties.getJournalCompactBytes());
+    }
+
+    public NodeJournal(PersistenceManager persistenceManager, Path dir, String walletFileName, long compactBytes) {
+        this.persistenceManager = persistenceManager;
+        this.dir = dir;
+        this.journalPrefix = walletFileName + ".journal.";
+        this.compactBytes = compactBytes;
+    }
+
+    /**
+     * Load the wallet snapshot, replay the journal onto it and attach to the result. Null when there is no wallet.
+     */
+    public synchronized Node recover() throws IOException {
+        Node recovered = persistenceManager.loadWallet(dir);
+        if (recovered == null) return null;
+        List<Long> generations = generations();
+        for (long gen : generations) replay(recovered, journalFile(gen));
+        generation = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+        attach(recovered);
+        return recovered;
+    }
+
+    /**
+     * Journal changes to this node (it is what compaction snapshots). recover() attaches on its own.
+     */
+    public synchronized void attach(Node node) {
+        this.node = node;
+    }
+
+    public CompletableFuture<Void> peerPut(Peer peer) {
+        return append(PEER_PUT, out -> {
+            out.writeUTF(peer.getNodeId());
+            out.writeUTF(peer.getIp() == null ? "" : peer.getIp());
+            out.writeInt(peer.getPort());
+            out.writeLong(TimeUtils.toEpochMillis(peer.getLastSeen()));
+        });
+    }
+
+    public CompletableFuture<Void> peerSeen(String nodeId, LocalDateTime lastSeen) {
+        return append(PEER_SEEN, out -> {
+            out.writeUTF(nodeId);
+            out.writeLong(TimeUtils.toEpochMillis(lastSeen));
+        });
+    }
+
+    public CompletableFuture<Void> peerRemoved(String nodeId) {
+        return append(PEER_REMOVED, out -> out.writeUTF(nodeId));
+    }
+
+    /**
+     * The whole score, not the observation, so replay stays idempotent.
+     */
+    public CompletableFuture<Void> peerScore(String nodeId, PeerScore score) {
+        return append(PEER_SCORE, out -> {
+            out.writeUTF(nodeId);
+            out.writeDouble(score.getRttMillis());
+            out.writeDouble(score.getThroughputBytesPerSecond());
+            out.writeInt(score.getFailures());
+            out.writeLong(score.getLastSuccessMillis());
+            out.writeLong(score.getLastFailureMillis());
+        });
+    }
+
+    public CompletableFuture<Void> indexSet(IndexKind kind, int value) {
+        return append(INDEX_SET, out -> {
+            out.writeByte(kind.ordinal());
+            out.writeInt(value);
+        });
+    }
+
+    /**
+     * Chunks fromIndex..toIndex (inclusive) of fileId were received.
+     */
+    public CompletableFuture<Void> chunksReceived(String fileId, int fromIndex, int toIndex) {
+        return append(CHUNKS_RECEIVED, out -> {
+            out.writeUTF(fileId);
+            out.writeInt(fromIndex);
+            out.writeInt(toIndex);
+        });
+    }
+
+    /**
+     * Write all queued records and wait until they are durable.
+     */
+    public void sync() {
+        append(new Append(new byte[0])).join();
+    }
+
+    /**
+     * Sync, stop the committer and close the journal file.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        try {
+            sync();
+        } finally {
+            closed = true;
+            Thread thread = committer;
+            if (thread != null) thread.interrupt();
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private CompletableFuture<Void> append(byte type, RecordWriter fields) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeByte(type);
+            fields.write(out);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        byte[] record = ByteBuffer.allocate(bytes.length + 2 * Integer.BYTES)
+                .putInt(bytes.length).put(bytes).putInt((int) crc.getValue()).array();
+        return append(new Append(record));
+    }
+
+    private CompletableFuture<Void> append(Append append) {
+        if (closed) {
+            append.done.completeExceptionally(new IllegalStateException("Node journal is closed"));
+            return append.done;
+        }
+        queue.add(append);
+        startCommitter();
+        return append.done;
+    }
+
+    private void startCommitter() {
+        if (committer != null) return;
+        synchronized (this) {
+            if (committer != null) return;
+            Thread thread = new Thread(this::commitLoop, "node-journal");
+            thread.setDaemon(true);
+            committer = thread;
+            thread.start();
+        }
+    }
+
+    private void commitLoop() {
+        List<Append> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                try {
+                    commit(batch);
+                    for (Append a : batch) a.done.complete(null);
+                } catch (Exception e) {
+                    System.err.println("Node journal write failed: " + e.getMessage());
+                    for (Append a : batch) a.done.completeExceptionally(e);
+                    closeChannel();
+                }
+                batch.clear();
+                if (journalBytes >= compactBytes) compact();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeChannel();
+            for (Append a : batch) a.done.completeExceptionally(new IllegalStateException("Node journal is closed"));
+        }
+    }
+
+    private void commit(List<Append> batch) throws IOException {
+        if (channel == null) openGeneration(generation);
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long size = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(i).record);
+            size += buffers[i].remaining();
+        }
+        if (size == 0) return;
+        long start = channel.size();
+        try {
+            long written = 0;
+            while (written < size) written += channel.write(buffers);
+            channel.force(false);
+        } catch (IOException e) {
+            channel.truncate(start); // a half-written batch would hide every record after it from replay
+            throw e;
+        }
+        journalBytes += size;
+    }
+
+    /**
+     * Switch to a new generation, snapshot the node, drop the older generations. Committer thread only.
+     */
+    private void compact() {
+        Node snapshotOf = node;
+        if (snapshotOf == null) return; // nothing to snapshot yet; keep appending
+        long previous = generation;
+        try {
+            closeChannel();
+            openGeneration(previous + 1);
+            persistenceManager.saveWallet(snapshotOf, dir);
+            for (long gen : generations()) {
+                if (gen <= previous) Files.deleteIfExists(journalFile(gen));
+            }
+        } catch (Exception e) {
+            // the older generations stay and are replayed next start; try again after the next batch
+            System.err.println("Node journal compaction failed: " + e.getMessage());
+        }
+    }
+
+    private void openGeneration(long gen) throws IOException {
+        Files.createDirectories(dir);
+        channel = FileChannel.open(journalFile(gen), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        generation = gen;
+        journalBytes = channel.size();
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    /**
+     * Apply every intact record of one journal file; a torn or corrupt tail is truncated away.
+     */
+    private void replay(Node target, Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int good = 0;
+        int applied = 0;
+        while (buffer.remaining() >= Integer.BYTES) {
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining() - Integer.BYTES) break;
+            CRC32 crc = new CRC32();
+            crc.update(data, buffer.position(), length);
+            int bodyAt = buffer.position();
+            buffer.position(bodyAt + length);
+            if (buffer.getInt() != (int) crc.getValue()) break;
+            apply(target, new DataInputStream(new ByteArrayInputStream(data, bodyAt, length)));
+            good = buffer.position();
+            applied++;
+        }
+        if (good < data.length) {
+            System.err.println("Node journal " + file.getFileName() + ": dropping " + (data.length - good) + " torn bytes");
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+        System.out.println("Replayed " + applied + " journal records from " + file.getFileName());
+    }
+
+    private static void apply(Node target, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case PEER_PUT -> {
+                String nodeId = in.readUTF();
+                String ip = in.readUTF();
+                int port = in.readInt();
+                peers(target).put(new Peer(nodeId, ip, port, TimeUtils.fromEpochMillis(in.readLong())));
+            }
+            case PEER_SEEN -> {
+                String nodeId = in.readUTF();
+                peers(target).touch(nodeId, TimeUtils.fromEpochMillis(in.readLong()));
+            }
+            case PEER_REMOVED -> peers(target).remove(in.readUTF());
+            case PEER_SCORE -> {
+                String nodeId = in.readUTF();
+                PeerScore score = new PeerScore(in.readDouble(), in.readDouble(), in.readInt(), in.readLong(), in.readLong());
+                peers(target).updateScore(nodeId, old -> score);
+            }
+            case INDEX_SET -> {
+                IndexKind kind = IndexKind.values()[in.readByte()];
+                setIndex(target, kind, in.readInt());
+            }
+            case CHUNKS_RECEIVED -> {
+                String fileId = in.readUTF();
+                int from = in.readInt();
+                int to = in.readInt();
+                addChunks(target, fileId, from, to);
+            }
+            default -> throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static PeerTable peers(Node target) {
+        if (target.getPeers() == null) target.setPeers(new PeerTable());
+        return target.getPeers();
+    }
+
+    private static void setIndex(Node target, IndexKind kind, int value) {
+        if (target.getIndices() == null) target.setIndices(new Indices(0, 0, 0, 0));
+        kind.set(target.getIndices(), value);
+    }
+
+    private static void addChunks(Node target, String fileId, int from, int to) {
+        PendingTransfer[] transfers = target.getPendingTransfers() == null ? new PendingTransfer[0] : target.getPendingTransfers();
+        PendingTransfer transfer = Arrays.stream(transfers).filter(t -> fileId.equals(t.getFileId())).findFirst().orElse(null);
+        if (transfer == null) {
+            transfer = new PendingTransfer();
+            transfer.setFileId(fileId);
+            transfers = Arrays.copyOf(transfers, transfers.length + 1);
+            transfers[transfers.length - 1] = transfer;
+            target.setPendingTransfers(transfers);
+        }
+        TreeSet<Integer> received = new TreeSet<>();
+        if (transfer.getReceivedChunks() != null) received.addAll(transfer.getReceivedChunks());
+        for (int i = from; i <= to; i++) received.add(i);
+        transfer.setReceivedChunks(new ArrayList<>(received));
+    }
+
+    private List<Long> generations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return generations;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, journalPrefix + "*")) {
+            for (Path file : files) {
+                try {
+                    generations.add(Long.parseLong(file.getFileName().toString().substring(journalPrefix.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private Path journalFile(long gen) {
+        return dir.resolve(journalPrefix + gen);
+    }
+}
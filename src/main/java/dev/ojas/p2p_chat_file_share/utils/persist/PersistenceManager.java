@@ -7,33 +7,196 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * PersistenceManager: wallet file I/O. The wallet is a WalletSnapshot (binary, memory-mapped on load);
+ * a wallet still in the old JSON layout is read as JSON and written back as a snapshot on the next save.
+ * exportJson/importJson keep JSON for moving a wallet around.
+ * - saveWallet writes now; use it for updates that must be durable before going on (index reservations)
+ * - markDirty only records the node; changes within writeBehindMillis are coalesced into one write on the
+ *   "wallet-writer" thread, so nothing on the message path waits for the disk
+ * - every write goes to <file>.tmp, is fsynced, then renamed over the wallet and the directory fsynced,
+ *   so a crash leaves the old file or the new one, never half of each, and the rename survives it
+ * - the node is encoded under the write lock, so writes land in the order they read the node and an
+ *   older state never replaces a newer one (NodeJournal compaction relies on this)
+ * - flush() writes whatever is pending; close() flushes and stops the writer
+ */
 @Service
-public class PersistenceManager {
-    @Autowired
-    private static StorageProperties storageProperties;
+public class PersistenceManager implements AutoCloseable {
     private static final ObjectMapper M = new ObjectMapper();
-    private static final String userDetailsFileName = storageProperties.getUserDetailsFileName();
 
+    private final String userDetailsFileName;
+    private final long writeBehindMillis;
+    private final Map<Path, Node> dirty = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService writer;
 
+    @Autowired
+    public PersistenceManager(StorageProperties storageProperties) {
+        this.userDetailsFileName = storageProperties.getUserDetailsFileName();
+        this.writeBehindMillis = storageProperties.getWriteBehindMillis();
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wallet-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Write the node now (atomically), superseding any pending write-behind for the same dir.
+     */
     public void saveWallet(Node node, Path dir) {
+        dirty.remove(dir);
         try {
-            if (!dir.toFile().exists()) dir.toFile().mkdirs();
-            File f = dir.resolve(userDetailsFileName).toFile();
-            M.writerWithDefaultPrettyPrinter().writeValue(f, node);
+            write(node, dir);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Schedule the node to be written within writeBehindMillis. With writeBehindMillis = 0 this is saveWallet.
+     */
+    public void markDirty(Node node, Path dir) {
+        if (writeBehindMillis <= 0) {
+            saveWallet(node, dir);
+            return;
+        }
+        dirty.put(dir, node);
+        if (flushScheduled.compareAndSet(false, true)) {
+            writer.schedule(this::writeBehind, writeBehindMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write every pending node on the calling thread. Throws the first failure; the failed node stays pending.
+     */
+    public void flush() {
+        RuntimeException failure = null;
+        for (Path dir : dirty.keySet()) {
+            Node node = dirty.remove(dir);
+            if (node == null) continue;
+            try {
+                write(node, dir);
+            } catch (Exception e) {
+                dirty.putIfAbsent(dir, node);
+                if (failure == null) failure = new RuntimeException("Failed to write wallet in " + dir, e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    public boolean hasPendingWrites() {
+        return !dirty.isEmpty();
+    }
+
     public Node loadWallet(Path dir) {
         try {
             File f = dir.resolve(userDetailsFileName).toFile();
             if (!f.exists()) return null;
-            return M.readValue(f, Node.class);
+            WalletSnapshot snapshot = openSnapshot(dir);
+            return snapshot != null ? snapshot.decode() : M.readValue(f, Node.class);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Map the wallet without decoding it, for peer lookups at startup. Null when there is no wallet or
+     * it is still JSON.
+     */
+    public WalletSnapshot openSnapshot(Path dir) throws IOException {
+        Path file = dir.resolve(userDetailsFileName);
+        return Files.exists(file) ? WalletSnapshot.openIfSnapshot(file) : null;
+    }
+
+    public void exportJson(Node node, Path file) {
+        try {
+            M.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), node);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Node importJson(Path file) {
+        try {
+            return M.readValue(file.toFile(), Node.class);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Flush pending writes and stop the writer thread.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        flush();
+    }
+
+    private void writeBehind() {
+        flushScheduled.set(false);
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            System.err.println("Write-behind of wallet failed, retrying: " + e.getMessage());
+            if (!writer.isShutdown() && flushScheduled.compareAndSet(false, true)) {
+                writer.schedule(this::writeBehind, writeBehindMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Encode, write <file>.tmp, fsync, rename over <file>, fsync the directory. Writers are serialized,
+     * encoding included, so two writes never share the temp file and the last one written holds the
+     * newest state.
+     */
+    private void write(Node node, Path dir) throws IOException {
+        synchronized (writeLock) {
+            byte[] snapshot = WalletSnapshot.encode(node);
+            Files.createDirectories(dir);
+            Path target = dir.resolve(userDetailsFileName);
+            Path temp = dir.resolve(userDetailsFileName + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer src = ByteBuffer.wrap(snapshot);
+                while (src.hasRemaining()) out.write(src);
+                out.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            syncDirectory(dir);
+        }
+    }
+
+    /**
+     * fsync the directory so the rename itself is durable. Some platforms (Windows) cannot open a
+     * directory for that; there the rename is as durable as the filesystem makes it.
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported here
+        }
+    }
 }
@@ -0,0 +1,362 @@
+package dev.ojas.p2p_chat_file_share.utils.persist;
+
+import dev.ojas.p2p_chat_file_share.node.data.Config;
+import dev.ojas.p2p_chat_file_share.node.data.Identity;
+import dev.ojas.p2p_chat_file_share.node.data.Indices;
+import dev.ojas.p2p_chat_file_share.node.data.Metadata;
+import dev.ojas.p2p_chat_file_share.node.data.Node;
+import dev.ojas.p2p_chat_file_share.node.data.Peer;
+import dev.ojas.p2p_chat_file_share.node.data.PeerScore;
+import dev.ojas.p2p_chat_file_share.node.data.PeerTable;
+import dev.ojas.p2p_chat_file_share.node.data.PendingTransfer;
+import dev.ojas.p2p_chat_file_share.node.data.Room;
+import dev.ojas.p2p_chat_file_share.node.data.Vault;
+import dev.ojas.p2p_chat_file_share.utils.TimeUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * WalletSnapshot: binary wallet format, read through a memory map so peers can be looked up before
+ * (or without) decoding the rest.
+ * Layout, big-endian:
+ * - header, 36 bytes: magic "P2PW", u16 version, u16 flags, offset/length of the string table,
+ *   offset/length of the core section, offset/count of the peer section, CRC32 of everything after the header
+ * - string table: every distinct string once, as [int utf8Length][utf8]; the other sections refer to a
+ *   string by its offset in the table (-1 = null), and a reader decodes each offset at most once
+ * - core: identity, metadata, indices, config, rooms, pending transfers
+ * - peers: fixed 56-byte records [nodeId ref][ip ref][port][lastSeen epoch millis, UTC] followed by the
+ *   PeerScore [rtt ms double][throughput B/s double][failures][lastSuccess millis][lastFailure millis],
+ *   sorted by nodeId, so findPeer is a binary search straight over the mapped file. Version 1 files have
+ *   20-byte records without the score and still load (every peer UNKNOWN).
+ * decode() checks the CRC; peer lookups only check bounds (the file is always replaced atomically).
+ */
+public final class WalletSnapshot {
+    public static final int MAGIC = 0x50325057; // "P2PW"
+    public static final short VERSION = 2;
+    private static final int HEADER_SIZE = 36;
+    private static final int PEER_RECORD_SIZE_V1 = 20;
+    private static final int PEER_RECORD_SIZE = 56;
+    private static final int NULL_REF = -1;
+
+    private final ByteBuffer buffer;
+    private final int stringsOffset;
+    private final int stringsLength;
+    private final int coreOffset;
+    private final int coreLength;
+    private final int peersOffset;
+    private final int peerCount;
+    private final int peerRecordSize;
+    private final Map<Integer, String> strings = new ConcurrentHashMap<>();
+
+    private WalletSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (!isSnapshot(buffer)) throw new IOException("Not a wallet snapshot");
+        int version = buffer.getShort(4);
+        if (version != VERSION && version != 1) throw new IOException("Unsupported wallet snapshot version " + version);
+        this.peerRecordSize = version == 1 ? PEER_RECORD_SIZE_V1 : PEER_RECORD_SIZE;
+        this.stringsOffset = buffer.getInt(8);
+        this.stringsLength = buffer.getInt(12);
+        this.coreOffset = buffer.getInt(16);
+        this.coreLength = buffer.getInt(20);
+        this.peersOffset = buffer.getInt(24);
+        this.peerCount = buffer.getInt(28);
+        int limit = buffer.capacity();
+        if (stringsOffset < HEADER_SIZE || stringsLength < 0 || stringsOffset + stringsLength > limit
+                || coreOffset < HEADER_SIZE || coreLength < 0 || coreOffset + coreLength > limit
+                || peersOffset < HEADER_SIZE || peerCount < 0 || peersOffset + (long) peerCount * peerRecordSize > limit) {
+            throw new IOException("Corrupt wallet snapshot header");
+        }
+    }
+
+    /**
+     * Map a snapshot file. Only the header is read here.
+     */
+    public static WalletSnapshot open(Path file) throws IOException {
+        WalletSnapshot snapshot = openIfSnapshot(file);
+        if (snapshot == null) throw new IOException("Not a wallet snapshot: " + file);
+        return snapshot;
+    }
+
+    /**
+     * Like open, but null for a file that is not a snapshot (e.g. a JSON wallet).
+     */
+    public static WalletSnapshot openIfSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return isSnapshot(mapped) ? new WalletSnapshot(mapped) : null;
+        }
+    }
+
+    public static WalletSnapshot wrap(byte[] data) throws IOException {
+        return new WalletSnapshot(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * True when the data starts with the snapshot magic (a legacy JSON wallet starts with '{').
+     */
+    public static boolean isSnapshot(ByteBuffer data) {
+        return data.limit() >= HEADER_SIZE && data.getInt(0) == MAGIC;
+    }
+
+    public int getPeerCount() {
+        return peerCount;
+    }
+
+    public Peer peerAt(int index) {
+        if (index < 0 || index >= peerCount) throw new IndexOutOfBoundsException("peer " + index);
+        int at = peersOffset + index * peerRecordSize;
+        return new Peer(string(buffer.getInt(at)), string(buffer.getInt(at + 4)), buffer.getInt(at + 8),
+                TimeUtils.fromEpochMillis(buffer.getLong(at + 12)));
+    }
+
+    /**
+     * Binary search of the peer section; null when the nodeId is not there.
+     */
+    public Peer findPeer(String nodeId) {
+        int low = 0, high = peerCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = string(buffer.getInt(peersOffset + mid * peerRecordSize)).compareTo(nodeId);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return peerAt(mid);
+        }
+        return null;
+    }
+
+    /**
+     * Score stored with the peer at this index (UNKNOWN in a version 1 file).
+     */
+    public PeerScore scoreAt(int index) {
+        if (index < 0 || index >= peerCount) throw new IndexOutOfBoundsException("peer " + index);
+        if (peerRecordSize == PEER_RECORD_SIZE_V1) return PeerScore.UNKNOWN;
+        int at = peersOffset + index * peerRecordSize + PEER_RECORD_SIZE_V1;
+        return new PeerScore(buffer.getDouble(at), buffer.getDouble(at + 8), buffer.getInt(at + 16),
+                buffer.getLong(at + 20), buffer.getLong(at + 28));
+    }
+
+    public Peer[] peers() {
+        Peer[] peers = new Peer[peerCount];
+        for (int i = 0; i < peerCount; i++) peers[i] = peerAt(i);
+        return peers;
+    }
+
+    /**
+     * Decode the whole wallet, after checking the CRC.
+     */
+    public Node decode() throws IOException {
+        CRC32 check = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+        check.update(body);
+        if ((int) check.getValue() != buffer.getInt(32)) throw new IOException("Wallet snapshot checksum mismatch");
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(coreOffset).limit(coreOffset + coreLength);
+        Identity identity = null;
+        if (in.get() != 0) {
+            String displayName = string(in.getInt());
+            String nodeId = string(in.getInt());
+            String masterXPub = string(in.getInt());
+            Vault.EncryptedSeed seed = null;
+            if (in.get() != 0) {
+                String salt = string(in.getInt());
+                int iterations = in.getInt();
+                String iv = string(in.getInt());
+                seed = new Vault.EncryptedSeed(salt, iterations, iv, string(in.getInt()));
+            }
+            identity = new Identity(displayName, nodeId, seed, masterXPub);
+        }
+        Metadata metadata = null;
+        if (in.get() != 0) {
+            int knownPeersCount = in.getInt();
+            int roomCount = in.getInt();
+            metadata = new Metadata(knownPeersCount, roomCount, TimeUtils.fromEpochMillis(in.getLong()));
+        }
+        Indices indices = in.get() != 0 ? new Indices(in.getInt(), in.getInt(), in.getInt(), in.getInt()) : null;
+        Config config = in.get() != 0 ? new Config(in.getInt()) : null;
+        Room[] rooms = null;
+        int roomCount = in.getInt();
+        if (roomCount >= 0) {
+            rooms = new Room[roomCount];
+            for (int i = 0; i < roomCount; i++) {
+                rooms[i] = new Room();
+                rooms[i].setRoomId(string(in.getInt()));
+                rooms[i].setEncryptedRoomKey(string(in.getInt()));
+            }
+        }
+        PendingTransfer[] transfers = null;
+        int transferCount = in.getInt();
+        if (transferCount >= 0) {
+            transfers = new PendingTransfer[transferCount];
+            for (int i = 0; i < transferCount; i++) {
+                transfers[i] = new PendingTransfer();
+                transfers[i].setFileId(string(in.getInt()));
+                int chunks = in.getInt();
+                if (chunks >= 0) {
+                    List<Integer> received = new ArrayList<>(chunks);
+                    for (int c = 0; c < chunks; c++) received.add(in.getInt());
+                    transfers[i].setReceivedChunks(received);
+                }
+            }
+        }
+        PeerTable peers = new PeerTable();
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = peerAt(i);
+            if (peer.getNodeId() != null) peers.put(peer, scoreAt(i));
+        }
+        return new Node(identity, metadata, indices, peers, rooms, transfers, config);
+    }
+
+    /**
+     * Encode a node. Peers are taken from one snapshot() of its table.
+     */
+    public static byte[] encode(Node node) {
+        try {
+            StringTable table = new StringTable();
+            ByteArrayOutputStream core = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(core);
+
+            Identity identity = node.getIdentity();
+            out.writeByte(identity == null ? 0 : 1);
+            if (identity != null) {
+                out.writeInt(table.ref(identity.getDisplayName()));
+                out.writeInt(table.ref(identity.getNodeId()));
+                out.writeInt(table.ref(identity.getMasterXPub()));
+                Vault.EncryptedSeed seed = identity.getMasterSeedEnc();
+                out.writeByte(seed == null ? 0 : 1);
+                if (seed != null) {
+                    out.writeInt(table.ref(seed.salt));
+                    out.writeInt(seed.iterations);
+                    out.writeInt(table.ref(seed.iv));
+                    out.writeInt(table.ref(seed.ciphertext));
+                }
+            }
+            Metadata metadata = node.getMetadata();
+            out.writeByte(metadata == null ? 0 : 1);
+            if (metadata != null) {
+                out.writeInt(metadata.getKnownPeersCount());
+                out.writeInt(metadata.getRoomCount());
+                out.writeLong(TimeUtils.toEpochMillis(metadata.getLastSeen()));
+            }
+            Indices indices = node.getIndices();
+            out.writeByte(indices == null ? 0 : 1);
+            if (indices != null) {
+                out.writeInt(indices.getChat());
+                out.writeInt(indices.getRoom());
+                out.writeInt(indices.getFile());
+                out.writeInt(indices.getEphemeral());
+            }
+            Config config = node.getConfig();
+            out.writeByte(config == null ? 0 : 1);
+            if (config != null) out.writeInt(config.getPort());
+            Room[] rooms = node.getRooms();
+            out.writeInt(rooms == null ? -1 : rooms.length);
+            if (rooms != null) {
+                for (Room room : rooms) {
+                    out.writeInt(table.ref(room.getRoomId()));
+                    out.writeInt(table.ref(room.getEncryptedRoomKey()));
+                }
+            }
+            PendingTransfer[] transfers = node.getPendingTransfers();
+            out.writeInt(transfers == null ? -1 : transfers.length);
+            if (transfers != null) {
+                for (PendingTransfer transfer : transfers) {
+                    out.writeInt(table.ref(transfer.getFileId()));
+                    List<Integer> received = transfer.getReceivedChunks();
+                    out.writeInt(received == null ? -1 : received.size());
+                    if (received != null) for (int chunk : received) out.writeInt(chunk);
+                }
+            }
+            out.flush();
+
+            Peer[] peers = node.getPeers() == null ? new Peer[0] : node.getPeers().snapshot();
+            Arrays.sort(peers, Comparator.comparing(Peer::getNodeId));
+            ByteBuffer peerSection = ByteBuffer.allocate(peers.length * PEER_RECORD_SIZE);
+            for (Peer peer : peers) {
+                PeerScore score = node.getPeers().getScore(peer.getNodeId());
+                if (score == null) score = PeerScore.UNKNOWN; // removed since snapshot()
+                peerSection.putInt(table.ref(peer.getNodeId()))
+                        .putInt(table.ref(peer.getIp()))
+                        .putInt(peer.getPort())
+                        .putLong(TimeUtils.toEpochMillis(peer.getLastSeen()))
+                        .putDouble(score.getRttMillis())
+                        .putDouble(score.getThroughputBytesPerSecond())
+                        .putInt(score.getFailures())
+                        .putLong(score.getLastSuccessMillis())
+                        .putLong(score.getLastFailureMillis());
+            }
+
+            byte[] strings = table.bytes();
+            int coreOffset = HEADER_SIZE + strings.length;
+            int peersOffset = coreOffset + core.size();
+            ByteBuffer file = ByteBuffer.allocate(peersOffset + peerSection.capacity());
+            file.putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+                    .putInt(HEADER_SIZE).putInt(strings.length)
+                    .putInt(coreOffset).putInt(core.size())
+                    .putInt(peersOffset).putInt(peers.length)
+                    .putInt(0) // CRC, filled in below
+                    .put(strings).put(core.toByteArray()).put(peerSection.array());
+            CRC32 crc = new CRC32();
+            crc.update(file.array(), HEADER_SIZE, file.capacity() - HEADER_SIZE);
+            file.putInt(32, (int) crc.getValue());
+            return file.array();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // in-memory streams only
+        }
+    }
+
+    /**
+     * String at a table offset, decoded once per snapshot.
+     */
+    private String string(int ref) {
+        if (ref == NULL_REF) return null;
+        if (ref < 0 || ref > stringsLength - Integer.BYTES) throw new IllegalStateException("Corrupt wallet snapshot string ref " + ref);
+        return strings.computeIfAbsent(ref, r -> {
+            int at = stringsOffset + r;
+            int length = buffer.getInt(at);
+            if (length < 0 || r + Integer.BYTES + length > stringsLength) throw new IllegalStateException("Corrupt wallet snapshot string");
+            byte[] utf8 = new byte[length];
+            buffer.get(at + Integer.BYTES, utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        });
+    }
+
+    private static final class StringTable {
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+
+        int ref(String value) {
+            if (value == null) return NULL_REF;
+            Integer offset = offsets.get(value);
+            if (offset != null) return offset;
+            offset = bytes.size();
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            bytes.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(utf8.length).array());
+            bytes.writeBytes(utf8);
+            offsets.put(value, offset);
+            return offset;
+        }
+
+        byte[] bytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+
+}
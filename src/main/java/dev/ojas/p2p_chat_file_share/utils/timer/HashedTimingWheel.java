@@ -0,0 +1,242 @@
+package dev.ojas.p2p_chat_file_share.utils.timer;
+
+import dev.ojas.p2p_chat_file_share.config.LivenessProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HashedTimingWheel: one thread runs every timer of the node (heartbeats, idle eviction, retransmit
+ * timeouts, handshake expiry).
+ * - the wheel is an array of `wheelSize` buckets, one per tick; a timer due in more than a lap waits
+ *   in its bucket with a count of remaining laps
+ * - newTimeout() and cancel() are O(1) and lock-free: both only enqueue, and the wheel thread moves new
+ *   timers into buckets / unlinks cancelled ones at the next tick. Buckets belong to the wheel thread.
+ * - precision is one tick: a timer fires within `tick` after its deadline
+ * - tasks run on the wheel thread and must be short; hand slow work to another executor
+ */
+@Component
+public class HashedTimingWheel implements AutoCloseable {
+    /**
+     * A scheduled task. cancel() before it fires and it never runs.
+     */
+    public interface Timeout {
+        boolean cancel();
+
+        boolean isCancelled();
+
+        boolean isExpired();
+    }
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final class Entry implements Timeout {
+        final Runnable task;
+        final long deadline; // nanos since startTime
+        final AtomicInteger state = new AtomicInteger(ST_INIT);
+        long remainingRounds;
+        Bucket bucket;
+        Entry next;
+        Entry prev;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+    }
+
+    private static final class Bucket {
+        Entry head;
+        Entry tail;
+
+        void add(Entry entry) {
+            entry.bucket = this;
+            entry.prev = tail;
+            entry.next = null;
+            if (tail == null) head = entry;
+            else tail.next = entry;
+            tail = entry;
+        }
+
+        void remove(Entry entry) {
+            if (entry.prev == null) head = entry.next;
+            else entry.prev.next = entry.next;
+            if (entry.next == null) tail = entry.prev;
+            else entry.next.prev = entry.prev;
+            entry.next = entry.prev = null;
+            entry.bucket = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final String name;
+    private volatile long startTime;
+    private volatile Thread worker;
+    private volatile boolean stopped;
+    private long tick; // wheel thread only
+
+    @Autowired
+    public HashedTimingWheel(LivenessProperties properties) {
+        this("timing-wheel", Duration.ofMillis(properties.getTickMillis()), properties.getWheelSize());
+    }
+
+    /**
+     * A wheel of `wheelSize` buckets (rounded up to a power of two) advancing every `tick`. The thread
+     * starts with the first timer.
+     */
+    public HashedTimingWheel(String name, Duration tick, int wheelSize) {
+        if (tick.toNanos() <= 0) throw new IllegalArgumentException("tick must be positive");
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) throw new IllegalArgumentException("bad wheel size " + wheelSize);
+        this.name = name;
+        this.tickNanos = tick.toNanos();
+        int size = Integer.highestOneBit(wheelSize - 1 == 0 ? 1 : wheelSize - 1) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+        this.mask = size - 1;
+    }
+
+    /**
+     * Run the task once after the delay (on the wheel thread).
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) throw new IllegalStateException("Timing wheel " + name + " is stopped");
+        start();
+        long deadline = System.nanoTime() + Math.max(0, unit.toNanos(delay)) - startTime;
+        Entry entry = new Entry(task, deadline);
+        pending.incrementAndGet();
+        added.add(entry);
+        return entry;
+    }
+
+    public Timeout newTimeout(Runnable task, Duration delay) {
+        return newTimeout(task, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Timers scheduled and neither fired nor cancelled yet.
+     */
+    public long pendingTimeouts() {
+        return pending.get();
+    }
+
+    /**
+     * Stop the wheel thread; timers not yet fired are dropped.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        Thread thread = worker;
+        if (thread != null) thread.interrupt();
+    }
+
+    private void start() {
+        if (worker != null) return;
+        synchronized (this) {
+            if (worker != null) return;
+            startTime = System.nanoTime();
+            Thread thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            worker = thread;
+            thread.start();
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            if (!waitForNextTick()) break;
+            Bucket bucket = wheel[(int) (tick & mask)];
+            removeCancelled();
+            transferAdded();
+            expire(bucket);
+            tick++;
+        }
+    }
+
+    /**
+     * Sleep until the current tick ends. False when the wheel was stopped meanwhile.
+     */
+    private boolean waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        for (;;) {
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos <= 0) return true;
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (stopped) return false;
+            }
+        }
+    }
+
+    private void transferAdded() {
+        // bounded per tick so a flood of new timers cannot starve expiry
+        for (int i = 0; i < 100_000; i++) {
+            Entry entry = added.poll();
+            if (entry == null) return;
+            if (entry.state.get() == ST_CANCELLED) continue;
+            long due = entry.deadline / tickNanos;
+            entry.remainingRounds = (due - tick) / wheel.length;
+            long ticks = Math.max(due, tick); // already late: fire on this tick
+            wheel[(int) (ticks & mask)].add(entry);
+        }
+    }
+
+    private void removeCancelled() {
+        Entry entry;
+        while ((entry = cancelled.poll()) != null) {
+            pending.decrementAndGet();
+            if (entry.bucket != null) entry.bucket.remove(entry);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Entry entry = bucket.head;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.remainingRounds <= 0) {
+                bucket.remove(entry);
+                if (entry.state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                    pending.decrementAndGet();
+                    try {
+                        entry.task.run();
+                    } catch (Throwable t) {
+                        System.err.println("Timer task on " + name + " failed: " + t);
+                    }
+                }
+            } else if (entry.state.get() != ST_CANCELLED) {
+                entry.remainingRounds--;
+            }
+            entry = next;
+        }
+    }
+}